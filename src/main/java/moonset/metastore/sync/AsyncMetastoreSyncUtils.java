@@ -0,0 +1,240 @@
+package moonset.metastore.sync;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.collections.MapUtils;
+import org.apache.hadoop.hive.metastore.IMetaStoreClient;
+import org.apache.hadoop.hive.metastore.api.Database;
+import org.apache.hadoop.hive.metastore.api.FieldSchema;
+import org.apache.hadoop.hive.metastore.api.Partition;
+import org.apache.hadoop.hive.metastore.api.Table;
+import org.apache.thrift.TException;
+
+import com.amazonaws.glue.catalog.converters.CatalogToHiveConverter;
+import com.google.common.collect.Lists;
+
+import moonset.metastore.sync.catalog.AsyncCatalogClient;
+import moonset.metastore.sync.exception.MetastoreException;
+import moonset.metastore.sync.util.PartitionFilterCompiler;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The asynchronous counterpart of {@link MetastoreSyncUtils}. Glue reads go through {@link
+ * AsyncCatalogClient}, so reading the next page, converting the current page and writing the
+ * previous page overlap instead of running one after another.
+ *
+ * <p>The thrift IMetaStoreClient is neither thread safe nor asynchronous, hence every call on a
+ * dest client is executed on <code>writeExecutor</code> and the writes for one sync are chained one
+ * after another. No thread waits for a glue read.
+ */
+@Slf4j
+public final class AsyncMetastoreSyncUtils {
+
+    /** Prevent the class to be instanced. */
+    private AsyncMetastoreSyncUtils() {}
+
+    /**
+     * The pages read but not written yet of a sync, the reads wait for the writes beyond it so a
+     * slow dest doesn't pile the whole table up in memory.
+     */
+    private static final int MAX_PAGES_IN_FLIGHT = 4;
+
+    /**
+     * Sync the glue table to dest metastore asynchronously. See {@link MetastoreSyncUtils#syncTable}.
+     * The dest table is read while the source table is read from glue, and the source database is
+     * only read when the dest database doesn't exist.
+     */
+    public static CompletableFuture<Void> syncTable(
+            final AsyncCatalogClient source,
+            final IMetaStoreClient dest,
+            final String srcDatabaseName,
+            final String srcTableName,
+            final String destDatabaseName,
+            final String destTableName,
+            final Executor writeExecutor) {
+        CompletableFuture<Table> sourceTableFuture =
+                source.getTable(srcDatabaseName, srcTableName)
+                        .thenApply(table -> CatalogToHiveConverter.convertTable(table, srcDatabaseName));
+        CompletableFuture<Table> destTableFuture =
+                CompletableFuture.supplyAsync(
+                        () -> {
+                            try {
+                                return MetastoreSyncUtils.getTableIfExists(dest, destDatabaseName, destTableName);
+                            } catch (TException e) {
+                                throw new CompletionException(e);
+                            }
+                        },
+                        writeExecutor);
+        return destTableFuture
+                .thenCompose(
+                        destTable -> {
+                            if (destTable != null) {
+                                return CompletableFuture.completedFuture((Database) null);
+                            }
+                            return CompletableFuture.supplyAsync(
+                                            () -> {
+                                                try {
+                                                    return MetastoreSyncUtils.databaseExists(dest, destDatabaseName);
+                                                } catch (TException e) {
+                                                    throw new CompletionException(e);
+                                                }
+                                            },
+                                            writeExecutor)
+                                    .thenCompose(
+                                            exists ->
+                                                    exists
+                                                            ? CompletableFuture.completedFuture((Database) null)
+                                                            : source.getDatabase(srcDatabaseName)
+                                                                    .thenApply(CatalogToHiveConverter::convertDatabase));
+                        })
+                .thenCombineAsync(
+                        sourceTableFuture,
+                        (sourceDatabase, sourceTable) -> {
+                            try {
+                                if (sourceDatabase != null) {
+                                    MetastoreSyncUtils.createDatabase(dest, sourceDatabase, destDatabaseName);
+                                }
+                                MetastoreSyncUtils.syncTable(
+                                        sourceTable, destTableFuture.join(), dest, destDatabaseName, destTableName);
+                                return null;
+                            } catch (TException | MetastoreException e) {
+                                throw new CompletionException(e);
+                            }
+                        },
+                        writeExecutor);
+    }
+
+    /** Sync all partitions of the glue table to dest metastore asynchronously. */
+    public static CompletableFuture<Void> syncAllPartitions(
+            final AsyncCatalogClient source,
+            final IMetaStoreClient dest,
+            final String srcDatabaseName,
+            final String srcTableName,
+            final String destDatabaseName,
+            final String destTableName,
+            final Executor convertExecutor,
+            final Executor writeExecutor) {
+        return syncPartitions(
+                source,
+                dest,
+                srcDatabaseName,
+                srcTableName,
+                destDatabaseName,
+                destTableName,
+                null,
+                convertExecutor,
+                writeExecutor);
+    }
+
+    /**
+     * Sync partitions which match the patterns in <code>partVals</code> of the glue table to dest
+     * metastore asynchronously. Each page is converted as soon as it arrives, and written once the
+     * previous page has been written. At most {@link #MAX_PAGES_IN_FLIGHT} pages of each read are
+     * held in memory.
+     *
+     * @param partVals the partition patterns, null or empty means all partitions.
+     * @param convertExecutor the executor of the page conversions, which list the file system if
+     *     the partition locations are verified.
+     * @return completed when all matched partitions are written to dest.
+     */
+    public static CompletableFuture<Void> syncPartitions(
+            final AsyncCatalogClient source,
+            final IMetaStoreClient dest,
+            final String srcDatabaseName,
+            final String srcTableName,
+            final String destDatabaseName,
+            final String destTableName,
+            final Map<String, String> partVals,
+            final Executor convertExecutor,
+            final Executor writeExecutor) {
+        List<String> expressions =
+                MapUtils.isEmpty(partVals)
+                        ? Collections.singletonList(null)
+                        : new PartitionFilterCompiler().compile(partVals);
+        SerialWriter writer = new SerialWriter(dest, writeExecutor);
+        AtomicInteger count = new AtomicInteger();
+        List<CompletableFuture<Void>> readers = Lists.newArrayList();
+        // The compiled expressions select disjoint partitions, so they are read concurrently.
+        for (String expression : expressions) {
+            readers.add(
+                    source.forEachPartitionPage(
+                            srcDatabaseName,
+                            srcTableName,
+                            expression,
+                            null,
+                            MAX_PAGES_IN_FLIGHT,
+                            page ->
+                                    CompletableFuture.supplyAsync(
+                                                    () -> {
+                                                        try {
+                                                            return MetastoreSyncUtils.preparePartitions(
+                                                                    CatalogToHiveConverter.convertPartitions(page),
+                                                                    destDatabaseName,
+                                                                    destTableName);
+                                                        } catch (MetastoreException e) {
+                                                            throw new CompletionException(e);
+                                                        }
+                                                    },
+                                                    convertExecutor)
+                                            .thenCompose(partitions -> {
+                                                count.addAndGet(partitions.size());
+                                                return writer.write(partitions);
+                                            })));
+        }
+        return CompletableFuture.allOf(readers.toArray(new CompletableFuture<?>[0]))
+                .thenRun(() -> log.info("There are " + count.get() + " partitions synced."));
+    }
+
+    /** Chain the writes to one dest client, so the client is never used concurrently. */
+    private static class SerialWriter {
+        private final IMetaStoreClient dest;
+        private final Executor executor;
+        private CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+        /** Whether the first write is prepared: the dest table is read if it's a hive metastore. */
+        private boolean destChecked;
+        /** The partition keys of the dest table, read by the first write of a hive dest. */
+        private List<FieldSchema> partitionKeys;
+        /** The partition names in dest, listed by the first write of a hive dest. */
+        private Set<String> existingPartitionNames;
+
+        SerialWriter(IMetaStoreClient dest, Executor executor) {
+            this.dest = dest;
+            this.executor = executor;
+        }
+
+        synchronized CompletableFuture<Void> write(List<Partition> partitions) {
+            tail =
+                    tail.thenRunAsync(
+                            () -> {
+                                try {
+                                    if (partitions.isEmpty()) {
+                                        return;
+                                    }
+                                    if (!destChecked) {
+                                        destChecked = true;
+                                        Partition first = partitions.get(0);
+                                        if (MetastoreClientFactory.isHiveMetastoreClient(dest)) {
+                                            partitionKeys =
+                                                    MetastoreSyncUtils.getPartitionKeys(dest, first.getDbName(), first.getTableName());
+                                            existingPartitionNames =
+                                                    MetastoreSyncUtils.getPartitionNames(dest, first.getDbName(), first.getTableName());
+                                        }
+                                    }
+                                    MetastoreSyncUtils.addPartitions(dest, partitions, partitionKeys, existingPartitionNames);
+                                } catch (MetastoreException e) {
+                                    throw new CompletionException(e);
+                                }
+                            },
+                            executor);
+            return tail;
+        }
+    }
+}
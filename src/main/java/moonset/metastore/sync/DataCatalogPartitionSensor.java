@@ -1,31 +1,59 @@
 package moonset.metastore.sync;
 
+import moonset.metastore.sync.catalog.AsyncCatalogClient;
 import moonset.metastore.sync.catalog.CatalogClient;
 import moonset.metastore.sync.exception.MetastoreConnectionException;
-import moonset.metastore.sync.util.MetastoreRequestParamGenerator;
+import moonset.metastore.sync.util.PartitionFilterCompiler;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.hadoop.hive.metastore.IMetaStoreClient;
+import org.apache.hadoop.hive.metastore.api.FieldSchema;
 import org.apache.hadoop.hive.metastore.api.Partition;
 
 /**
  * Schedule tools like EDP, DJS need to check if the partition is ready, to trigger the following
  * EMR logic. This class provide a method to achieve this goal.
+ *
+ * <p>Build the clients with {@link moonset.metastore.sync.ratelimit.GlueRateGovernor.Priority#HIGH},
+ * so the sensors don't starve behind the backfills sharing the glue quota of the process.
  */
 public class DataCatalogPartitionSensor {
 
     private final IMetaStoreClient dataCatalogClient;
 
+    private final AsyncCatalogClient asyncCatalogClient;
+
+    private final PartitionFilterCompiler filterCompiler = new PartitionFilterCompiler();
+
     /**
      * Construtor with a IMetaStoreClient.
      *
      * @param dataCatalogClient a IMetaStoreClient for the target metastore.
      */
     public DataCatalogPartitionSensor(final IMetaStoreClient dataCatalogClient) {
+        this(dataCatalogClient, null);
+    }
+
+    /**
+     * Construtor with a IMetaStoreClient and an AsyncCatalogClient.
+     *
+     * @param dataCatalogClient a IMetaStoreClient for the target metastore.
+     * @param asyncCatalogClient an AsyncCatalogClient for the same metastore, required by {@link
+     *     #isPartitionReadyAsync}.
+     */
+    public DataCatalogPartitionSensor(
+            final IMetaStoreClient dataCatalogClient, final AsyncCatalogClient asyncCatalogClient) {
         this.dataCatalogClient = dataCatalogClient;
+        this.asyncCatalogClient = asyncCatalogClient;
     }
     /**
      * Check if any new partition which need to sync from edx to s3.
@@ -57,6 +85,9 @@ public class DataCatalogPartitionSensor {
      * partition existed for each of those 6 sub-conditions, we mark ready for input
      * "foo1=1;foo2=2,3,4;foo3=5,6".
      *
+     * <p>The matched partitions are listed by the fewest expressions compiled from the input, and
+     * the sub-conditions are generated lazily and checked against them locally.
+     *
      * @param dbName the database name.
      * @param tableName the table name.
      * @param partVals a key value pairs representation of partition
@@ -69,15 +100,34 @@ public class DataCatalogPartitionSensor {
             throws MetastoreConnectionException {
         try {
             // We suppose input args had already been verified in command line entrance
-            List<String> partitionFilters =
-                    MetastoreRequestParamGenerator.generatePartitionFilterList(partVals);
+            List<FieldSchema> partitionKeys = dataCatalogClient.getTable(dbName, tableName).getPartitionKeys();
+            List<Integer> positions = Lists.newArrayList();
+            for (String key : filterCompiler.getKeys(partVals)) {
+                int position = -1;
+                for (int i = 0; i < partitionKeys.size(); i++) {
+                    if (partitionKeys.get(i).getName().equalsIgnoreCase(key)) {
+                        position = i;
+                    }
+                }
+                if (position < 0) {
+                    throw new IllegalArgumentException("The " + key + " isn't a partition key of " + dbName + "." + tableName);
+                }
+                positions.add(position);
+            }
 
-            for (String partitionFilter : partitionFilters) {
-                if (!isPartitionReady(dbName, tableName, partitionFilter)) {
+            Set<List<String>> readyValues = Sets.newHashSet();
+            for (Partition partition : filterCompiler.listPartitionsByFilter(dataCatalogClient, dbName, tableName, partVals)) {
+                List<String> values = Lists.newArrayList();
+                for (int position : positions) {
+                    values.add(partition.getValues().get(position));
+                }
+                readyValues.add(values);
+            }
+            for (List<String> subCondition : filterCompiler.expand(partVals)) {
+                if (!readyValues.contains(subCondition)) {
                     return false;
                 }
             }
-
             return true;
         } catch (Exception e) {
             throw new MetastoreConnectionException("Connect Metastore in error", e);
@@ -115,4 +165,46 @@ public class DataCatalogPartitionSensor {
             throw new MetastoreConnectionException("Connect Metastore in error", e);
         }
     }
+
+    /**
+     * The non-blocking version of {@link #isPartitionReady(String, String, Map)}. All
+     * sub-conditions are checked concurrently.
+     *
+     * @param dbName the database name.
+     * @param tableName the table name.
+     * @param partVals a key value pairs representation of partition
+     * @return a future of true if partition can be found for every sub-condition, otherwise false.
+     *     It completes exceptionally with MetastoreConnectionException if connects AWS Data Catalog
+     *     failure.
+     */
+    public CompletableFuture<Boolean> isPartitionReadyAsync(
+            final String dbName, final String tableName, final Map<String, String> partVals) {
+        if (asyncCatalogClient == null) {
+            throw new IllegalStateException("The sensor is constructed without an AsyncCatalogClient.");
+        }
+        List<String> keys = filterCompiler.getKeys(partVals);
+        CompletableFuture<Boolean> ready = CompletableFuture.completedFuture(true);
+        for (List<String> subCondition : filterCompiler.expand(partVals)) {
+            Map<String, String> subPartVals = Maps.newHashMap();
+            for (int i = 0; i < keys.size(); i++) {
+                subPartVals.put(keys.get(i), subCondition.get(i));
+            }
+            String partitionFilter = filterCompiler.compile(subPartVals).get(0);
+            ready =
+                    ready.thenCombine(
+                            asyncCatalogClient.hasPartition(dbName, tableName, partitionFilter),
+                            (left, right) -> left && right);
+        }
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        ready.whenComplete(
+                (value, e) -> {
+                    if (e == null) {
+                        result.complete(value);
+                    } else {
+                        result.completeExceptionally(
+                                new MetastoreConnectionException("Connect Metastore in error", e));
+                    }
+                });
+        return result;
+    }
 }
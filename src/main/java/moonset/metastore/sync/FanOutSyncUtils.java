@@ -0,0 +1,150 @@
+package moonset.metastore.sync;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.collections.MapUtils;
+import org.apache.hadoop.hive.metastore.IMetaStoreClient;
+import org.apache.thrift.TBase;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import moonset.metastore.sync.catalog.CatalogClient;
+import moonset.metastore.sync.catalog.CompactPartitionSet;
+import moonset.metastore.sync.exception.MetastoreException;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Sync one source table to many dest metastores, such as data catalogs in several regions. The
+ * source is read only once no matter how many dests there are, and each dest is written by its own
+ * thread, so a slow or throttled dest doesn't stall the others.
+ */
+@Slf4j
+public final class FanOutSyncUtils {
+
+    /** Prevent the class to be instanced. */
+    private FanOutSyncUtils() {}
+
+    /** The source reads which are cached and shared by all dests. */
+    private static final ImmutableSet<String> MEMOIZED_METHODS =
+            ImmutableSet.of("getDatabase", "getTable", "tableExists");
+
+    /**
+     * Sync the table, and optionally its partitions, from source metastore to every dest metastore.
+     * A failed dest doesn't stop the others; the failures are reported together at the end.
+     *
+     * @param dests the dest metastores keyed by a readable name used in logs.
+     * @param partVals the partition patterns to sync, null or empty means no partition unless
+     *     <code>allPartitions</code> is set.
+     * @param allPartitions sync all partitions.
+     * @throws MetastoreException if the source can't be read, or any dest failed.
+     */
+    public static void sync(
+            final IMetaStoreClient source,
+            final Map<String, IMetaStoreClient> dests,
+            final String srcDatabaseName,
+            final String srcTableName,
+            final String destDatabaseName,
+            final String destTableName,
+            final Map<String, String> partVals,
+            final boolean allPartitions)
+            throws MetastoreException {
+        CatalogClient client = new CatalogClient(source);
+        CompactPartitionSet partitions = new CompactPartitionSet(srcDatabaseName, srcTableName);
+        if (allPartitions) {
+            partitions = client.getAllPartitionsCompact(srcDatabaseName, srcTableName);
+        } else if (MapUtils.isNotEmpty(partVals)) {
+            partitions.addAll(client.getPartitions(srcDatabaseName, srcTableName, partVals));
+        }
+        // The prepared partitions are shared by all dest writers, each expands its own batches.
+        final CompactPartitionSet preparedPartitions =
+                MetastoreSyncUtils.preparePartitions(partitions, destDatabaseName, destTableName);
+        log.info("There are " + preparedPartitions.size() + " partitions needed to sync to " + dests.size() + " dests.");
+
+        final IMetaStoreClient memoizedSource = memoize(source);
+        ExecutorService executor = Executors.newFixedThreadPool(dests.size());
+        try {
+            Map<String, Future<?>> writers = Maps.newLinkedHashMap();
+            for (Map.Entry<String, IMetaStoreClient> dest : dests.entrySet()) {
+                writers.put(
+                        dest.getKey(),
+                        executor.submit(
+                                () -> {
+                                    MetastoreSyncUtils.syncTable(
+                                            memoizedSource, dest.getValue(), srcDatabaseName, srcTableName, destDatabaseName, destTableName);
+                                    if (preparedPartitions.size() > 0) {
+                                        MetastoreSyncUtils.addPartitions(dest.getValue(), preparedPartitions);
+                                    }
+                                    log.info("The dest " + dest.getKey() + " is synced successfully.");
+                                    return null;
+                                }));
+            }
+
+            List<String> failedDests = Lists.newArrayList();
+            Throwable firstFailure = null;
+            for (Map.Entry<String, Future<?>> writer : writers.entrySet()) {
+                try {
+                    writer.getValue().get();
+                } catch (ExecutionException e) {
+                    log.error("Failed to sync dest " + writer.getKey(), e.getCause());
+                    failedDests.add(writer.getKey());
+                    firstFailure = firstFailure == null ? e.getCause() : firstFailure;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new MetastoreException("interrupted while syncing dests", e);
+                }
+            }
+            if (!failedDests.isEmpty()) {
+                throw new MetastoreException("failed to sync dests " + failedDests, firstFailure);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Wrap the source client, so the table and database are fetched only once for all dests, and
+     * the calls from the dest writers are serialized since the client isn't thread safe. A deep
+     * copy is returned each time, because syncTable modifies the fetched objects.
+     */
+    private static IMetaStoreClient memoize(final IMetaStoreClient source) {
+        final Map<List<Object>, Object> cache = Maps.newHashMap();
+        return (IMetaStoreClient)
+                Proxy.newProxyInstance(
+                        IMetaStoreClient.class.getClassLoader(),
+                        new Class<?>[] {IMetaStoreClient.class},
+                        (proxy, method, args) -> {
+                            synchronized (cache) {
+                                List<Object> key = Lists.newArrayList();
+                                key.add(method.getName());
+                                if (args != null) {
+                                    key.addAll(Arrays.asList(args));
+                                }
+                                Object result;
+                                if (MEMOIZED_METHODS.contains(method.getName()) && cache.containsKey(key)) {
+                                    result = cache.get(key);
+                                } else {
+                                    try {
+                                        result = method.invoke(source, args);
+                                    } catch (InvocationTargetException e) {
+                                        throw e.getCause();
+                                    }
+                                    if (MEMOIZED_METHODS.contains(method.getName())) {
+                                        cache.put(key, result);
+                                    }
+                                }
+                                return result instanceof TBase ? ((TBase<?, ?>) result).deepCopy() : result;
+                            }
+                        });
+    }
+}
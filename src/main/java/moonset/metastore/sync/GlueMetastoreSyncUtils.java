@@ -0,0 +1,193 @@
+package moonset.metastore.sync;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.apache.commons.collections.MapUtils;
+
+import com.amazonaws.glue.catalog.converters.GlueInputConverter;
+import com.amazonaws.services.glue.model.EntityNotFoundException;
+import com.amazonaws.services.glue.model.Partition;
+import com.amazonaws.services.glue.model.PartitionInput;
+import com.amazonaws.services.glue.model.Segment;
+import com.amazonaws.services.glue.model.Table;
+import com.amazonaws.services.glue.model.TableInput;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import moonset.metastore.sync.catalog.AsyncCatalogClient;
+import moonset.metastore.sync.exception.MetastoreException;
+import moonset.metastore.sync.util.PartitionFilterCompiler;
+import moonset.metastore.sync.util.TableUtils;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The utility class to replicate tables from one glue data catalog to another, such as to another
+ * region or account. Unlike {@link MetastoreSyncUtils}, the objects never pass through the hive
+ * thrift model: the partitions in GetPartitions pages are turned into PartitionInputs and sent to
+ * BatchCreatePartition directly.
+ */
+@Slf4j
+public final class GlueMetastoreSyncUtils {
+
+    /** Prevent the class to be instanced. */
+    private GlueMetastoreSyncUtils() {}
+
+    /** The number of segments to read in parallel, which is the max value glue accepts. */
+    private static final int TOTAL_SEGMENTS = 10;
+
+    /**
+     * The pages read but not written yet of each segment, the reads wait for the writes beyond it
+     * so a throttled dest doesn't pile the whole source table up in memory.
+     */
+    private static final int MAX_PAGES_IN_FLIGHT = 2;
+
+    /**
+     * Sync table from source glue catalog to dest glue catalog. If the table exists in destination,
+     * we only update table properties, which is the same policy as {@link
+     * MetastoreSyncUtils#syncTable}. The dest database must exist, since we prohibit to create
+     * database in aws data catalog.
+     */
+    public static void syncTable(
+            final AsyncCatalogClient source,
+            final AsyncCatalogClient dest,
+            final String srcDatabaseName,
+            final String srcTableName,
+            final String destDatabaseName,
+            final String destTableName)
+            throws MetastoreException {
+        try {
+            CompletableFuture<Table> sourceTable =
+                    source.getTable(srcDatabaseName, srcTableName);
+            CompletableFuture<Table> destTable =
+                    dest.getDatabase(destDatabaseName)
+                            .thenCompose(database -> dest.getTableIfExists(destDatabaseName, destTableName));
+            sourceTable
+                    .thenCombine(destTable, (src, dst) -> {
+                        if (dst != null) {
+                            log.info("The table " + destTableName + " already exists in destination catalog, and we only need to sync table properties.");
+                            Map<String, String> parameters = Maps.newHashMap();
+                            if (dst.getParameters() != null) {
+                                parameters.putAll(dst.getParameters());
+                            }
+                            if (src.getParameters() != null) {
+                                parameters.putAll(src.getParameters());
+                            }
+                            validateExternal(parameters, dst.getTableType());
+                            if (parameters.equals(dst.getParameters() == null ? Collections.emptyMap() : dst.getParameters())) {
+                                // Each update makes a new table version in glue.
+                                log.info("The table properties are unchanged, skip updating them.");
+                                return CompletableFuture.<Void>completedFuture(null);
+                            }
+                            TableInput tableInput = GlueInputConverter.convertToTableInput(dst);
+                            return dest.updateTable(destDatabaseName, tableInput.withParameters(parameters));
+                        }
+                        log.info("The table " + destTableName + " doesn't exist in destination catalog, and start to sync it.");
+                        TableInput tableInput = GlueInputConverter.convertToTableInput(src).withName(destTableName);
+                        Map<String, String> parameters = Maps.newHashMap();
+                        if (src.getParameters() != null) {
+                            parameters.putAll(src.getParameters());
+                        }
+                        if (!parameters.containsKey(TableUtils.ORIGINAL_CREATE_TIME) && src.getCreateTime() != null) {
+                            parameters.put(TableUtils.ORIGINAL_CREATE_TIME, String.valueOf(src.getCreateTime().getTime() / 1000));
+                        }
+                        validateExternal(parameters, src.getTableType());
+                        return dest.createTable(destDatabaseName, tableInput.withParameters(parameters));
+                    })
+                    .thenCompose(write -> write)
+                    .join();
+            log.info("The table " + destTableName + " is synced successfully.");
+        } catch (CompletionException e) {
+            Throwable cause = AsyncCatalogClient.unwrap(e);
+            if (cause instanceof MetastoreException) {
+                throw (MetastoreException) cause;
+            }
+            if (cause instanceof EntityNotFoundException) {
+                throw new MetastoreException(
+                        "The database " + destDatabaseName + " or table " + srcDatabaseName + "." + srcTableName
+                                + " doesn't exist. Prohibit to create database in aws data catalog.", cause);
+            }
+            throw new MetastoreException("failed to sync table", cause);
+        }
+    }
+
+    /**
+     * Prohibit to sync a non-external table, like {@link MetastoreSyncUtils#syncTable} does. A glue
+     * table may lack the EXTERNAL parameter, and its table type decides then.
+     */
+    private static void validateExternal(final Map<String, String> parameters, final String tableType) {
+        String external = parameters.get(TableUtils.EXTERNAL_PARAM);
+        if (external == null ? !TableUtils.EXTERNAL_TABLE_TYPE.equals(tableType) : !"TRUE".equalsIgnoreCase(external)) {
+            throw new CompletionException(
+                    new MetastoreException("It's dangerous to process a non-external table. Prohibit to do so."));
+        }
+    }
+
+    /**
+     * Sync partitions which match the patterns in <code>partVals</code> from source glue catalog to
+     * dest glue catalog. The source table is read in {@link #TOTAL_SEGMENTS} parallel segments for
+     * each expression compiled from the patterns, and each page is written to dest as soon as it is
+     * read. At most {@link #MAX_PAGES_IN_FLIGHT} pages of each segment are held in memory.
+     *
+     * @param partVals the partition patterns, null or empty means all partitions.
+     */
+    public static void syncPartitions(
+            final AsyncCatalogClient source,
+            final AsyncCatalogClient dest,
+            final String srcDatabaseName,
+            final String srcTableName,
+            final String destDatabaseName,
+            final String destTableName,
+            final Map<String, String> partVals)
+            throws MetastoreException {
+        List<String> expressions =
+                MapUtils.isEmpty(partVals)
+                        ? Collections.singletonList(null)
+                        : new PartitionFilterCompiler().compile(partVals);
+        AtomicInteger count = new AtomicInteger();
+        List<CompletableFuture<Void>> segments = Lists.newArrayList();
+        for (int i = 0; i < TOTAL_SEGMENTS * expressions.size(); i++) {
+            String expression = expressions.get(i / TOTAL_SEGMENTS);
+            segments.add(
+                    source.forEachPartitionPage(
+                            srcDatabaseName,
+                            srcTableName,
+                            expression,
+                            new Segment().withSegmentNumber(i % TOTAL_SEGMENTS).withTotalSegments(TOTAL_SEGMENTS),
+                            MAX_PAGES_IN_FLIGHT,
+                            page -> {
+                                List<PartitionInput> partitionInputs =
+                                        page.stream()
+                                                .map(GlueMetastoreSyncUtils::toPartitionInput)
+                                                .collect(Collectors.toList());
+                                return dest.batchCreatePartitions(destDatabaseName, destTableName, partitionInputs, true)
+                                        .thenRun(() -> log.info("There are " + count.addAndGet(partitionInputs.size()) + " partitions synced."));
+                            }));
+        }
+        try {
+            CompletableFuture.allOf(segments.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            throw new MetastoreException("failed to sync partitions", AsyncCatalogClient.unwrap(e));
+        }
+        log.info("There are " + count.get() + " partitions synced in total.");
+    }
+
+    /** Convert the partition to PartitionInput, and keep the original create time as Hive sync does. */
+    private static PartitionInput toPartitionInput(final Partition partition) {
+        PartitionInput partitionInput = GlueInputConverter.convertToPartitionInput(partition);
+        Map<String, String> parameters = Maps.newHashMap();
+        if (partition.getParameters() != null) {
+            parameters.putAll(partition.getParameters());
+        }
+        if (!parameters.containsKey(TableUtils.ORIGINAL_CREATE_TIME) && partition.getCreationTime() != null) {
+            parameters.put(TableUtils.ORIGINAL_CREATE_TIME, String.valueOf(partition.getCreationTime().getTime() / 1000));
+        }
+        return partitionInput.withParameters(parameters);
+    }
+}
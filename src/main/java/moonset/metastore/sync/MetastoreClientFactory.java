@@ -1,7 +1,13 @@
 package moonset.metastore.sync;
 
+import moonset.metastore.sync.balance.BalancedMetastoreClient;
 import moonset.metastore.sync.exception.MetastoreException;
+import moonset.metastore.sync.ratelimit.GlueRateGovernor;
+import com.amazonaws.glue.catalog.metastore.AWSCredentialsProviderFactory;
 import com.amazonaws.glue.catalog.metastore.AWSGlueClientFactory;
+import com.amazonaws.glue.catalog.metastore.DefaultAWSCredentialsProviderFactory;
+import com.amazonaws.services.glue.AWSGlueAsync;
+import com.amazonaws.services.glue.AWSGlueAsyncClientBuilder;
 import com.jcraft.jsch.JSchException;
 import com.jcraft.jsch.Session;
 
@@ -10,21 +16,260 @@ import org.apache.hadoop.hive.conf.HiveConf;
 import org.apache.hadoop.hive.metastore.HiveMetaStoreClient;
 import org.apache.hadoop.hive.metastore.IMetaStoreClient;
 import org.apache.hadoop.hive.metastore.api.MetaException;
+import org.apache.hadoop.util.ReflectionUtils;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 /**
  * This class is a factory to get IMetastoreClient isntances in different ways. It reads common
  * configuration from brazil config.
+ *
+ * <p>Parsing the hive configuration files is the most expensive part of building a client, so a
+ * factory parses each of them once on its first use, and every client gets a copy. A lazy client
+ * is built on its first call, so a client which is never called never connects.
+ *
+ * <p>A factory created with prefetch parses the configurations in background from its
+ * construction, and starts to build each lazy client in background once it's returned, so the
+ * caller only waits for what isn't ready on the first call. It suits the tools which call all
+ * their clients anyway.
  */
 public class MetastoreClientFactory {
     public static final String AWS_GLUE_REGION = "aws.glue.region";
     public static final String EMR_HIVE_SITE_XML_PATH = "file:///etc/hive/conf/hive-site.xml";
     private final static int HIVE_METASTORE_PORT = 9083;
 
+    /** The key of the configuration without an extra hive-site.xml. */
+    private static final String DEFAULT_CONF = "";
+
+    private static final ExecutorService BOOTSTRAP_EXECUTOR =
+            Executors.newCachedThreadPool(
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("metastore-client-bootstrap-%d").build());
+
+    private final ConcurrentMap<String, CompletableFuture<HiveConf>> confs = Maps.newConcurrentMap();
+
+    private final boolean prefetch;
+
     /**
-     * Constructor.
+     * Constructor, which parses the configurations and builds the lazy clients on their first use.
      */
     public MetastoreClientFactory() {
+        this(false);
+    }
+
+    /**
+     * @param prefetch whether to parse the configurations and build the lazy clients in background
+     *     ahead of their first use.
+     */
+    public MetastoreClientFactory(boolean prefetch) {
+        this.prefetch = prefetch;
+        if (prefetch) {
+            loadConf(DEFAULT_CONF);
+            loadConf(EMR_HIVE_SITE_XML_PATH);
+        }
+    }
+
+    /**
+     * Get a copy of the hive configuration with the hive-site.xml added, which is parsed only once
+     * per factory.
+     *
+     * @param hiveSiteXmlPath the path to hive-site.xml, null means the one on the classpath only.
+     */
+    public HiveConf getConf(String hiveSiteXmlPath) {
+        try {
+            return new HiveConf(loadConf(hiveSiteXmlPath == null ? DEFAULT_CONF : hiveSiteXmlPath).join());
+        } catch (CompletionException e) {
+            throw new IllegalStateException("can't load the hive configuration " + hiveSiteXmlPath, e.getCause());
+        }
+    }
+
+    private CompletableFuture<HiveConf> loadConf(String hiveSiteXmlPath) {
+        CompletableFuture<HiveConf> conf = confs.get(hiveSiteXmlPath);
+        if (conf != null) {
+            return conf;
+        }
+        if (prefetch) {
+            return confs.computeIfAbsent(
+                    hiveSiteXmlPath, path -> CompletableFuture.supplyAsync(() -> parseConf(path), BOOTSTRAP_EXECUTOR));
+        }
+        // Parse on the calling thread, the callers racing on the same path wait for the first one.
+        CompletableFuture<HiveConf> parsed = new CompletableFuture<>();
+        conf = confs.putIfAbsent(hiveSiteXmlPath, parsed);
+        if (conf != null) {
+            return conf;
+        }
+        try {
+            parsed.complete(parseConf(hiveSiteXmlPath));
+        } catch (RuntimeException e) {
+            parsed.completeExceptionally(e);
+        }
+        return parsed;
+    }
+
+    private static HiveConf parseConf(String path) {
+        HiveConf conf = new HiveConf();
+        if (!DEFAULT_CONF.equals(path)) {
+            conf.addResource(new Path(path));
+        }
+        // Parse the resources now, the copies share the parsed properties.
+        conf.size();
+        return conf;
+    }
+
+    /**
+     * Get a hive metastore client on EMR, which connects on the first call, or in background if the
+     * factory prefetches. A failure of the connection is thrown by the calls as a {@link
+     * MetaException}.
+     */
+    public IMetaStoreClient getLazyHiveMetastoreClient(final String hiveSiteXmlPath) {
+        return lazy(() -> getHiveMetastoreClient(hiveSiteXmlPath));
+    }
+
+    /** Get a thrift metastore client by an uri, which connects lazily like the above. */
+    public IMetaStoreClient getLazyThriftMetastoreClient(final String uri) {
+        return lazy(() -> getThriftMetastoreClient(uri));
+    }
+
+    /**
+     * Get a datacatalog client on EMR, which is built on the first call, or in background if the
+     * factory prefetches.
+     */
+    public IMetaStoreClient getLazyDataCatalogClient(final String region) {
+        return lazy(() -> getDataCatalogClient(region));
+    }
+
+    /**
+     * The actual client behind a lazy client, which waits for the client to be built. Other
+     * clients are returned as they are.
+     *
+     * @throws MetastoreException if the lazy client failed to be built.
+     */
+    public static IMetaStoreClient unwrap(IMetaStoreClient client) throws MetastoreException {
+        if (Proxy.isProxyClass(client.getClass())
+                && Proxy.getInvocationHandler(client) instanceof LazyClientHandler) {
+            return ((LazyClientHandler) Proxy.getInvocationHandler(client)).get();
+        }
+        return client;
+    }
+
+    /**
+     * Whether the client, or the client behind a lazy client, is a hive metastore client. A client
+     * balanced over several hive metastores is one as well.
+     */
+    public static boolean isHiveMetastoreClient(IMetaStoreClient client) throws MetastoreException {
+        return BalancedMetastoreClient.isBalanced(client) || unwrap(client) instanceof HiveMetaStoreClient;
+    }
+
+    /** Build a client. */
+    private interface ClientBuilder {
+        IMetaStoreClient build() throws MetastoreException;
+    }
+
+    private IMetaStoreClient lazy(final ClientBuilder builder) {
+        LazyClientHandler handler = new LazyClientHandler(builder);
+        if (prefetch) {
+            handler.start(BOOTSTRAP_EXECUTOR);
+        }
+        return (IMetaStoreClient)
+                Proxy.newProxyInstance(
+                        IMetaStoreClient.class.getClassLoader(), new Class<?>[] {IMetaStoreClient.class}, handler);
+    }
+
+    /** Build the client on the first call, or in background once started, and forward the calls to it. */
+    private static final class LazyClientHandler implements InvocationHandler {
+        private final ClientBuilder builder;
+        private CompletableFuture<IMetaStoreClient> client;
+
+        private LazyClientHandler(ClientBuilder builder) {
+            this.builder = builder;
+        }
+
+        /** Start to build the client on the executor, unless it's started already. */
+        private synchronized CompletableFuture<IMetaStoreClient> start(Executor executor) {
+            if (client == null) {
+                client =
+                        CompletableFuture.supplyAsync(
+                                () -> {
+                                    try {
+                                        return builder.build();
+                                    } catch (MetastoreException e) {
+                                        throw new CompletionException(e);
+                                    }
+                                },
+                                executor);
+            }
+            return client;
+        }
+
+        private synchronized CompletableFuture<IMetaStoreClient> getStarted() {
+            return client;
+        }
+
+        private IMetaStoreClient get() throws MetastoreException {
+            try {
+                // Build on the calling thread unless it's started in background.
+                return start(Runnable::run).join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof MetastoreException
+                        ? (MetastoreException) e.getCause()
+                        : new MetastoreException("can't new a metastoreclient.", e.getCause());
+            }
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if ("close".equals(method.getName())) {
+                CompletableFuture<IMetaStoreClient> started = getStarted();
+                if (started == null) {
+                    // The client is never built.
+                    return null;
+                }
+                if (!started.isDone()) {
+                    // Don't wait for a client which is never used, close it once it's built.
+                    started.thenAccept(IMetaStoreClient::close);
+                    return null;
+                }
+            }
+            if (method.getDeclaringClass() == Object.class) {
+                switch (method.getName()) {
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    default:
+                        return "LazyMetaStoreClient@" + Integer.toHexString(System.identityHashCode(proxy));
+                }
+            }
+            IMetaStoreClient target;
+            try {
+                target = get();
+            } catch (MetastoreException e) {
+                MetaException metaException = new MetaException(e.getMessage());
+                metaException.initCause(e.getCause());
+                throw metaException;
+            }
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
     }
 
     /**
@@ -46,7 +291,7 @@ public class MetastoreClientFactory {
      */
     public IMetaStoreClient getThriftMetastoreClient(String host, int port) throws MetastoreException {
         try {
-            HiveConf conf = new HiveConf();
+            HiveConf conf = getConf(null);
             conf.setVar(HiveConf.ConfVars.METASTOREURIS, String.format("thrift://%s:%d", host, port));
             return new HiveMetaStoreClient(conf);
         } catch (MetaException e) {
@@ -54,6 +299,17 @@ public class MetastoreClientFactory {
         }
     }
 
+    /**
+     * To access the metastore via thrift by an uri like thrift://host:9083. The default metastore
+     * port is used if the uri doesn't contain one.
+     */
+    public IMetaStoreClient getThriftMetastoreClient(String uri) throws MetastoreException {
+        URI metastoreUri = URI.create(uri);
+        return getThriftMetastoreClient(
+                metastoreUri.getHost(),
+                metastoreUri.getPort() == -1 ? HIVE_METASTORE_PORT : metastoreUri.getPort());
+    }
+
     /**
      * Get a hivemetastore client on EMR directly, so we don't need to worry about the crendentials.
      *
@@ -62,16 +318,48 @@ public class MetastoreClientFactory {
      * @throws MetastoreException if failed to get an IMetaStoreClient istance.
      */
     public IMetaStoreClient getHiveMetastoreClient(String hiveSiteXmlPath) throws MetastoreException {
+        return getHiveMetastoreClient(hiveSiteXmlPath, null);
+    }
+
+    /**
+     * Get a hivemetastore client on EMR connected to the given server of hive.metastore.uris.
+     *
+     * @param uri the metastore uri, null means the ones in hive-site.xml.
+     */
+    private IMetaStoreClient getHiveMetastoreClient(String hiveSiteXmlPath, String uri) throws MetastoreException {
         try {
-            HiveConf conf = new HiveConf();
-            conf.addResource(new Path(hiveSiteXmlPath));
+            HiveConf conf = getConf(hiveSiteXmlPath);
             conf.setTimeVar(HiveConf.ConfVars.METASTORE_CLIENT_SOCKET_TIMEOUT, 6000, TimeUnit.SECONDS);
+            if (uri != null) {
+                conf.setVar(HiveConf.ConfVars.METASTOREURIS, uri);
+            }
             return new HiveMetaStoreClient(conf);
         } catch (MetaException e) {
             throw new MetastoreException("can't new a metastoreclient.", e);
         }
     }
 
+    /**
+     * Get a hive metastore client on EMR which spreads the calls over all the servers in
+     * hive.metastore.uris, see {@link BalancedMetastoreClient}. The connections are opened on the
+     * first calls.
+     *
+     * @param hiveSiteXmlPath the path to hive-site.xml on EMR.
+     * @throws MetastoreException if hive-site.xml has no metastore uri.
+     */
+    public IMetaStoreClient getBalancedHiveMetastoreClient(final String hiveSiteXmlPath) throws MetastoreException {
+        List<String> uris =
+                Lists.newArrayList(
+                        Splitter.on(',')
+                                .trimResults()
+                                .omitEmptyStrings()
+                                .split(getConf(hiveSiteXmlPath).getVar(HiveConf.ConfVars.METASTOREURIS)));
+        if (uris.isEmpty()) {
+            throw new MetastoreException("There is no " + HiveConf.ConfVars.METASTOREURIS.varname + " in " + hiveSiteXmlPath + ".");
+        }
+        return BalancedMetastoreClient.create(uris, uri -> getHiveMetastoreClient(hiveSiteXmlPath, uri));
+    }
+
     /**
      * Get a datacatalog client on EMR directly, so we don't need to worry about the crendentials.
      *
@@ -80,12 +368,70 @@ public class MetastoreClientFactory {
      * @throws MetastoreException if failed to get an IMetaStoreClient istance.
      */
     public IMetaStoreClient getDataCatalogClient(String region) throws MetastoreException {
+        return getDataCatalogClient(region, null);
+    }
+
+    /**
+     * Get a datacatalog client whose glue calls are limited by the {@link GlueRateGovernor} of the
+     * process with the given priority, e.g. HIGH for sensors and LOW for backfills.
+     *
+     * @param region the glue service region.
+     * @param priority the rate limit priority, null means the one configured in hive-site.xml.
+     * @return a IMetaStoreClient instance for AWS DataCatalog on EMR.
+     * @throws MetastoreException if failed to get an IMetaStoreClient istance.
+     */
+    public IMetaStoreClient getDataCatalogClient(String region, GlueRateGovernor.Priority priority)
+            throws MetastoreException {
         try {
-            HiveConf conf = new HiveConf();
+            HiveConf conf = getConf(null);
             conf.set(AWSGlueClientFactory.AWS_REGION, region);
+            if (priority != null) {
+                conf.set(GlueRateGovernor.PRIORITY, priority.name());
+            }
             return new NoFileSystemOpsAWSCatalogMetastoreClient(conf);
         } catch (MetaException e) {
             throw new MetastoreException("can't new a metastoreclient.", e);
         }
     }
+
+    /**
+     * Get an asynchronous glue client on EMR directly. The credentials are resolved in the same way
+     * as {@link AWSGlueClientFactory}, so both clients act as the same principal.
+     *
+     * @param region the glue service region.
+     * @return an AWSGlueAsync instance for AWS DataCatalog on EMR.
+     */
+    public AWSGlueAsync getDataCatalogAsyncClient(String region) {
+        return getDataCatalogAsyncClient(region, null);
+    }
+
+    /**
+     * Get an asynchronous glue client limited by the {@link GlueRateGovernor} of the process with
+     * the given priority.
+     *
+     * @param region the glue service region.
+     * @param priority the rate limit priority, null means the one configured in hive-site.xml.
+     * @return an AWSGlueAsync instance for AWS DataCatalog on EMR.
+     */
+    public AWSGlueAsync getDataCatalogAsyncClient(String region, GlueRateGovernor.Priority priority) {
+        HiveConf conf = getConf(null);
+        conf.set(AWSGlueClientFactory.AWS_REGION, region);
+        AWSCredentialsProviderFactory credentialsProviderFactory =
+                ReflectionUtils.newInstance(
+                        conf.getClass(
+                                        AWSGlueClientFactory.AWS_CATALOG_CREDENTIALS_PROVIDER_FACTORY_CLASS,
+                                        DefaultAWSCredentialsProviderFactory.class)
+                                .asSubclass(AWSCredentialsProviderFactory.class),
+                        conf);
+        AWSGlueAsync client =
+                AWSGlueAsyncClientBuilder.standard()
+                        .withRegion(region)
+                        .withCredentials(credentialsProviderFactory.buildAWSCredentialsProvider(conf))
+                        .build();
+        return GlueRateGovernor.getInstance(conf)
+                .wrap(
+                        client,
+                        AWSGlueAsync.class,
+                        priority == null ? GlueRateGovernor.getPriority(conf) : priority);
+    }
 }
@@ -1,22 +1,53 @@
 package moonset.metastore.sync;
 
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.collections.MapUtils;
 import org.apache.hadoop.hive.metastore.IMetaStoreClient;
+import org.apache.hadoop.hive.metastore.Warehouse;
+import org.apache.hadoop.hive.metastore.api.AlreadyExistsException;
+import org.apache.hadoop.hive.metastore.api.ColumnStatistics;
+import org.apache.hadoop.hive.metastore.api.ColumnStatisticsDesc;
+import org.apache.hadoop.hive.metastore.api.ColumnStatisticsObj;
 import org.apache.hadoop.hive.metastore.api.Database;
+import org.apache.hadoop.hive.metastore.api.FieldSchema;
+import org.apache.hadoop.hive.metastore.api.MetaException;
 import org.apache.hadoop.hive.metastore.api.NoSuchObjectException;
 import org.apache.hadoop.hive.metastore.api.Partition;
+import org.apache.hadoop.hive.metastore.api.PartitionSpec;
+import org.apache.hadoop.hive.metastore.api.SetPartitionsStatsRequest;
 import org.apache.hadoop.hive.metastore.api.Table;
+import org.apache.hadoop.hive.metastore.partition.spec.PartitionSpecProxy;
 import org.apache.thrift.TException;
 
+import moonset.metastore.sync.balance.BalancedMetastoreClient;
 import moonset.metastore.sync.catalog.CatalogClient;
+import moonset.metastore.sync.catalog.CompactPartitionSet;
+import moonset.metastore.sync.digest.PartitionDigest;
+import moonset.metastore.sync.discovery.PartitionDiscovery;
 import moonset.metastore.sync.exception.MetastoreException;
+import moonset.metastore.sync.priority.PartitionPriority;
+import moonset.metastore.sync.shard.Shard;
+import moonset.metastore.sync.trace.Tracer;
+import moonset.metastore.sync.util.LocationVerifier;
+import moonset.metastore.sync.util.PartitionFilterCompiler;
+import moonset.metastore.sync.util.PartitionSpecUtils;
 import moonset.metastore.sync.util.PartitionUtils;
 import moonset.metastore.sync.util.TableUtils;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import lombok.extern.slf4j.Slf4j;
 
@@ -30,8 +61,35 @@ public final class MetastoreSyncUtils {
     /** Batch threshold for add_partitions() method. */
     private static final int BATCH_SIZE = 30;
 
-    /** Sync all partitions of the target name from source metastore to dest metastore. */
-    public static void syncAllPartitions(
+    /**
+     * Batch threshold for add_partitions_pspec() method. The batch can be much larger than
+     * {@link #BATCH_SIZE} since the shared storage descriptor is sent and deserialized only once.
+     */
+    private static final int SHARED_SD_BATCH_SIZE = 500;
+
+    /** The partitions expanded at a time from a {@link CompactPartitionSet}. */
+    private static final int PREPARE_PAGE_SIZE = 1000;
+
+    /**
+     * The partitions written between two deadline checks of a prioritized sync, which is also the
+     * batch of add_partitions_pspec() so a hive page is a single call.
+     */
+    private static final int PRIORITY_PAGE_SIZE = SHARED_SD_BATCH_SIZE;
+
+    /** Verify the partition locations against the file system if set, see {@link #setLocationVerifier}. */
+    private static volatile LocationVerifier locationVerifier;
+
+    /** Issue the source reads which run concurrently with the dest reads. */
+    private static final ExecutorService SOURCE_READ_EXECUTOR =
+            Executors.newCachedThreadPool(
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("source-read-%d").build());
+
+    /**
+     * Sync all partitions of the target name from source metastore to dest metastore.
+     *
+     * @return the number of source partitions.
+     */
+    public static int syncAllPartitions(
             final IMetaStoreClient source,
             final IMetaStoreClient dest,
             final String srcDatabaseName,
@@ -39,15 +97,46 @@ public final class MetastoreSyncUtils {
             final String destDatabaseName,
             final String destTableName)
             throws MetastoreException {
-        CatalogClient client = new CatalogClient(source);
-        syncPartitions(dest, destDatabaseName, destTableName, client.getAllPartitions(srcDatabaseName, srcTableName));
+        return syncAllPartitions(source, dest, srcDatabaseName, srcTableName, destDatabaseName, destTableName, null);
+    }
+
+    /**
+     * Sync the partitions of the shard from source metastore to dest metastore, the workers of
+     * the other shards sync the rest, see {@link Shard}.
+     *
+     * @param shard the shard, null means all partitions.
+     * @return the number of source partitions in the shard.
+     */
+    public static int syncAllPartitions(
+            final IMetaStoreClient source,
+            final IMetaStoreClient dest,
+            final String srcDatabaseName,
+            final String srcTableName,
+            final String destDatabaseName,
+            final String destTableName,
+            final Shard shard)
+            throws MetastoreException {
+        try (Tracer.Span span = Tracer.span("syncAllPartitions").arg("shard", String.valueOf(shard))) {
+            CatalogClient client = new CatalogClient(source);
+            CompactPartitionSet partitions = client.getAllPartitionsCompact(srcDatabaseName, srcTableName, shard);
+            span.arg("partitions", partitions.size());
+            if (partitions.size() == 0) {
+                log.info("No partition found, skip sync partitions.");
+                return 0;
+            }
+            log.info("There are " + partitions.size() + " partitions needed to sync.");
+            addPartitions(dest, preparePartitions(partitions, destDatabaseName, destTableName));
+            return partitions.size();
+        }
     }
 
     /**
      * Sync partitions which match the patterns in <code>partVals</code> of the target table from
      * source metastore to dest metastore.
+     *
+     * @return the number of source partitions matching the patterns.
      */
-    public static void syncPartitions(
+    public static int syncPartitions(
             final IMetaStoreClient source,
             final IMetaStoreClient dest,
             final String srcDatabaseName,
@@ -67,6 +156,67 @@ public final class MetastoreSyncUtils {
             partitions = client.getPartitions(srcDatabaseName, srcTableName, partVals);
         }
         syncPartitions(dest, destDatabaseName, destTableName, partitions);
+        return partitions.size();
+    }
+
+    /**
+     * Register the partitions discovered under the table location into the metastore, like MSCK
+     * REPAIR. The partitions already in the metastore are left as they are, only the new ones are
+     * added by the batched writers.
+     *
+     * @param partVals the partition patterns which prune the walk, null means all partitions.
+     * @return the number of new partitions.
+     */
+    public static int discoverPartitions(
+            final IMetaStoreClient client,
+            final PartitionDiscovery discovery,
+            final String databaseName,
+            final String tableName,
+            final Map<String, String> partVals)
+            throws MetastoreException {
+        try (Tracer.Span span = Tracer.span("registerDiscoveredPartitions")) {
+            Table table = client.getTable(databaseName, tableName);
+            if (table.getPartitionKeysSize() == 0) {
+                log.info("The table has no partition key, skip partition discovery.");
+                return 0;
+            }
+            // Discover the partitions while listing the existing names.
+            CompletableFuture<Set<String>> existingPartitionNamesFuture =
+                    CompletableFuture.supplyAsync(
+                            () -> {
+                                try {
+                                    return getPartitionNames(client, databaseName, tableName);
+                                } catch (MetastoreException e) {
+                                    throw new CompletionException(e.getCause());
+                                }
+                            },
+                            SOURCE_READ_EXECUTOR);
+            List<Partition> discoveredPartitions = discovery.discover(table, partVals);
+            Set<String> existingPartitionNames = existingPartitionNamesFuture.join();
+
+            List<Partition> newPartitions = Lists.newArrayList();
+            for (Partition partition : discoveredPartitions) {
+                if (!existingPartitionNames.contains(Warehouse.makePartName(table.getPartitionKeys(), partition.getValues()))) {
+                    newPartitions.add(partition);
+                }
+            }
+            span.arg("discovered", discoveredPartitions.size()).arg("new", newPartitions.size());
+            log.info(
+                    "There are " + newPartitions.size() + " new partitions of " + discoveredPartitions.size()
+                            + " discovered partitions.");
+            if (!newPartitions.isEmpty()) {
+                addPartitions(
+                        client,
+                        preparePartitions(newPartitions, databaseName, tableName),
+                        table.getPartitionKeys(),
+                        existingPartitionNames);
+            }
+            return newPartitions.size();
+        } catch (TException e) {
+            throw new MetastoreException("failed to register the discovered partitions", e);
+        } catch (CompletionException e) {
+            throw new MetastoreException("failed to list partition names", e.getCause());
+        }
     }
 
     /**
@@ -74,6 +224,11 @@ public final class MetastoreSyncUtils {
      * tableName should not contain dot(.) since hive metastore will reject it.  If the table exists
      * in destination, we only update table properties to avoid to damage the destination table's structure.
      * Some use cases want to store some variable inside table properties.
+     *
+     * <p>Each object is fetched at most once. The source table and the dest table are fetched
+     * concurrently since they live in different metastores, the databases are only fetched when
+     * the dest table doesn't exist, after the source table, so a source client is never used by two
+     * threads at once. The table properties are only updated when they change.
      */
     public static void syncTable(
             final IMetaStoreClient source,
@@ -83,66 +238,164 @@ public final class MetastoreSyncUtils {
             final String destDatabaseName,
             final String destTableName)
             throws MetastoreException {
-        try {
+        try (Tracer.Span span = Tracer.span("syncTable").arg("table", destDatabaseName + "." + destTableName)) {
+            CompletableFuture<Table> sourceTableFuture =
+                    CompletableFuture.supplyAsync(
+                            () -> {
+                                try {
+                                    return source.getTable(srcDatabaseName, srcTableName);
+                                } catch (TException e) {
+                                    throw new CompletionException(e);
+                                }
+                            },
+                            SOURCE_READ_EXECUTOR);
+
+            Table destTable = null;
             try {
-                // Validate if dest database already exists
-                dest.getDatabase(destDatabaseName);
-                log.info("The database " + destDatabaseName + " already exists in destination metastore, and we need not sync it again.");
+                destTable = dest.getTable(destDatabaseName, destTableName);
             } catch (NoSuchObjectException nsoe) {
-                log.info("The database " + destDatabaseName + " doesn't exist in destination metastore, and start to sync it.");
-
-                // Create destination database if it doesn't exist
-                Database database = source.getDatabase(srcDatabaseName);
-                log.trace("The database: " + database);
-
-                // Rename database to destDatabaseName.
-                database.setName(destDatabaseName);
-
-                // Fix error: java.lang.IllegalArgumentException: Can not create a Path from an empty
-                // We will rewrite the location url regard less it is empty, s3 or hdfs
-                StringBuilder rewriteUri = new StringBuilder("hdfs:///locationrewriteuri/");
-                rewriteUri.append(destDatabaseName).append(".db");
-                log.info("rewrite location uri from " + database.getLocationUri() + " to hdfs location " + rewriteUri.toString());
-                database.setLocationUri(rewriteUri.toString());
-                dest.createDatabase(database);
-                log.info("The database " + destDatabaseName + " is created successfully.");
-            }
-
-            if (dest.tableExists(destDatabaseName, destTableName)) {
-                log.info("The table " + destTableName + " already exists in destination metastore, and we only need to sync table properties.");
-                Table destTable = dest.getTable(destDatabaseName, destTableName);
-                log.info(String.format("The table original properties: %s", destTable.getParameters()));
-                Map<String, String> parameters = destTable.getParameters();
-                parameters.putAll(source.getTable(srcDatabaseName, srcTableName).getParameters());
+                log.info("The table " + destTableName + " doesn't exist in destination metastore.");
+            }
+            Table sourceTable = getResult(sourceTableFuture);
+            if (destTable == null) {
+                // The source client isn't thread safe, its database is read once the table read is done.
+                syncDatabase(source, dest, srcDatabaseName, destDatabaseName);
+            }
+
+            syncTable(sourceTable, destTable, dest, destDatabaseName, destTableName);
+        } catch (TException e) {
+            throw new MetastoreException("failed to sync table", e);
+        }
+    }
+
+    /**
+     * Sync the source table into dest, both tables are read by the caller. The dest database
+     * should exist if the dest table doesn't.
+     *
+     * @param destTable the dest table, null if it doesn't exist.
+     */
+    static void syncTable(
+            final Table sourceTable,
+            final Table destTable,
+            final IMetaStoreClient dest,
+            final String destDatabaseName,
+            final String destTableName)
+            throws TException, MetastoreException {
+        Table syncedTable;
+        if (destTable != null) {
+            log.info("The table " + destTableName + " already exists in destination metastore, and we only need to sync table properties.");
+            log.info(String.format("The table original properties: %s", destTable.getParameters()));
+            Map<String, String> parameters = Maps.newHashMap(destTable.getParameters());
+            parameters.putAll(sourceTable.getParameters());
+            // The partition digest describes the partitions of the table holding it.
+            parameters.remove(PartitionDigest.DIGEST_PARAM);
+            if (destTable.getParameters().containsKey(PartitionDigest.DIGEST_PARAM)) {
+                parameters.put(PartitionDigest.DIGEST_PARAM, destTable.getParameters().get(PartitionDigest.DIGEST_PARAM));
+            }
+            if (parameters.equals(destTable.getParameters())) {
+                log.info("The table properties are unchanged, skip updating them.");
+            } else {
                 log.info(String.format("The table properties after updated: %s", parameters));
                 destTable.setParameters(parameters);
                 dest.alter_table(destDatabaseName, destTableName, destTable);
                 log.info("The table properties updated successfully.");
-            } else {
-                log.info("The table " + destTableName + " doesn't exist in destination metastore, and start to sync it.");
-                Table sourceTable = source.getTable(srcDatabaseName, srcTableName);
-                log.info("Rewrite the table EXTERNAL paramater, which is used by Hive Metastore.");
-                Table modifiedTable = TableUtils.rewriteExternalFlag(sourceTable);
-                // Rename table name to destTableName.
-                modifiedTable.setDbName(destDatabaseName);
-                modifiedTable.setTableName(destTableName);
-
-                //Store the create time in table parameter, sice this field will be overriden when createTable().
-                if(!modifiedTable.getParameters().containsKey(TableUtils.ORIGINAL_CREATE_TIME)) {
-                    modifiedTable.getParameters().put(TableUtils.ORIGINAL_CREATE_TIME, String.valueOf(modifiedTable.getCreateTime()));
-                }
-                dest.createTable(modifiedTable);
-                log.trace("The table: " + modifiedTable);
-                log.info("The table " + destTableName + " is created successfully.");
+            }
+            syncedTable = destTable;
+        } else {
+            log.info("The table " + destTableName + " doesn't exist in destination metastore, and start to sync it.");
+            log.info("Rewrite the table EXTERNAL paramater, which is used by Hive Metastore.");
+            Table modifiedTable = TableUtils.rewriteExternalFlag(sourceTable);
+            // Rename table name to destTableName.
+            modifiedTable.setDbName(destDatabaseName);
+            modifiedTable.setTableName(destTableName);
+            if (modifiedTable.getParameters().containsKey(PartitionDigest.DIGEST_PARAM)) {
+                modifiedTable = modifiedTable.deepCopy();
+                modifiedTable.getParameters().remove(PartitionDigest.DIGEST_PARAM);
             }
 
-            //validate dest table
-            if (!"TRUE".equals(dest.getTable(destDatabaseName, destTableName).getParameters().get(TableUtils.EXTERNAL_PARAM))) {
-                throw new MetastoreException(
-                        "It's dangerous to process a non-external table. Prohibit to do so.");
+            //Store the create time in table parameter, sice this field will be overriden when createTable().
+            if(!modifiedTable.getParameters().containsKey(TableUtils.ORIGINAL_CREATE_TIME)) {
+                modifiedTable.getParameters().put(TableUtils.ORIGINAL_CREATE_TIME, String.valueOf(modifiedTable.getCreateTime()));
             }
-        } catch (TException e) {
-            throw new MetastoreException("failed to sync table", e);
+            dest.createTable(modifiedTable);
+            log.trace("The table: " + modifiedTable);
+            log.info("The table " + destTableName + " is created successfully.");
+            syncedTable = modifiedTable;
+        }
+
+        //validate dest table, the synced table is exactly what dest metastore holds now.
+        if (!"TRUE".equals(syncedTable.getParameters().get(TableUtils.EXTERNAL_PARAM))) {
+            throw new MetastoreException(
+                    "It's dangerous to process a non-external table. Prohibit to do so.");
+        }
+    }
+
+    /** Get the table, or null if it doesn't exist. */
+    static Table getTableIfExists(final IMetaStoreClient client, final String databaseName, final String tableName)
+            throws TException {
+        try {
+            return client.getTable(databaseName, tableName);
+        } catch (NoSuchObjectException e) {
+            return null;
+        }
+    }
+
+    /** Create the dest database from source database if it doesn't exist in dest. */
+    private static void syncDatabase(
+            final IMetaStoreClient source,
+            final IMetaStoreClient dest,
+            final String srcDatabaseName,
+            final String destDatabaseName)
+            throws TException {
+        if (!databaseExists(dest, destDatabaseName)) {
+            createDatabase(dest, source.getDatabase(srcDatabaseName), destDatabaseName);
+        }
+    }
+
+    /** Whether the database exists. */
+    static boolean databaseExists(final IMetaStoreClient dest, final String destDatabaseName) throws TException {
+        try {
+            // Validate if dest database already exists
+            dest.getDatabase(destDatabaseName);
+            log.info("The database " + destDatabaseName + " already exists in destination metastore, and we need not sync it again.");
+            return true;
+        } catch (NoSuchObjectException nsoe) {
+            log.info("The database " + destDatabaseName + " doesn't exist in destination metastore, and start to sync it.");
+            return false;
+        }
+    }
+
+    /** Create the dest database from the source database. */
+    static void createDatabase(final IMetaStoreClient dest, final Database database, final String destDatabaseName)
+            throws TException {
+        log.trace("The database: " + database);
+
+        // Rename database to destDatabaseName.
+        database.setName(destDatabaseName);
+
+        // Fix error: java.lang.IllegalArgumentException: Can not create a Path from an empty
+        // We will rewrite the location url regard less it is empty, s3 or hdfs
+        StringBuilder rewriteUri = new StringBuilder("hdfs:///locationrewriteuri/");
+        rewriteUri.append(destDatabaseName).append(".db");
+        log.info("rewrite location uri from " + database.getLocationUri() + " to hdfs location " + rewriteUri.toString());
+        database.setLocationUri(rewriteUri.toString());
+        dest.createDatabase(database);
+        log.info("The database " + destDatabaseName + " is created successfully.");
+    }
+
+    /**
+     * Wait for a source read and rethrow its TException.
+     *
+     * @throws MetastoreException if the read failed by anything else, with the failure as the cause.
+     */
+    private static <T> T getResult(final CompletableFuture<T> future) throws TException, MetastoreException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof TException) {
+                throw (TException) e.getCause();
+            }
+            throw new MetastoreException("failed to read from source", e.getCause());
         }
     }
 
@@ -157,44 +410,506 @@ public final class MetastoreSyncUtils {
             final String destTableName,
             final List<Partition> partitions)
             throws MetastoreException {
-        try {
-            if (CollectionUtils.isEmpty(partitions)) {
-                // We only log empty partitions but do nothing
-                log.info("No partition found, skip sync partitions.");
-            } else {
-                log.info("There are " + partitions.size() + " partitions needed to sync.");
+        if (CollectionUtils.isEmpty(partitions)) {
+            // We only log empty partitions but do nothing
+            log.info("No partition found, skip sync partitions.");
+        } else {
+            log.info("There are " + partitions.size() + " partitions needed to sync.");
+            List<Partition> preparedPartitions = preparePartitions(partitions, destDatabaseName, destTableName);
+            log.info("Begin to sync partitions.");
+            addPartitions(dest, preparedPartitions);
+        }
+    }
+
+    /**
+     * Sync the partitions in priority order a page at a time, so the partitions first in the order
+     * are committed first, and stop before a page which isn't expected to finish by the deadline.
+     * A page is expected to take as long as the slowest page so far. The partitions already in dest
+     * are skipped before ordering, so a run after one stopped at its deadline resumes from the
+     * partitions left, along with the ones added to the source since.
+     *
+     * @param priority the order of the partitions, see {@link PartitionPriority}.
+     * @param deadlineNanos the {@link System#nanoTime()} to stop by, Long.MAX_VALUE for no deadline.
+     * @return the source partitions left in priority order, empty if all partitions are synced.
+     */
+    public static List<Partition> syncPartitions(
+            final IMetaStoreClient dest,
+            final String destDatabaseName,
+            final String destTableName,
+            final List<Partition> partitions,
+            final Comparator<Partition> priority,
+            final long deadlineNanos)
+            throws MetastoreException {
+        try (Tracer.Span span = Tracer.span("syncPartitionsByPriority").arg("partitions", partitions.size())) {
+            List<FieldSchema> partitionKeys = getPartitionKeys(dest, destDatabaseName, destTableName);
+            Set<String> existingPartitionNames = getPartitionNames(dest, destDatabaseName, destTableName);
+            List<Partition> orderedPartitions = Lists.newArrayList();
+            try {
+                for (Partition partition : partitions) {
+                    if (!existingPartitionNames.contains(Warehouse.makePartName(partitionKeys, partition.getValues()))) {
+                        orderedPartitions.add(partition);
+                    }
+                }
+            } catch (MetaException e) {
+                throw new MetastoreException("failed to skip the partitions in dest", e);
+            }
+            orderedPartitions.sort(priority);
+            span.arg("new", orderedPartitions.size());
+            log.info(
+                    "There are " + orderedPartitions.size() + " of " + partitions.size()
+                            + " partitions needed to sync by priority, the others are in dest already.");
+            long slowestPageNanos = 0;
+            for (int i = 0; i < orderedPartitions.size(); i += PRIORITY_PAGE_SIZE) {
+                long pageStartTime = System.nanoTime();
+                if (deadlineNanos - pageStartTime < slowestPageNanos) {
+                    List<Partition> remainder = Lists.newArrayList(orderedPartitions.subList(i, orderedPartitions.size()));
+                    span.arg("synced", i).arg("left", remainder.size());
+                    log.info(
+                            "Stop at the deadline, " + i + " partitions are synced and " + remainder.size()
+                                    + " partitions are left.");
+                    return remainder;
+                }
+                List<Partition> page = orderedPartitions.subList(i, Math.min(i + PRIORITY_PAGE_SIZE, orderedPartitions.size()));
+                addPartitions(
+                        dest, preparePartitions(page, destDatabaseName, destTableName), partitionKeys, existingPartitionNames);
+                slowestPageNanos = Math.max(slowestPageNanos, System.nanoTime() - pageStartTime);
+            }
+            span.arg("synced", orderedPartitions.size()).arg("left", 0);
+            return Lists.newArrayList();
+        }
+    }
+
+    /**
+     * Verify the partition locations by listing the file system in {@link #preparePartitions},
+     * instead of guessing the file locations by patterns. The partitions whose locations don't
+     * exist fail the sync then. Null disables the verification, which is the default.
+     */
+    public static void setLocationVerifier(final LocationVerifier verifier) {
+        locationVerifier = verifier;
+    }
 
+    /**
+     * Rewrite the source partitions to what the dest metastore accepts: directory locations, dest
+     * database and table names, and the original create time parameter.
+     */
+    public static List<Partition> preparePartitions(
+            final List<Partition> partitions,
+            final String destDatabaseName,
+            final String destTableName)
+            throws MetastoreException {
+        try (Tracer.Span span = Tracer.span("preparePartitions").arg("partitions", partitions.size())) {
+            LocationVerifier verifier = locationVerifier;
+            List<Partition> rewritedPartitions;
+            if (verifier != null) {
+                log.info("Verify the partition locations, and rewrite the file locations to directories.");
+                rewritedPartitions = verifier.verify(partitions);
+                log.info("Verification complete.");
+            } else {
                 log.info(
                         "Rewrite the partition location to directory if any file location exists.");
-                List<Partition> rewritedPartitions =  PartitionUtils.rewritePartitionLocation(partitions);
+                rewritedPartitions = PartitionUtils.rewritePartitionLocation(partitions);
                 log.info("Rewrite complete.");
+            }
+
+            log.info("Update database name and table name to dest database and dest table.");
+            List<Partition> rewritedPartitions2 =  PartitionUtils.updateDatabaseAndTableName(rewritedPartitions, destDatabaseName, destTableName);
+            log.info("Database name and table name updated.");
 
-                log.info("Update database name and table name to dest database and dest table.");
-                List<Partition> rewritedPartitions2 =  PartitionUtils.updateDatabaseAndTableName(rewritedPartitions, destDatabaseName, destTableName);
-                log.info("Database name and table name updated.");
+            log.info("Add original create time to partitions.");
+            List<Partition> rewritedPartitions3 =  PartitionUtils.addOriginalCreateTime(rewritedPartitions2);
+            log.info("Original create time added.");
+            return rewritedPartitions3;
+        }
+    }
+
+    /**
+     * Prepare the compacted partitions page by page, so only a page of full partitions is expanded
+     * at a time.
+     */
+    public static CompactPartitionSet preparePartitions(
+            final CompactPartitionSet partitions,
+            final String destDatabaseName,
+            final String destTableName)
+            throws MetastoreException {
+        CompactPartitionSet preparedPartitions = new CompactPartitionSet(destDatabaseName, destTableName);
+        for (int i = 0; i < partitions.size(); i += PREPARE_PAGE_SIZE) {
+            preparedPartitions.addAll(
+                    preparePartitions(
+                            partitions.expand(i, Math.min(i + PREPARE_PAGE_SIZE, partitions.size())),
+                            destDatabaseName,
+                            destTableName));
+        }
+        return preparedPartitions;
+    }
+
+    /**
+     * Add the compacted partitions to dest metastore, expanding one batch at a time. The batches
+     * are written concurrently to a dest balanced over several hive metastores, one batch per
+     * metastore, see {@link BalancedMetastoreClient}.
+     */
+    public static void addPartitions(final IMetaStoreClient dest, final CompactPartitionSet partitions)
+            throws MetastoreException {
+        if (partitions.size() == 0) {
+            return;
+        }
+        if (!MetastoreClientFactory.isHiveMetastoreClient(dest) || partitions.size() <= SHARED_SD_BATCH_SIZE) {
+            for (int i = 0; i < partitions.size(); i += PREPARE_PAGE_SIZE) {
+                addPartitionsInBatches(dest, partitions.expand(i, Math.min(i + PREPARE_PAGE_SIZE, partitions.size())));
+            }
+            return;
+        }
+        List<FieldSchema> partitionKeys = getPartitionKeys(dest, partitions.getDatabaseName(), partitions.getTableName());
+        Set<String> existingPartitionNames = getPartitionNames(dest, partitions.getDatabaseName(), partitions.getTableName());
+        int parallelism = BalancedMetastoreClient.getParallelism(dest);
+        if (parallelism > 1 && partitions.size() > PREPARE_PAGE_SIZE) {
+            addPartitionsConcurrently(dest, partitions, partitionKeys, existingPartitionNames, parallelism);
+            return;
+        }
+        for (int i = 0; i < partitions.size(); i += PREPARE_PAGE_SIZE) {
+            List<Partition> page = partitions.expand(i, Math.min(i + PREPARE_PAGE_SIZE, partitions.size()));
+            addPartitionsWithSharedSD(dest, page, partitionKeys, existingPartitionNames);
+        }
+    }
+
+    /**
+     * Add the prepared partitions to dest metastore. A large write to hive metastore lists the
+     * partition names in dest once and sends the new partitions by the compact shared storage
+     * descriptor spec. A small write, such as a pinpoint sync, a repair or a poll of a follower,
+     * doesn't scan the dest table, and is sent by add_partitions with ifNotExists in batches of
+     * {@link #BATCH_SIZE}, like the writes to other metastores.
+     */
+    public static void addPartitions(final IMetaStoreClient dest, final List<Partition> partitions)
+            throws MetastoreException {
+        if (MetastoreClientFactory.isHiveMetastoreClient(dest) && partitions.size() > SHARED_SD_BATCH_SIZE) {
+            Partition first = partitions.get(0);
+            addPartitionsWithSharedSD(
+                    dest,
+                    partitions,
+                    getPartitionKeys(dest, first.getDbName(), first.getTableName()),
+                    getPartitionNames(dest, first.getDbName(), first.getTableName()));
+        } else {
+            addPartitionsInBatches(dest, partitions);
+        }
+    }
+
+    /**
+     * Add the prepared partitions to dest metastore, with the partition keys of the dest table and
+     * the partition names already in dest got by the caller. Callers adding many batches of one
+     * table get them only once, by {@link #getPartitionKeys} and {@link #getPartitionNames}.
+     *
+     * @param existingPartitionNames the partition names in dest, the names are put into it once
+     *     their partitions are written, so it should be thread safe if shared by many threads.
+     */
+    public static void addPartitions(
+            final IMetaStoreClient dest,
+            final List<Partition> partitions,
+            final List<FieldSchema> partitionKeys,
+            final Set<String> existingPartitionNames)
+            throws MetastoreException {
+        if (MetastoreClientFactory.isHiveMetastoreClient(dest) && !partitions.isEmpty()) {
+            addPartitionsWithSharedSD(dest, partitions, partitionKeys, existingPartitionNames);
+        } else {
+            addPartitionsInBatches(dest, partitions);
+        }
+    }
 
-                log.info("Add original create time to partitions.");
-                List<Partition> rewritedPartitions3 =  PartitionUtils.addOriginalCreateTime(rewritedPartitions2);
-                log.info("Original create time added.");
+    /** Add the pages of the compacted partitions by the given number of threads. */
+    private static void addPartitionsConcurrently(
+            final IMetaStoreClient dest,
+            final CompactPartitionSet partitions,
+            final List<FieldSchema> partitionKeys,
+            final Set<String> existingPartitionNames,
+            final int parallelism)
+            throws MetastoreException {
+        Set<String> concurrentPartitionNames = ConcurrentHashMap.newKeySet();
+        concurrentPartitionNames.addAll(existingPartitionNames);
+        ExecutorService executor =
+                Executors.newFixedThreadPool(
+                        parallelism, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("dest-write-%d").build());
+        try {
+            List<CompletableFuture<Void>> futures = Lists.newArrayList();
+            for (int i = 0; i < partitions.size(); i += PREPARE_PAGE_SIZE) {
+                int from = i;
+                futures.add(
+                        CompletableFuture.runAsync(
+                                () -> {
+                                    try {
+                                        addPartitionsWithSharedSD(
+                                                dest,
+                                                partitions.expand(from, Math.min(from + PREPARE_PAGE_SIZE, partitions.size())),
+                                                partitionKeys,
+                                                concurrentPartitionNames);
+                                    } catch (MetastoreException e) {
+                                        throw new CompletionException(e);
+                                    }
+                                },
+                                executor));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof MetastoreException
+                    ? (MetastoreException) e.getCause()
+                    : new MetastoreException("failed to sync table", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
 
+    /** Get the partition keys of the table in dest metastore. */
+    public static List<FieldSchema> getPartitionKeys(
+            final IMetaStoreClient dest, final String databaseName, final String tableName)
+            throws MetastoreException {
+        try {
+            return dest.getTable(databaseName, tableName).getPartitionKeys();
+        } catch (TException e) {
+            throw new MetastoreException("failed to get the partition keys", e);
+        }
+    }
 
+    /** List the partition names of the table in dest metastore. */
+    public static Set<String> getPartitionNames(
+            final IMetaStoreClient dest, final String databaseName, final String tableName)
+            throws MetastoreException {
+        try {
+            return Sets.newHashSet(dest.listPartitionNames(databaseName, tableName, (short) -1));
+        } catch (TException e) {
+            throw new MetastoreException("failed to list partition names", e);
+        }
+    }
 
-                log.info("Begin to sync partitions.");
-                for (int i = 0; i < rewritedPartitions3.size(); i += BATCH_SIZE) {
-                    List<Partition> sublistPartitions =
-                            rewritedPartitions3.subList(i, Math.min(i + BATCH_SIZE, rewritedPartitions3.size()));
-                    log.trace("The partitions: " + sublistPartitions);
+    /**
+     * Add the partitions by add_partitions_pspec, which sends each distinct storage descriptor only
+     * once per batch and a relative path for each partition. It has no ifNotExists flag, so the
+     * partitions which already exist in dest are filtered out first, and a batch racing with
+     * another writer falls back to add_partitions.
+     *
+     * @param existingPartitionNames the partition names in dest, the names of each batch are put
+     *     into it once the batch is written.
+     */
+    private static void addPartitionsWithSharedSD(
+            final IMetaStoreClient dest,
+            final List<Partition> partitions,
+            final List<FieldSchema> partitionKeys,
+            final Set<String> existingPartitionNames)
+            throws MetastoreException {
+        try {
+            Map<String, Partition> newPartitions = Maps.newLinkedHashMap();
+            Map<String, Partition> partitionsWithoutLocation = Maps.newLinkedHashMap();
+            for (Partition partition : partitions) {
+                String partitionName = Warehouse.makePartName(partitionKeys, partition.getValues());
+                if (existingPartitionNames.contains(partitionName)
+                        || newPartitions.containsKey(partitionName)
+                        || partitionsWithoutLocation.containsKey(partitionName)) {
+                    continue;
+                }
+                if (partition.getSd() == null || partition.getSd().getLocation() == null) {
+                    // The metastore decides the default location, which a relative path can't express.
+                    partitionsWithoutLocation.put(partitionName, partition);
+                } else {
+                    newPartitions.put(partitionName, partition);
+                }
+            }
+            addPartitionsInBatches(dest, Lists.newArrayList(partitionsWithoutLocation.values()));
+            existingPartitionNames.addAll(partitionsWithoutLocation.keySet());
+
+            List<String> newPartitionNames = Lists.newArrayList(newPartitions.keySet());
+            List<Partition> newPartitionList = Lists.newArrayList(newPartitions.values());
+            for (int i = 0; i < newPartitionList.size(); i += SHARED_SD_BATCH_SIZE) {
+                int end = Math.min(i + SHARED_SD_BATCH_SIZE, newPartitionList.size());
+                List<Partition> sublistPartitions = newPartitionList.subList(i, end);
+                List<PartitionSpec> specs = PartitionSpecUtils.toSharedSDPartitionSpecs(sublistPartitions);
+                try (Tracer.Span span =
+                        Tracer.span("add_partitions_pspec")
+                                .arg("partitions", sublistPartitions.size())
+                                .arg("specs", specs.size())
+                                .arg("bytes", Tracer.thriftSize(specs))) {
+                    dest.add_partitions_pspec(PartitionSpecProxy.Factory.get(specs));
+                } catch (AlreadyExistsException e) {
+                    log.info("Some partitions were added concurrently, retry the batch with ifNotExists.");
                     dest.add_partitions(sublistPartitions, true, false);
-                    log.info(
-                            "The range [ "
-                                    + i
-                                    + ", "
-                                    + Math.min(i + BATCH_SIZE, rewritedPartitions3.size())
-                                    + " ) partitions have been synced.");
                 }
+                existingPartitionNames.addAll(newPartitionNames.subList(i, end));
+                log.info(
+                        "The range [ "
+                                + i
+                                + ", "
+                                + end
+                                + " ) partitions have been synced by shared storage descriptor spec.");
             }
         } catch (TException e) {
             throw new MetastoreException("failed to sync table", e);
         }
     }
+
+    /** Add the prepared partitions to dest metastore in batches of {@link #BATCH_SIZE}. */
+    private static void addPartitionsInBatches(final IMetaStoreClient dest, final List<Partition> partitions)
+            throws MetastoreException {
+        try {
+            for (int i = 0; i < partitions.size(); i += BATCH_SIZE) {
+                List<Partition> sublistPartitions =
+                        partitions.subList(i, Math.min(i + BATCH_SIZE, partitions.size()));
+                log.trace("The partitions: " + sublistPartitions);
+                try (Tracer.Span span =
+                        Tracer.span("add_partitions")
+                                .arg("partitions", sublistPartitions.size())
+                                .arg("bytes", Tracer.thriftSize(sublistPartitions))) {
+                    dest.add_partitions(sublistPartitions, true, false);
+                }
+                log.info(
+                        "The range [ "
+                                + i
+                                + ", "
+                                + Math.min(i + BATCH_SIZE, partitions.size())
+                                + " ) partitions have been synced.");
+            }
+        } catch (TException e) {
+            throw new MetastoreException("failed to sync table", e);
+        }
+    }
+
+    /**
+     * Sync the table level column statistics from source metastore to dest metastore, so the cost
+     * based optimizer of dest doesn't need the statistics to be computed again. The data catalog
+     * client doesn't support column statistics, and the sync is skipped then.
+     */
+    public static void syncTableColumnStatistics(
+            final IMetaStoreClient source,
+            final IMetaStoreClient dest,
+            final String srcDatabaseName,
+            final String srcTableName,
+            final String destDatabaseName,
+            final String destTableName)
+            throws MetastoreException {
+        try (Tracer.Span span = Tracer.span("syncTableColumnStatistics")) {
+            List<String> columnNames = getColumnNames(source.getTable(srcDatabaseName, srcTableName));
+            List<ColumnStatisticsObj> statistics = source.getTableColumnStatistics(srcDatabaseName, srcTableName, columnNames);
+            span.arg("columns", statistics.size());
+            if (statistics.isEmpty()) {
+                log.info("No table column statistics found, skip sync table column statistics.");
+                return;
+            }
+            dest.updateTableColumnStatistics(
+                    new ColumnStatistics(new ColumnStatisticsDesc(true, destDatabaseName, destTableName), statistics));
+            log.info("The column statistics of " + statistics.size() + " columns are synced.");
+        } catch (UnsupportedOperationException e) {
+            log.warn("Skip sync table column statistics, since they are not supported: " + e.getMessage());
+        } catch (TException e) {
+            throw new MetastoreException("failed to sync table column statistics", e);
+        }
+    }
+
+    /**
+     * Sync the partition level column statistics of the partitions which match the patterns in
+     * <code>partVals</code>, or of all partitions if it's empty. The partitions should be synced
+     * already. The statistics are read and written by pages of partitions like the partitions,
+     * and the next page is read from source while the current page is written to dest.
+     */
+    public static void syncPartitionColumnStatistics(
+            final IMetaStoreClient source,
+            final IMetaStoreClient dest,
+            final String srcDatabaseName,
+            final String srcTableName,
+            final String destDatabaseName,
+            final String destTableName,
+            final Map<String, String> partVals)
+            throws MetastoreException {
+        try (Tracer.Span span = Tracer.span("syncPartitionColumnStatistics")) {
+            List<String> columnNames = getColumnNames(source.getTable(srcDatabaseName, srcTableName));
+            List<String> partitionNames =
+                    filterPartitionNames(source.listPartitionNames(srcDatabaseName, srcTableName, (short) -1), partVals);
+            span.arg("partitions", partitionNames.size());
+            if (partitionNames.isEmpty()) {
+                log.info("No partition found, skip sync partition column statistics.");
+                return;
+            }
+
+            CompletableFuture<Map<String, List<ColumnStatisticsObj>>> nextPage =
+                    readPartitionColumnStatistics(source, srcDatabaseName, srcTableName, partitionNames, 0, columnNames);
+            int synced = 0;
+            for (int i = 0; i < partitionNames.size(); i += PREPARE_PAGE_SIZE) {
+                Map<String, List<ColumnStatisticsObj>> page = getResult(nextPage);
+                if (i + PREPARE_PAGE_SIZE < partitionNames.size()) {
+                    nextPage =
+                            readPartitionColumnStatistics(
+                                    source, srcDatabaseName, srcTableName, partitionNames, i + PREPARE_PAGE_SIZE, columnNames);
+                }
+                List<ColumnStatistics> statistics = Lists.newArrayList();
+                for (Map.Entry<String, List<ColumnStatisticsObj>> entry : page.entrySet()) {
+                    if (!entry.getValue().isEmpty()) {
+                        ColumnStatisticsDesc desc = new ColumnStatisticsDesc(false, destDatabaseName, destTableName);
+                        desc.setPartName(entry.getKey());
+                        statistics.add(new ColumnStatistics(desc, entry.getValue()));
+                    }
+                }
+                if (!statistics.isEmpty()) {
+                    try (Tracer.Span pageSpan = Tracer.span("setPartitionColumnStatistics").arg("partitions", statistics.size())) {
+                        dest.setPartitionColumnStatistics(new SetPartitionsStatsRequest(statistics));
+                    }
+                    synced += statistics.size();
+                }
+            }
+            log.info("The column statistics of " + synced + " partitions are synced.");
+        } catch (UnsupportedOperationException e) {
+            log.warn("Skip sync partition column statistics, since they are not supported: " + e.getMessage());
+        } catch (MetastoreException e) {
+            if (!(e.getCause() instanceof UnsupportedOperationException)) {
+                throw e;
+            }
+            log.warn("Skip sync partition column statistics, since they are not supported: " + e.getCause().getMessage());
+        } catch (TException e) {
+            throw new MetastoreException("failed to sync partition column statistics", e);
+        }
+    }
+
+    /** Read the partition column statistics of a page of partitions from source asynchronously. */
+    private static CompletableFuture<Map<String, List<ColumnStatisticsObj>>> readPartitionColumnStatistics(
+            final IMetaStoreClient source,
+            final String srcDatabaseName,
+            final String srcTableName,
+            final List<String> partitionNames,
+            final int from,
+            final List<String> columnNames) {
+        final List<String> page = partitionNames.subList(from, Math.min(from + PREPARE_PAGE_SIZE, partitionNames.size()));
+        return CompletableFuture.supplyAsync(
+                () -> {
+                    try (Tracer.Span span = Tracer.span("getPartitionColumnStatistics").arg("partitions", page.size())) {
+                        return source.getPartitionColumnStatistics(srcDatabaseName, srcTableName, page, columnNames);
+                    } catch (TException e) {
+                        throw new CompletionException(e);
+                    }
+                },
+                SOURCE_READ_EXECUTOR);
+    }
+
+    private static List<String> getColumnNames(final Table table) {
+        List<String> columnNames = Lists.newArrayList();
+        for (FieldSchema column : table.getSd().getCols()) {
+            columnNames.add(column.getName());
+        }
+        return columnNames;
+    }
+
+    /** The partition names matching the patterns, all of them if the patterns are empty. */
+    private static List<String> filterPartitionNames(
+            final List<String> partitionNames, final Map<String, String> partVals) throws MetaException {
+        if (MapUtils.isEmpty(partVals)) {
+            return partitionNames;
+        }
+        PartitionFilterCompiler compiler = new PartitionFilterCompiler();
+        List<String> keys = compiler.getKeys(partVals);
+        Set<List<String>> combinations = compiler.expand(partVals);
+        List<String> result = Lists.newArrayList();
+        for (String partitionName : partitionNames) {
+            Map<String, String> spec = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            spec.putAll(Warehouse.makeSpecFromName(partitionName));
+            List<String> values = Lists.newArrayList();
+            for (String key : keys) {
+                values.add(spec.get(key));
+            }
+            if (combinations.contains(values)) {
+                result.add(partitionName);
+            }
+        }
+        return result;
+    }
 }
@@ -5,15 +5,23 @@ import com.amazonaws.glue.catalog.converters.CatalogToHiveConverter;
 import com.amazonaws.glue.catalog.converters.GlueInputConverter;
 import com.amazonaws.glue.catalog.converters.HiveToCatalogConverter;
 import com.amazonaws.glue.catalog.metastore.AWSCatalogMetastoreClient;
+import com.amazonaws.glue.catalog.metastore.GlueMetastoreClientDelegate;
 import com.amazonaws.glue.catalog.util.BatchCreatePartitionsHelper;
 import com.amazonaws.services.glue.AWSGlue;
+import com.amazonaws.services.glue.model.BatchGetPartitionRequest;
+import com.amazonaws.services.glue.model.BatchGetPartitionResult;
 import com.amazonaws.services.glue.model.CreateTableRequest;
+import com.amazonaws.services.glue.model.GetPartitionsRequest;
+import com.amazonaws.services.glue.model.GetPartitionsResult;
 import com.amazonaws.services.glue.model.Partition;
+import com.amazonaws.services.glue.model.PartitionValueList;
+import com.amazonaws.services.glue.model.Segment;
 import com.amazonaws.services.glue.model.Table;
 import com.amazonaws.services.glue.model.TableInput;
 import com.amazonaws.services.glue.model.UpdateTableRequest;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import java.lang.reflect.Field;
 import java.util.Date;
@@ -21,13 +29,20 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 import lombok.extern.slf4j.Slf4j;
 
+import moonset.metastore.sync.ratelimit.GlueRateGovernor;
+import moonset.metastore.sync.trace.Tracer;
+
 import org.apache.hadoop.hive.conf.HiveConf;
+import org.apache.hadoop.hive.metastore.Warehouse;
 import org.apache.hadoop.hive.metastore.api.InvalidObjectException;
 import org.apache.hadoop.hive.metastore.api.InvalidOperationException;
 import org.apache.hadoop.hive.metastore.api.MetaException;
@@ -49,12 +64,33 @@ public class NoFileSystemOpsAWSCatalogMetastoreClient extends AWSCatalogMetastor
 
     public NoFileSystemOpsAWSCatalogMetastoreClient(HiveConf conf) throws MetaException {
         super(conf);
+        installRateGovernor(conf);
     }
 
     private static final int BATCH_CREATE_PARTITIONS_PAGE_SIZE = 100;
     private static final int BATCH_CREATE_PARTITIONS_THREADS_COUNT = 5;
-    private static final ExecutorService BATCH_CREATE_PARTITIONS_THREAD_POOL =
-            Executors.newFixedThreadPool(BATCH_CREATE_PARTITIONS_THREADS_COUNT);
+
+    /**
+     * The writers of this client only, so a throttled region holding its threads through the sdk
+     * retries doesn't stall the clients of other regions.
+     */
+    private final ExecutorService batchCreatePartitionsThreadPool =
+            Executors.newFixedThreadPool(
+                    BATCH_CREATE_PARTITIONS_THREADS_COUNT,
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("batch-create-partitions-%d").build());
+
+    /** The max partitions of a BatchGetPartition call. */
+    private static final int BATCH_GET_PARTITIONS_PAGE_SIZE = 100;
+    private static final int BATCH_GET_PARTITIONS_THREADS_COUNT = 5;
+
+    /** The retries of the unprocessed keys of a BatchGetPartition page, with a doubling backoff. */
+    private static final int BATCH_GET_PARTITIONS_MAX_RETRIES = 8;
+    private static final long BATCH_GET_PARTITIONS_MIN_BACKOFF_MILLIS = 100;
+    private static final long BATCH_GET_PARTITIONS_MAX_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(5);
+    private static final ExecutorService BATCH_GET_PARTITIONS_THREAD_POOL =
+            Executors.newFixedThreadPool(
+                    BATCH_GET_PARTITIONS_THREADS_COUNT,
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("batch-get-partitions-%d").build());
 
     @Override
     public void createDatabase(org.apache.hadoop.hive.metastore.api.Database database)
@@ -114,6 +150,155 @@ public class NoFileSystemOpsAWSCatalogMetastoreClient extends AWSCatalogMetastor
         return CatalogToHiveConverter.convertPartitions(partitionsCreated);
     }
 
+    /**
+     * Get the partitions by BatchGetPartition in pages of {@link #BATCH_GET_PARTITIONS_PAGE_SIZE}
+     * concurrently, instead of a GetPartition call per name. Like hive metastore, the partitions
+     * which don't exist are left out of the result.
+     */
+    @Override
+    public List<org.apache.hadoop.hive.metastore.api.Partition> getPartitionsByNames(
+            final String dbName, final String tblName, final List<String> partNames) throws TException {
+        List<Future<List<Partition>>> futures = Lists.newArrayList();
+        for (int i = 0; i < partNames.size(); i += BATCH_GET_PARTITIONS_PAGE_SIZE) {
+            final List<PartitionValueList> partitionsOnePage = Lists.newArrayList();
+            for (String partName : partNames.subList(i, Math.min(i + BATCH_GET_PARTITIONS_PAGE_SIZE, partNames.size()))) {
+                partitionsOnePage.add(new PartitionValueList().withValues(Warehouse.getPartValuesFromPartName(partName)));
+            }
+            futures.add(BATCH_GET_PARTITIONS_THREAD_POOL.submit(() -> batchGetPartitions(dbName, tblName, partitionsOnePage)));
+        }
+
+        List<Partition> partitions = Lists.newArrayList();
+        try {
+            for (Future<List<Partition>> future : futures) {
+                partitions.addAll(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MetaException("Interrupted while getting partitions by names.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof AmazonServiceException) {
+                throw CatalogToHiveConverter.wrapInHiveException((AmazonServiceException) e.getCause());
+            }
+            throw new TException("Unable to get partitions by names.", e.getCause());
+        }
+        return CatalogToHiveConverter.convertPartitions(partitions);
+    }
+
+    /** The consumer of the pages of {@link #forEachPartitionPage}. */
+    public interface PartitionPageConsumer {
+        void accept(List<org.apache.hadoop.hive.metastore.api.Partition> page) throws TException;
+    }
+
+    /**
+     * List the partitions in a segment of the table. The segments split the partitions of the
+     * table disjointly, so each reader of a segment only reads its share.
+     */
+    public List<org.apache.hadoop.hive.metastore.api.Partition> listPartitionsInSegment(
+            final String dbName, final String tblName, final int segmentNumber, final int totalSegments)
+            throws TException {
+        List<org.apache.hadoop.hive.metastore.api.Partition> partitions = Lists.newArrayList();
+        forEachPartitionPageInSegment(dbName, tblName, segmentNumber, totalSegments, partitions::addAll);
+        return partitions;
+    }
+
+    /**
+     * Pass the partitions of the table to the consumer page by page as glue returns them, so the
+     * caller can compact or filter a page before the next one is read, instead of holding all the
+     * partitions of the table.
+     */
+    public void forEachPartitionPage(
+            final String dbName,
+            final String tblName,
+            final PartitionPageConsumer pageConsumer)
+            throws TException {
+        forEachPartitionPage(dbName, tblName, null, pageConsumer);
+    }
+
+    /** Pass the partitions in a segment of the table to the consumer page by page. */
+    public void forEachPartitionPageInSegment(
+            final String dbName,
+            final String tblName,
+            final int segmentNumber,
+            final int totalSegments,
+            final PartitionPageConsumer pageConsumer)
+            throws TException {
+        forEachPartitionPage(
+                dbName,
+                tblName,
+                new Segment().withSegmentNumber(segmentNumber).withTotalSegments(totalSegments),
+                pageConsumer);
+    }
+
+    private void forEachPartitionPage(
+            final String dbName,
+            final String tblName,
+            final Segment segment,
+            final PartitionPageConsumer pageConsumer)
+            throws TException {
+        try (Tracer.Span span =
+                Tracer.span("glue.getPartitions")
+                        .arg("segment", segment == null ? "all" : segment.getSegmentNumber() + "/" + segment.getTotalSegments())) {
+            int count = 0;
+            String nextToken = null;
+            do {
+                GetPartitionsResult result =
+                        getClient()
+                                .getPartitions(
+                                        new GetPartitionsRequest()
+                                                .withDatabaseName(dbName)
+                                                .withTableName(tblName)
+                                                .withSegment(segment)
+                                                .withNextToken(nextToken));
+                count += result.getPartitions().size();
+                pageConsumer.accept(CatalogToHiveConverter.convertPartitions(result.getPartitions()));
+                nextToken = result.getNextToken();
+            } while (nextToken != null);
+            span.arg("partitions", count);
+        } catch (AmazonServiceException e) {
+            throw CatalogToHiveConverter.wrapInHiveException(e);
+        } catch (TException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new TException("Unable to list partitions.", e);
+        }
+    }
+
+    /**
+     * Get a page of partitions. The unprocessed keys, which glue returns when it throttles, are
+     * requested again after a doubling backoff with jitter, up to {@link
+     * #BATCH_GET_PARTITIONS_MAX_RETRIES} times.
+     */
+    private List<Partition> batchGetPartitions(
+            final String dbName, final String tblName, final List<PartitionValueList> partitionsToGet)
+            throws Exception {
+        List<Partition> partitions = Lists.newArrayList();
+        List<PartitionValueList> remaining = partitionsToGet;
+        int retries = 0;
+        while (!remaining.isEmpty()) {
+            if (retries > 0) {
+                if (retries > BATCH_GET_PARTITIONS_MAX_RETRIES) {
+                    throw new MetaException(
+                            remaining.size() + " partitions of " + dbName + "." + tblName + " are still unprocessed after "
+                                    + BATCH_GET_PARTITIONS_MAX_RETRIES + " retries.");
+                }
+                long backoffMillis =
+                        Math.min(BATCH_GET_PARTITIONS_MIN_BACKOFF_MILLIS << (retries - 1), BATCH_GET_PARTITIONS_MAX_BACKOFF_MILLIS);
+                Thread.sleep(backoffMillis / 2 + ThreadLocalRandom.current().nextLong(backoffMillis / 2 + 1));
+            }
+            BatchGetPartitionResult result =
+                    getClient()
+                            .batchGetPartition(
+                                    new BatchGetPartitionRequest()
+                                            .withDatabaseName(dbName)
+                                            .withTableName(tblName)
+                                            .withPartitionsToGet(remaining));
+            partitions.addAll(result.getPartitions());
+            remaining = result.getUnprocessedKeys() == null ? Lists.newArrayList() : result.getUnprocessedKeys();
+            retries++;
+        }
+        return partitions;
+    }
+
     private List<Partition> batchCreatePartitions(
             final List<org.apache.hadoop.hive.metastore.api.Partition> hivePartitions,
             final boolean ifNotExists)
@@ -124,9 +309,11 @@ public class NoFileSystemOpsAWSCatalogMetastoreClient extends AWSCatalogMetastor
         }
 
         List<Partition> catalogPartitions = Lists.newArrayList();
-        for (org.apache.hadoop.hive.metastore.api.Partition partition : hivePartitions) {
-            Partition catalogPartition = HiveToCatalogConverter.convertPartition(partition);
-            catalogPartitions.add(catalogPartition);
+        try (Tracer.Span span = Tracer.span("convertPartitions").arg("partitions", hivePartitions.size())) {
+            for (org.apache.hadoop.hive.metastore.api.Partition partition : hivePartitions) {
+                Partition catalogPartition = HiveToCatalogConverter.convertPartition(partition);
+                catalogPartitions.add(catalogPartition);
+            }
         }
 
         org.apache.hadoop.hive.metastore.api.Partition firstPartition = hivePartitions.get(0);
@@ -140,7 +327,7 @@ public class NoFileSystemOpsAWSCatalogMetastoreClient extends AWSCatalogMetastor
             final List<Partition> partitionsOnePage = catalogPartitions.subList(i, j);
 
             batchCreatePartitionsFutures.add(
-                    BATCH_CREATE_PARTITIONS_THREAD_POOL.submit(
+                    batchCreatePartitionsThreadPool.submit(
                             new Callable<BatchCreatePartitionsHelper>() {
                                 @Override
                                 public BatchCreatePartitionsHelper call() throws Exception {
@@ -180,13 +367,35 @@ public class NoFileSystemOpsAWSCatalogMetastoreClient extends AWSCatalogMetastor
     public void close() {
         super.close();
         try {
-            if (null != BATCH_CREATE_PARTITIONS_THREAD_POOL) {
-                BATCH_CREATE_PARTITIONS_THREAD_POOL.shutdownNow();
-            }
+            batchCreatePartitionsThreadPool.shutdownNow();
         } catch (SecurityException e) {
             log.error("Unable to shutdown metastore client.", e);
         }
     }
+    /**
+     * Route all glue calls of this client, including the ones made by the super class and its
+     * delegate, through the rate governor shared by the process.
+     */
+    private void installRateGovernor(HiveConf conf) throws MetaException {
+        try {
+            AWSGlue throttledClient =
+                    GlueRateGovernor.getInstance(conf)
+                            .wrap(getClient(), AWSGlue.class, GlueRateGovernor.getPriority(conf));
+            Field delegateField = AWSCatalogMetastoreClient.class.getDeclaredField("glueMetastoreClientDelegate");
+            delegateField.setAccessible(true);
+            setField(AWSCatalogMetastoreClient.class, this, "glueClient", throttledClient);
+            setField(GlueMetastoreClientDelegate.class, delegateField.get(this), "glueClient", throttledClient);
+        } catch (Exception e) {
+            throw new MetaException("Unable to install glue rate governor: " + e);
+        }
+    }
+
+    private static void setField(Class<?> clazz, Object target, String name, Object value) throws Exception {
+        Field field = clazz.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+
     /** Get super class's hidden field . */
     private AWSGlue getClient() throws Exception {
         Field client = AWSCatalogMetastoreClient.class.getDeclaredField("glueClient");
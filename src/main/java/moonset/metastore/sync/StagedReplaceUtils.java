@@ -0,0 +1,144 @@
+package moonset.metastore.sync;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.hadoop.hive.metastore.IMetaStoreClient;
+import org.apache.hadoop.hive.metastore.api.Table;
+import org.apache.thrift.TException;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import moonset.metastore.sync.exception.MetastoreException;
+import moonset.metastore.sync.trace.Tracer;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Replace a hive table without a window where the readers see a missing or empty table. The new
+ * table is synced under a staging name first, its partition count is verified, and then it's
+ * swapped with the old table by two renames, so the table is only missing between them. A failed
+ * reload leaves the old table as it is. The old table is dropped in background after the swap.
+ *
+ * <p>Only the tables of hive metastore can be renamed in place, the tables are external, so
+ * neither the renames nor the drops touch the data.
+ */
+@Slf4j
+public final class StagedReplaceUtils {
+
+    /** Prevent the class to be instanced. */
+    private StagedReplaceUtils() {}
+
+    private static final String STAGING_SUFFIX = "__moonset_staging";
+
+    private static final String RETIRED_SUFFIX = "__moonset_retired";
+
+    /** Drop the retired tables, which is slow for the tables with many partitions. */
+    private static final ExecutorService DROP_EXECUTOR =
+            Executors.newSingleThreadExecutor(
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("retired-table-drop-%d").build());
+
+    /** The name to sync the new table into. */
+    public static String getStagingTableName(final String tableName) {
+        return tableName + STAGING_SUFFIX;
+    }
+
+    /**
+     * Drop the staging table left by a failed replace, so the staging table is synced from
+     * scratch.
+     */
+    public static void dropStagingTable(
+            final IMetaStoreClient dest, final String databaseName, final String tableName)
+            throws MetastoreException {
+        String stagingTableName = getStagingTableName(tableName);
+        try {
+            if (dest.tableExists(databaseName, stagingTableName)) {
+                log.info("Drop the staging table " + databaseName + "." + stagingTableName + ".");
+                dest.dropTable(databaseName, stagingTableName, false, true);
+            }
+        } catch (TException e) {
+            throw new MetastoreException("failed to drop the staging table", e);
+        }
+    }
+
+    /**
+     * Verify the staging table holds the expected number of partitions, and swap it with the
+     * table. The table is renamed to a retired name first, and then the staging table takes its
+     * name; the table is renamed back if the second rename fails.
+     *
+     * @param expectedPartitionCount the number of source partitions synced into the staging table.
+     * @return the retired name of the old table, which should be dropped afterwards.
+     * @throws MetastoreException if the partition count differs or the swap failed, the table is
+     *     unchanged then.
+     */
+    public static String swap(
+            final IMetaStoreClient dest,
+            final String databaseName,
+            final String tableName,
+            final int expectedPartitionCount)
+            throws MetastoreException {
+        String stagingTableName = getStagingTableName(tableName);
+        String retiredTableName = tableName + RETIRED_SUFFIX;
+        try (Tracer.Span span = Tracer.span("swapTable").arg("table", databaseName + "." + tableName)) {
+            int partitionCount = dest.listPartitionNames(databaseName, stagingTableName, (short) -1).size();
+            if (partitionCount != expectedPartitionCount) {
+                throw new MetastoreException(
+                        String.format(
+                                "The staging table %s.%s has %d partitions, while %d partitions are expected.",
+                                databaseName, stagingTableName, partitionCount, expectedPartitionCount));
+            }
+            if (dest.tableExists(databaseName, retiredTableName)) {
+                log.info("Drop the retired table " + retiredTableName + " left by a former replace.");
+                dest.dropTable(databaseName, retiredTableName, false, true);
+            }
+
+            rename(dest, databaseName, tableName, retiredTableName);
+            try {
+                rename(dest, databaseName, stagingTableName, tableName);
+            } catch (TException e) {
+                log.error("Failed to rename the staging table, restore the table " + tableName + ".", e);
+                rename(dest, databaseName, retiredTableName, tableName);
+                throw e;
+            }
+            log.info("The table " + databaseName + "." + tableName + " is swapped with the staging table.");
+            return retiredTableName;
+        } catch (TException e) {
+            throw new MetastoreException("failed to swap the staging table", e);
+        }
+    }
+
+    /**
+     * Drop the retired table in background by its own client, since the client of the sync isn't
+     * thread safe. The client is closed after the drop.
+     *
+     * @return the drop, which the process should wait for before exiting, since the thread is a
+     *     daemon.
+     */
+    public static CompletableFuture<Void> dropRetiredTable(
+            final IMetaStoreClient client, final String databaseName, final String retiredTableName) {
+        return CompletableFuture.runAsync(
+                () -> {
+                    try (Tracer.Span span = Tracer.span("dropRetiredTable").arg("table", databaseName + "." + retiredTableName)) {
+                        client.dropTable(databaseName, retiredTableName, false, true);
+                        log.info("The retired table " + databaseName + "." + retiredTableName + " is dropped.");
+                    } catch (TException e) {
+                        log.warn("Failed to drop the retired table " + databaseName + "." + retiredTableName + ", drop it manually.", e);
+                    } finally {
+                        client.close();
+                    }
+                },
+                DROP_EXECUTOR);
+    }
+
+    private static void rename(
+            final IMetaStoreClient dest,
+            final String databaseName,
+            final String fromTableName,
+            final String toTableName)
+            throws TException {
+        Table table = dest.getTable(databaseName, fromTableName);
+        table.setTableName(toTableName);
+        dest.alter_table(databaseName, fromTableName, table);
+    }
+}
@@ -0,0 +1,242 @@
+package moonset.metastore.sync.balance;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.hive.metastore.IMetaStoreClient;
+import org.apache.hadoop.hive.metastore.api.MetaException;
+import org.apache.thrift.TException;
+import org.apache.thrift.transport.TTransportException;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import moonset.metastore.sync.exception.MetastoreException;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A client of a highly available hive metastore which spreads the calls over all the thrift
+ * servers in hive.metastore.uris, instead of sending every call to the one server picked by a
+ * single connection.
+ *
+ * <p>Each call goes to the healthy server with the least outstanding calls, the ties are broken
+ * round robin. A server has a pool of connections, since a hive metastore client can't be shared
+ * by concurrent calls, so the calls of many threads run on many servers at once.
+ *
+ * <p>A server whose call fails on the connection is marked unhealthy for a backoff, which doubles
+ * with each failure up to {@link #MAX_BACKOFF_MILLIS}. The call fails over to another server if
+ * the connection couldn't be opened, or if the call is safe to repeat: a read, add_partitions
+ * with ifNotExists, or add_partitions_pspec, whose repeat fails with AlreadyExistsException which
+ * the batched writers retry with ifNotExists. Any other write whose response was lost may have
+ * been applied by the failed server, so its failure is surfaced to the caller instead.
+ */
+@Slf4j
+public final class BalancedMetastoreClient implements InvocationHandler {
+
+    private static final long MIN_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    private static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    /** Connect a hive metastore client to a single server. */
+    public interface Connector {
+        IMetaStoreClient connect(String uri) throws MetastoreException;
+    }
+
+    /** A thrift server of the metastore, with its idle connections and health. */
+    private static final class Endpoint {
+        private final String uri;
+        private final AtomicInteger outstandingCalls = new AtomicInteger();
+        private final Queue<IMetaStoreClient> idleClients = new ConcurrentLinkedQueue<>();
+        private long backoffMillis;
+        private long unhealthyUntilMillis;
+
+        private Endpoint(String uri) {
+            this.uri = uri;
+        }
+
+        private synchronized boolean isHealthy(long nowMillis) {
+            return nowMillis >= unhealthyUntilMillis;
+        }
+
+        private synchronized long getUnhealthyUntilMillis() {
+            return unhealthyUntilMillis;
+        }
+
+        private synchronized void markFailed(long nowMillis) {
+            backoffMillis = backoffMillis == 0 ? MIN_BACKOFF_MILLIS : Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+            unhealthyUntilMillis = nowMillis + backoffMillis;
+        }
+
+        private synchronized void markSucceeded() {
+            backoffMillis = 0;
+            unhealthyUntilMillis = 0;
+        }
+    }
+
+    private final List<Endpoint> endpoints;
+    private final Connector connector;
+    private final AtomicInteger nextEndpoint = new AtomicInteger();
+
+    private BalancedMetastoreClient(final List<String> uris, final Connector connector) {
+        ImmutableList.Builder<Endpoint> builder = ImmutableList.builder();
+        for (String uri : uris) {
+            builder.add(new Endpoint(uri));
+        }
+        this.endpoints = builder.build();
+        this.connector = connector;
+    }
+
+    /**
+     * Create a client balanced over the servers, the connections are opened on demand.
+     *
+     * @param uris the uris of the thrift servers, like thrift://host:9083.
+     */
+    public static IMetaStoreClient create(final List<String> uris, final Connector connector) {
+        if (uris.isEmpty()) {
+            throw new IllegalArgumentException("There is no metastore uri to balance over.");
+        }
+        return (IMetaStoreClient)
+                Proxy.newProxyInstance(
+                        IMetaStoreClient.class.getClassLoader(),
+                        new Class<?>[] {IMetaStoreClient.class},
+                        new BalancedMetastoreClient(uris, connector));
+    }
+
+    /** Whether the client is balanced over several servers. */
+    public static boolean isBalanced(final IMetaStoreClient client) {
+        return Proxy.isProxyClass(client.getClass())
+                && Proxy.getInvocationHandler(client) instanceof BalancedMetastoreClient;
+    }
+
+    /**
+     * The number of concurrent calls which the client spreads over its servers, one call per
+     * server, and 1 for the other clients.
+     */
+    public static int getParallelism(final IMetaStoreClient client) {
+        return isBalanced(client) ? ((BalancedMetastoreClient) Proxy.getInvocationHandler(client)).endpoints.size() : 1;
+    }
+
+    @Override
+    public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    return "BalancedMetaStoreClient" + Lists.transform(endpoints, endpoint -> endpoint.uri);
+            }
+        }
+        if ("close".equals(method.getName())) {
+            for (Endpoint endpoint : endpoints) {
+                IMetaStoreClient client;
+                while ((client = endpoint.idleClients.poll()) != null) {
+                    client.close();
+                }
+            }
+            return null;
+        }
+
+        Set<Endpoint> triedEndpoints = Sets.newHashSet();
+        Throwable lastFailure = null;
+        while (triedEndpoints.size() < endpoints.size()) {
+            Endpoint endpoint = choose(triedEndpoints);
+            triedEndpoints.add(endpoint);
+            endpoint.outstandingCalls.incrementAndGet();
+            IMetaStoreClient client = endpoint.idleClients.poll();
+            try {
+                if (client == null) {
+                    client = connector.connect(endpoint.uri);
+                }
+                Object result = method.invoke(client, args);
+                endpoint.markSucceeded();
+                endpoint.idleClients.add(client);
+                return result;
+            } catch (InvocationTargetException e) {
+                if (!isConnectionFailure(e.getCause())) {
+                    // The server answered, the connection is still good.
+                    endpoint.idleClients.add(client);
+                    throw e.getCause();
+                }
+                lastFailure = e.getCause();
+                client.close();
+                if (!isRepeatable(method, args)) {
+                    endpoint.markFailed(System.currentTimeMillis());
+                    throw lastFailure;
+                }
+            } catch (MetastoreException e) {
+                // The connection couldn't be opened, so the call never reached the server.
+                lastFailure = e;
+            } finally {
+                endpoint.outstandingCalls.decrementAndGet();
+            }
+            endpoint.markFailed(System.currentTimeMillis());
+            log.warn("The metastore " + endpoint.uri + " failed on " + method.getName() + ", fail over to another one.", lastFailure);
+        }
+        if (lastFailure instanceof TException) {
+            throw lastFailure;
+        }
+        MetaException metaException = new MetaException("All the metastores failed: " + lastFailure.getMessage());
+        metaException.initCause(lastFailure);
+        throw metaException;
+    }
+
+    /**
+     * The healthy endpoint not tried yet with the least outstanding calls, or the one which turns
+     * healthy first if none is healthy.
+     */
+    private Endpoint choose(final Set<Endpoint> triedEndpoints) {
+        long nowMillis = System.currentTimeMillis();
+        int start = Math.abs(nextEndpoint.getAndIncrement() % endpoints.size());
+        Endpoint chosen = null;
+        Endpoint firstRecovered = null;
+        for (int i = 0; i < endpoints.size(); i++) {
+            Endpoint endpoint = endpoints.get((start + i) % endpoints.size());
+            if (triedEndpoints.contains(endpoint)) {
+                continue;
+            }
+            if (!endpoint.isHealthy(nowMillis)) {
+                if (firstRecovered == null || endpoint.getUnhealthyUntilMillis() < firstRecovered.getUnhealthyUntilMillis()) {
+                    firstRecovered = endpoint;
+                }
+            } else if (chosen == null || endpoint.outstandingCalls.get() < chosen.outstandingCalls.get()) {
+                chosen = endpoint;
+            }
+        }
+        return chosen != null ? chosen : firstRecovered;
+    }
+
+    /** Whether the call has the same effect if repeated after its response was lost. */
+    private static boolean isRepeatable(final Method method, final Object[] args) {
+        String name = method.getName();
+        if (name.startsWith("get") || name.startsWith("list") || name.startsWith("show") || "tableExists".equals(name)) {
+            return true;
+        }
+        if ("add_partitions".equals(name)) {
+            // add_partitions(partitions, ifNotExists, needResults)
+            return args != null && args.length == 3 && Boolean.TRUE.equals(args[1]);
+        }
+        return "add_partitions_pspec".equals(name);
+    }
+
+    /** Whether the call failed on the connection, rather than being rejected by the server. */
+    private static boolean isConnectionFailure(final Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof TTransportException) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
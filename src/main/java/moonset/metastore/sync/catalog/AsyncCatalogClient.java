@@ -0,0 +1,303 @@
+package moonset.metastore.sync.catalog;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.glue.catalog.converters.CatalogToHiveConverter;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.glue.AWSGlueAsync;
+import com.amazonaws.services.glue.model.BatchCreatePartitionRequest;
+import com.amazonaws.services.glue.model.BatchCreatePartitionResult;
+import com.amazonaws.services.glue.model.CreateTableRequest;
+import com.amazonaws.services.glue.model.CreateTableResult;
+import com.amazonaws.services.glue.model.Database;
+import com.amazonaws.services.glue.model.DeleteTableRequest;
+import com.amazonaws.services.glue.model.DeleteTableResult;
+import com.amazonaws.services.glue.model.EntityNotFoundException;
+import com.amazonaws.services.glue.model.GetDatabaseRequest;
+import com.amazonaws.services.glue.model.GetDatabaseResult;
+import com.amazonaws.services.glue.model.GetPartitionsRequest;
+import com.amazonaws.services.glue.model.GetPartitionsResult;
+import com.amazonaws.services.glue.model.GetTableRequest;
+import com.amazonaws.services.glue.model.GetTableResult;
+import com.amazonaws.services.glue.model.Partition;
+import com.amazonaws.services.glue.model.PartitionError;
+import com.amazonaws.services.glue.model.PartitionInput;
+import com.amazonaws.services.glue.model.Segment;
+import com.amazonaws.services.glue.model.Table;
+import com.amazonaws.services.glue.model.TableInput;
+import com.amazonaws.services.glue.model.UpdateTableRequest;
+import com.amazonaws.services.glue.model.UpdateTableResult;
+import com.google.common.collect.Lists;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+
+import org.apache.commons.collections.CollectionUtils;
+import org.apache.hadoop.hive.metastore.api.AlreadyExistsException;
+import org.apache.thrift.TException;
+
+/**
+ * A non-blocking Catalog client on top of AWSGlueAsync. Every call returns a CompletableFuture which
+ * is completed by the SDK callback, so callers never park a thread while a Glue request is in
+ * flight.
+ */
+@Slf4j
+public class AsyncCatalogClient {
+
+    /** The max page size GetPartitions accepts. */
+    public static final int GET_PARTITIONS_PAGE_SIZE = 1000;
+
+    /** The max number of partitions BatchCreatePartition accepts. */
+    public static final int BATCH_CREATE_PARTITIONS_PAGE_SIZE = 100;
+
+    private final AWSGlueAsync glue;
+
+    /** The catalog(account) id to access, null means the caller's own account. */
+    private final String catalogId;
+
+    public AsyncCatalogClient(AWSGlueAsync glue) {
+        this(glue, null);
+    }
+
+    public AsyncCatalogClient(AWSGlueAsync glue, String catalogId) {
+        this.glue = glue;
+        this.catalogId = catalogId;
+    }
+
+    public AWSGlueAsync getGlue() {
+        return glue;
+    }
+
+    public CompletableFuture<Database> getDatabase(String database) {
+        FutureHandler<GetDatabaseRequest, GetDatabaseResult> handler = new FutureHandler<>();
+        glue.getDatabaseAsync(new GetDatabaseRequest().withCatalogId(catalogId).withName(database), handler);
+        return handler.thenApply(result -> result.getDatabase());
+    }
+
+    public CompletableFuture<Table> getTable(String database, String table) {
+        FutureHandler<GetTableRequest, GetTableResult> handler = new FutureHandler<>();
+        glue.getTableAsync(
+                new GetTableRequest().withCatalogId(catalogId).withDatabaseName(database).withName(table),
+                handler);
+        return handler.thenApply(result -> result.getTable());
+    }
+
+    /** Get the table, or null if it doesn't exist. */
+    public CompletableFuture<Table> getTableIfExists(String database, String table) {
+        return getTable(database, table)
+                .handle(
+                        (result, e) -> {
+                            if (e == null) {
+                                return result;
+                            }
+                            if (unwrap(e) instanceof EntityNotFoundException) {
+                                return null;
+                            }
+                            throw new CompletionException(unwrap(e));
+                        });
+    }
+
+    public CompletableFuture<Void> createTable(String database, TableInput tableInput) {
+        FutureHandler<CreateTableRequest, CreateTableResult> handler = new FutureHandler<>();
+        glue.createTableAsync(
+                new CreateTableRequest()
+                        .withCatalogId(catalogId)
+                        .withDatabaseName(database)
+                        .withTableInput(tableInput),
+                handler);
+        return handler.thenApply(result -> null);
+    }
+
+    public CompletableFuture<Void> updateTable(String database, TableInput tableInput) {
+        FutureHandler<UpdateTableRequest, UpdateTableResult> handler = new FutureHandler<>();
+        glue.updateTableAsync(
+                new UpdateTableRequest()
+                        .withCatalogId(catalogId)
+                        .withDatabaseName(database)
+                        .withTableInput(tableInput),
+                handler);
+        return handler.thenApply(result -> null);
+    }
+
+    public CompletableFuture<Void> deleteTable(String database, String table) {
+        FutureHandler<DeleteTableRequest, DeleteTableResult> handler = new FutureHandler<>();
+        glue.deleteTableAsync(
+                new DeleteTableRequest().withCatalogId(catalogId).withDatabaseName(database).withName(table),
+                handler);
+        return handler.thenApply(result -> null);
+    }
+
+    private CompletableFuture<GetPartitionsResult> getPartitions(GetPartitionsRequest request) {
+        FutureHandler<GetPartitionsRequest, GetPartitionsResult> handler = new FutureHandler<>();
+        glue.getPartitionsAsync(request, handler);
+        return handler;
+    }
+
+    /**
+     * Read the partitions page by page, and hand each page to <code>pageConsumer</code> as soon as
+     * it arrives, with at most <code>maxPagesInFlight</code> pages handed to the consumer and not
+     * completed yet. The next page is requested once a page completes, so reading overlaps with
+     * whatever the consumer does, and a slow consumer holds back the reads instead of piling the
+     * pages up in memory.
+     *
+     * @param expression the partition filter, null means all partitions.
+     * @param segment the segment to read, null means the whole table.
+     * @param pageConsumer invoked once per non-empty page.
+     * @return completed when all pages are read and all consumer futures are completed.
+     */
+    public CompletableFuture<Void> forEachPartitionPage(
+            String database,
+            String table,
+            String expression,
+            Segment segment,
+            int maxPagesInFlight,
+            Function<List<Partition>, CompletableFuture<?>> pageConsumer) {
+        GetPartitionsRequest request =
+                new GetPartitionsRequest()
+                        .withCatalogId(catalogId)
+                        .withDatabaseName(database)
+                        .withTableName(table)
+                        .withExpression(expression)
+                        .withSegment(segment)
+                        .withMaxResults(GET_PARTITIONS_PAGE_SIZE);
+        List<CompletableFuture<?>> consumers = Lists.newArrayList();
+        return readPages(request, pageConsumer, consumers, maxPagesInFlight)
+                .thenCompose(
+                        v -> {
+                            synchronized (consumers) {
+                                return CompletableFuture.allOf(
+                                        consumers.toArray(new CompletableFuture<?>[0]));
+                            }
+                        });
+    }
+
+    private CompletableFuture<Void> readPages(
+            GetPartitionsRequest request,
+            Function<List<Partition>, CompletableFuture<?>> pageConsumer,
+            List<CompletableFuture<?>> consumers,
+            int maxPagesInFlight) {
+        return getPartitions(request)
+                .thenCompose(
+                        result -> {
+                            // The page which must complete before the next page is requested.
+                            CompletableFuture<?> window = CompletableFuture.completedFuture(null);
+                            if (CollectionUtils.isNotEmpty(result.getPartitions())) {
+                                synchronized (consumers) {
+                                    consumers.add(pageConsumer.apply(result.getPartitions()));
+                                    if (consumers.size() >= maxPagesInFlight) {
+                                        window = consumers.get(consumers.size() - maxPagesInFlight);
+                                    }
+                                }
+                            }
+                            if (result.getNextToken() == null) {
+                                return CompletableFuture.completedFuture(null);
+                            }
+                            // A failed page fails the whole read once all pages are consumed.
+                            return window.handle((v, e) -> null)
+                                    .thenCompose(
+                                            v ->
+                                                    readPages(
+                                                            request.clone().withNextToken(result.getNextToken()),
+                                                            pageConsumer,
+                                                            consumers,
+                                                            maxPagesInFlight));
+                        });
+    }
+
+    /**
+     * Check if at least one partition matches the expression. Glue filters after paging, so an
+     * empty page with a next token doesn't mean there is no match. The pages are as large as in a
+     * listing, so a table without a match is scanned in as few calls as it is listed, and any
+     * non-empty page answers.
+     */
+    public CompletableFuture<Boolean> hasPartition(String database, String table, String expression) {
+        return hasPartition(
+                new GetPartitionsRequest()
+                        .withCatalogId(catalogId)
+                        .withDatabaseName(database)
+                        .withTableName(table)
+                        .withExpression(expression)
+                        .withMaxResults(GET_PARTITIONS_PAGE_SIZE));
+    }
+
+    private CompletableFuture<Boolean> hasPartition(GetPartitionsRequest request) {
+        return getPartitions(request)
+                .thenCompose(
+                        result -> {
+                            if (CollectionUtils.isNotEmpty(result.getPartitions())) {
+                                return CompletableFuture.completedFuture(true);
+                            }
+                            if (result.getNextToken() == null) {
+                                return CompletableFuture.completedFuture(false);
+                            }
+                            return hasPartition(request.clone().withNextToken(result.getNextToken()));
+                        });
+    }
+
+    /**
+     * Create the partitions with BatchCreatePartition, all pages are sent concurrently.
+     *
+     * @param ifNotExists ignore the partitions which already exist.
+     * @return completed when all pages are written, or exceptionally with the first failure.
+     */
+    public CompletableFuture<Void> batchCreatePartitions(
+            String database, String table, List<PartitionInput> partitionInputs, boolean ifNotExists) {
+        List<CompletableFuture<Void>> pages = Lists.newArrayList();
+        for (int i = 0; i < partitionInputs.size(); i += BATCH_CREATE_PARTITIONS_PAGE_SIZE) {
+            List<PartitionInput> onePage =
+                    partitionInputs.subList(
+                            i, Math.min(i + BATCH_CREATE_PARTITIONS_PAGE_SIZE, partitionInputs.size()));
+            FutureHandler<BatchCreatePartitionRequest, BatchCreatePartitionResult> handler =
+                    new FutureHandler<>();
+            glue.batchCreatePartitionAsync(
+                    new BatchCreatePartitionRequest()
+                            .withCatalogId(catalogId)
+                            .withDatabaseName(database)
+                            .withTableName(table)
+                            .withPartitionInputList(onePage),
+                    handler);
+            pages.add(
+                    handler.thenAccept(
+                            result -> {
+                                if (result.getErrors() == null) {
+                                    return;
+                                }
+                                for (PartitionError error : result.getErrors()) {
+                                    TException exception =
+                                            CatalogToHiveConverter.errorDetailToHiveException(
+                                                    error.getErrorDetail());
+                                    if (!(ifNotExists && exception instanceof AlreadyExistsException)) {
+                                        throw new CompletionException(exception);
+                                    }
+                                }
+                            }));
+        }
+        return CompletableFuture.allOf(pages.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /** Strip the CompletionException wrappers added by the CompletableFuture stages. */
+    public static Throwable unwrap(Throwable throwable) {
+        Throwable cause = throwable;
+        while (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause;
+    }
+
+    /** Bridge the SDK AsyncHandler callback to a CompletableFuture. */
+    private static class FutureHandler<Q extends AmazonWebServiceRequest, R>
+            extends CompletableFuture<R> implements AsyncHandler<Q, R> {
+        @Override
+        public void onError(Exception exception) {
+            completeExceptionally(exception);
+        }
+
+        @Override
+        public void onSuccess(Q request, R result) {
+            complete(result);
+        }
+    }
+}
@@ -1,20 +1,27 @@
 package moonset.metastore.sync.catalog;
 
+import moonset.metastore.sync.MetastoreClientFactory;
+import moonset.metastore.sync.NoFileSystemOpsAWSCatalogMetastoreClient;
 import moonset.metastore.sync.exception.MetastoreException;
-import moonset.metastore.sync.util.MetastoreRequestParamGenerator;
+import moonset.metastore.sync.shard.Shard;
+import moonset.metastore.sync.trace.Tracer;
+import moonset.metastore.sync.util.PartitionFilterCompiler;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 
+import org.apache.commons.collections.MapUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.hadoop.hive.metastore.HiveMetaStoreClient;
 import org.apache.hadoop.hive.metastore.IMetaStoreClient;
+import org.apache.hadoop.hive.metastore.Warehouse;
 import org.apache.hadoop.hive.metastore.api.FieldSchema;
 import org.apache.hadoop.hive.metastore.api.MetaException;
 import org.apache.hadoop.hive.metastore.api.NoSuchObjectException;
@@ -28,10 +35,27 @@ import org.apache.thrift.TException;
 @Slf4j
 public class CatalogClient {
 
+    /** The partitions fetched by one getPartitionsByNames call when paging all partitions. */
+    private static final int PARTITION_PAGE_SIZE = 1000;
+
+    /** The missing partition names written to the log at most. */
+    private static final int MISSING_PARTITIONS_LOGGED = 20;
+
     private IMetaStoreClient client;
 
+    private final PartitionFilterCompiler filterCompiler;
+
     public CatalogClient(IMetaStoreClient client) {
+        this(client, new PartitionFilterCompiler());
+    }
+
+    /**
+     * @param filterCompiler compile the partition patterns into the filter expressions which fit
+     *     the expression length limit of the metastore.
+     */
+    public CatalogClient(IMetaStoreClient client, PartitionFilterCompiler filterCompiler) {
         this.client = client;
+        this.filterCompiler = filterCompiler;
     }
     public List<FieldSchema> getPartitionColumns(String dbName, String tableName) throws MetastoreException {
         try {
@@ -54,7 +78,22 @@ public class CatalogClient {
 
     public List<Partition> getPartitions(String database, String table, Map<String, String> partVals) throws MetastoreException {
         log.trace(String.format("The input arguments: database %s, table %s, partVals %s.", database, table, partVals));
-        if(client instanceof HiveMetaStoreClient) {
+        List<FieldSchema> partitionColumns = getPartitionColumns(database, table);
+        if (isFullySpecified(partitionColumns, partVals)) {
+            log.info("Every partition key has explicit values, get the partitions by names.");
+            List<String> missingPartitionNames = Lists.newArrayList();
+            List<Partition> partitions = getPartitionsByValues(database, table, partitionColumns, partVals, missingPartitionNames);
+            if (!missingPartitionNames.isEmpty()) {
+                log.warn(String.format(
+                        "%d of the requested partitions don't exist: %s",
+                        missingPartitionNames.size(),
+                        missingPartitionNames.size() > MISSING_PARTITIONS_LOGGED
+                                ? missingPartitionNames.subList(0, MISSING_PARTITIONS_LOGGED) + "..."
+                                : missingPartitionNames));
+            }
+            return partitions;
+        }
+        if(MetastoreClientFactory.isHiveMetastoreClient(client)) {
             log.info("Pull all partitions and filter local side for HiveMetaStoreClient, since HiveMetaStoreClient.listPartitionsByFilter can " +
                      "only filter string type when hive.metastore.intergal.jdo.pushdown disabled, and case senstive when hive.metastore.intergal.jdo.pushdown enabled, " +
                      "both of them undesired.");
@@ -71,18 +110,103 @@ public class CatalogClient {
             }
             return partitions;
         } else {
-            try {
-                // Only load specify partitions
-                return client.listPartitionsByFilter(
-                    database,
-                    table,
-                    MetastoreRequestParamGenerator.generateCompositePartitionFilter(partVals),
-                    (short) -1);
-            } catch(TException e) {
-                throw new MetastoreException("fail to get table partitions.", e);
+            // Only load specify partitions
+            try (Tracer.Span span = Tracer.span("listPartitionsByFilter")) {
+                List<Partition> partitions = filterCompiler.listPartitionsByFilter(client, database, table, partVals);
+                span.arg("partitions", partitions.size());
+                return partitions;
+            }
+        }
+    }
+    /**
+     * Get the partitions of every combination of the values in <code>partVals</code>, which should
+     * give the values of every partition key. Hive metastore is asked by getPartitionsByNames in
+     * pages, and data catalog by BatchGetPartition calls in parallel, so the cost scales with the
+     * requested partitions instead of the table size.
+     *
+     * @param partitionColumns the partition keys of the table.
+     * @param missingPartitionNames the names of the requested partitions which don't exist are
+     *     added to it.
+     */
+    public List<Partition> getPartitionsByValues(
+            String database,
+            String table,
+            List<FieldSchema> partitionColumns,
+            Map<String, String> partVals,
+            List<String> missingPartitionNames)
+            throws MetastoreException {
+        List<String> patternKeys = filterCompiler.getKeys(partVals);
+        int[] order = new int[partitionColumns.size()];
+        for (int i = 0; i < partitionColumns.size(); i++) {
+            order[i] = indexOfIgnoreCase(patternKeys, partitionColumns.get(i).getName());
+        }
+        try (Tracer.Span span = Tracer.span("getPartitionsByNames")) {
+            Set<String> requestedNames = Sets.newLinkedHashSet();
+            for (List<String> combination : filterCompiler.expand(partVals)) {
+                List<String> values = Lists.newArrayListWithCapacity(order.length);
+                for (int index : order) {
+                    values.add(combination.get(index));
+                }
+                requestedNames.add(Warehouse.makePartName(partitionColumns, values));
+            }
+            span.arg("requested", requestedNames.size());
+
+            List<Partition> partitions = getPartitionsByNames(database, table, Lists.newArrayList(requestedNames));
+            span.arg("partitions", partitions.size());
+
+            for (Partition partition : partitions) {
+                requestedNames.remove(Warehouse.makePartName(partitionColumns, partition.getValues()));
             }
+            missingPartitionNames.addAll(requestedNames);
+            return partitions;
+        } catch (TException e) {
+            throw new MetastoreException("fail to get table partitions by names.", e);
         }
     }
+
+    /**
+     * Get the partitions by names, the names which don't exist are ignored. The names are sent to
+     * hive metastore page by page.
+     */
+    public List<Partition> getPartitionsByNames(String database, String table, List<String> names) throws MetastoreException {
+        // The data catalog client pages and parallelizes itself.
+        int pageSize = MetastoreClientFactory.isHiveMetastoreClient(client) ? PARTITION_PAGE_SIZE : Math.max(names.size(), 1);
+        List<Partition> partitions = Lists.newArrayList();
+        try {
+            for (int i = 0; i < names.size(); i += pageSize) {
+                partitions.addAll(client.getPartitionsByNames(database, table, names.subList(i, Math.min(i + pageSize, names.size()))));
+            }
+        } catch (TException e) {
+            throw new MetastoreException("fail to get table partitions by names.", e);
+        }
+        return partitions;
+    }
+
+    /** Whether the patterns give the values of every partition key and nothing else. */
+    private static boolean isFullySpecified(List<FieldSchema> partitionColumns, Map<String, String> partVals) {
+        if (MapUtils.isEmpty(partVals) || partitionColumns.size() != partVals.size()) {
+            return false;
+        }
+        Map<String, String> patterns = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        patterns.putAll(partVals);
+        for (FieldSchema column : partitionColumns) {
+            String pattern = patterns.get(column.getName());
+            if (pattern == null || pattern.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOfIgnoreCase(List<String> keys, String key) {
+        for (int i = 0; i < keys.size(); i++) {
+            if (keys.get(i).equalsIgnoreCase(key)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("The partition key " + key + " is not specified.");
+    }
+
     /**
      * Make a map's key case insensitive.
      */
@@ -111,11 +235,101 @@ public class CatalogClient {
 
     }
     public List<Partition> getAllPartitions(String database, String table) throws MetastoreException {
+        try (Tracer.Span span = Tracer.span("listPartitions")) {
+            List<Partition> partitions = client.listPartitions(database, table, (short) -1); // -1 means get all partitions.
+            span.arg("partitions", partitions.size());
+            return partitions;
+        } catch (TException e) {
+            throw new MetastoreException("fail to sync partitions .", e);
+        }
+    }
+
+    /**
+     * Get all partitions of the given table in a {@link CompactPartitionSet}, so the full thrift
+     * partitions never live in memory all together. The partitions of hive metastore and data
+     * catalog are fetched and compacted page by page. Other clients fetch all partitions at once
+     * anyway, so the fetched partitions are released one by one as they are compacted.
+     */
+    public CompactPartitionSet getAllPartitionsCompact(String database, String table) throws MetastoreException {
+        return getAllPartitionsCompact(database, table, null);
+    }
+
+    /**
+     * Get the partitions of the given table in the shard, see {@link Shard}. Only the partitions of
+     * the shard are fetched from hive metastore, and from data catalog if it's split by segments.
+     *
+     * @param shard the shard, null means all partitions.
+     */
+    public CompactPartitionSet getAllPartitionsCompact(String database, String table, Shard shard) throws MetastoreException {
+        CompactPartitionSet partitions = new CompactPartitionSet(database, table);
         try {
-            return client.listPartitions(database, table, (short) -1); // -1 means get all partitions.
+            IMetaStoreClient unwrappedClient = MetastoreClientFactory.unwrap(client);
+            if (unwrappedClient instanceof NoFileSystemOpsAWSCatalogMetastoreClient) {
+                NoFileSystemOpsAWSCatalogMetastoreClient glueClient = (NoFileSystemOpsAWSCatalogMetastoreClient) unwrappedClient;
+                if (shard != null && shard.isSegment()) {
+                    glueClient.forEachPartitionPageInSegment(
+                            database, table, shard.getIndex(), shard.getCount(), partitions::addAll);
+                } else {
+                    List<FieldSchema> partitionColumns = shard == null ? null : getPartitionColumns(database, table);
+                    glueClient.forEachPartitionPage(
+                            database,
+                            table,
+                            page -> {
+                                for (Partition partition : page) {
+                                    if (shard == null
+                                            || shard.contains(Warehouse.makePartName(partitionColumns, partition.getValues()))) {
+                                        partitions.add(partition);
+                                    }
+                                }
+                            });
+                }
+            } else if (MetastoreClientFactory.isHiveMetastoreClient(client)) {
+                List<String> partitionNames;
+                try (Tracer.Span span = Tracer.span("listPartitionNames")) {
+                    partitionNames = client.listPartitionNames(database, table, (short) -1);
+                    span.arg("partitions", partitionNames.size());
+                }
+                if (shard != null) {
+                    List<String> shardNames = Lists.newArrayList();
+                    for (String partitionName : partitionNames) {
+                        if (shard.contains(partitionName)) {
+                            shardNames.add(partitionName);
+                        }
+                    }
+                    partitionNames = shardNames;
+                }
+                for (int i = 0; i < partitionNames.size(); i += PARTITION_PAGE_SIZE) {
+                    List<String> page = partitionNames.subList(i, Math.min(i + PARTITION_PAGE_SIZE, partitionNames.size()));
+                    try (Tracer.Span span = Tracer.span("getPartitionsByNames").arg("partitions", page.size())) {
+                        partitions.addAll(client.getPartitionsByNames(database, table, page));
+                    }
+                }
+            } else {
+                List<Partition> allPartitions;
+                try (Tracer.Span span = Tracer.span("listPartitions")) {
+                    allPartitions = client.listPartitions(database, table, (short) -1);
+                    span.arg("partitions", allPartitions.size());
+                }
+                List<FieldSchema> partitionColumns = shard == null ? null : getPartitionColumns(database, table);
+                try (Tracer.Span span = Tracer.span("compactPartitions").arg("partitions", allPartitions.size())) {
+                    for (int i = 0; i < allPartitions.size(); i++) {
+                        Partition partition = allPartitions.set(i, null);
+                        if (shard == null || shard.contains(Warehouse.makePartName(partitionColumns, partition.getValues()))) {
+                            partitions.add(partition);
+                        }
+                    }
+                }
+            }
         } catch (TException e) {
             throw new MetastoreException("fail to sync partitions .", e);
         }
+        log.info(
+                "There are "
+                        + partitions.size()
+                        + " partitions sharing "
+                        + partitions.getStorageDescriptorCount()
+                        + " storage descriptors.");
+        return partitions;
     }
 
     /**
@@ -152,8 +366,7 @@ public class CatalogClient {
             Map<String, String> partitionSpec, boolean ifExists, boolean deleteData)
         throws MetastoreException, TException {
         log.info("Dropping partitions iteratively.");
-        List<Partition> partitions = client.listPartitionsByFilter(dbName, tableName,
-                MetastoreRequestParamGenerator.generateCompositePartitionFilter(partitionSpec), (short) -1);
+        List<Partition> partitions = filterCompiler.listPartitionsByFilter(client, dbName, tableName, partitionSpec);
         for (Partition partition : partitions) {
             dropPartition(partition, ifExists, deleteData);
         }
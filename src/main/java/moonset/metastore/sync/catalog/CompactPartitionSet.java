@@ -0,0 +1,194 @@
+package moonset.metastore.sync.catalog;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.hive.metastore.api.Partition;
+import org.apache.hadoop.hive.metastore.api.PrincipalPrivilegeSet;
+import org.apache.hadoop.hive.metastore.api.StorageDescriptor;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * A memory efficient set of partitions of one table. The partitions of a table usually have the
+ * same storage descriptor except the location, so each distinct storage descriptor is kept only
+ * once as a template, and the partition values, location prefixes and parameters are interned.
+ * The full thrift partitions are only expanded by the writer, one batch at a time.
+ *
+ * <p>The database and table names of the added partitions are ignored, the expanded partitions
+ * always belong to the table of the set. Adding isn't thread safe, while expanding a populated set
+ * from many threads is.
+ */
+public final class CompactPartitionSet {
+
+    private static final String PATH_SEPARATOR = "/";
+
+    /** The fields of a partition which aren't shared by the storage descriptor template. */
+    private static final class Entry {
+        private final String[] values;
+        private final int template;
+        private final String locationPrefix;
+        private final String locationName;
+        private final int createTime;
+        private final int lastAccessTime;
+        private final String[] parameters;
+        private final PrincipalPrivilegeSet privileges;
+
+        private Entry(
+                String[] values,
+                int template,
+                String locationPrefix,
+                String locationName,
+                int createTime,
+                int lastAccessTime,
+                String[] parameters,
+                PrincipalPrivilegeSet privileges) {
+            this.values = values;
+            this.template = template;
+            this.locationPrefix = locationPrefix;
+            this.locationName = locationName;
+            this.createTime = createTime;
+            this.lastAccessTime = lastAccessTime;
+            this.parameters = parameters;
+            this.privileges = privileges;
+        }
+    }
+
+    private final String databaseName;
+
+    private final String tableName;
+
+    private final List<StorageDescriptor> templates = Lists.newArrayList();
+
+    private final Map<StorageDescriptor, Integer> templateIndexes = Maps.newHashMap();
+
+    private final Map<String, String> strings = Maps.newHashMap();
+
+    private final List<Entry> entries = Lists.newArrayList();
+
+    public CompactPartitionSet(String databaseName, String tableName) {
+        this.databaseName = databaseName;
+        this.tableName = tableName;
+    }
+
+    public String getDatabaseName() {
+        return databaseName;
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /** The number of distinct storage descriptors regardless of the location. */
+    public int getStorageDescriptorCount() {
+        return templates.size();
+    }
+
+    public void addAll(Collection<Partition> partitions) {
+        for (Partition partition : partitions) {
+            add(partition);
+        }
+    }
+
+    /** Add a partition. The partition isn't referenced by the set, and can be discarded afterwards. */
+    public void add(Partition partition) {
+        StorageDescriptor sd = partition.getSd();
+        String location = sd == null ? null : sd.getLocation();
+        int template = -1;
+        if (sd != null) {
+            // Look up the template without the location, and restore it afterwards.
+            sd.setLocation(null);
+            Integer index = templateIndexes.get(sd);
+            if (index == null) {
+                index = templates.size();
+                StorageDescriptor copy = sd.deepCopy();
+                templates.add(copy);
+                templateIndexes.put(copy, index);
+            }
+            template = index;
+            sd.setLocation(location);
+        }
+
+        String locationPrefix = null;
+        String locationName = location;
+        if (location != null && location.contains(PATH_SEPARATOR)) {
+            int separator = location.lastIndexOf(PATH_SEPARATOR) + 1;
+            locationPrefix = intern(location.substring(0, separator));
+            locationName = location.substring(separator);
+        }
+
+        String[] values = new String[partition.getValuesSize()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = intern(partition.getValues().get(i));
+        }
+        String[] parameters = null;
+        if (partition.getParameters() != null) {
+            parameters = new String[partition.getParametersSize() * 2];
+            int i = 0;
+            for (Map.Entry<String, String> parameter : partition.getParameters().entrySet()) {
+                parameters[i++] = intern(parameter.getKey());
+                parameters[i++] = intern(parameter.getValue());
+            }
+        }
+        entries.add(
+                new Entry(
+                        values,
+                        template,
+                        locationPrefix,
+                        intern(locationName),
+                        partition.getCreateTime(),
+                        partition.getLastAccessTime(),
+                        parameters,
+                        partition.getPrivileges()));
+    }
+
+    /** Expand the partition at the index to a full thrift partition, which the caller owns. */
+    public Partition get(int index) {
+        Entry entry = entries.get(index);
+        Partition partition = new Partition();
+        partition.setDbName(databaseName);
+        partition.setTableName(tableName);
+        partition.setValues(Lists.newArrayList(entry.values));
+        partition.setCreateTime(entry.createTime);
+        partition.setLastAccessTime(entry.lastAccessTime);
+        if (entry.template >= 0) {
+            StorageDescriptor sd = templates.get(entry.template).deepCopy();
+            sd.setLocation(entry.locationPrefix == null ? entry.locationName : entry.locationPrefix + entry.locationName);
+            partition.setSd(sd);
+        }
+        if (entry.parameters != null) {
+            Map<String, String> parameters = Maps.newHashMapWithExpectedSize(entry.parameters.length / 2);
+            for (int i = 0; i < entry.parameters.length; i += 2) {
+                parameters.put(entry.parameters[i], entry.parameters[i + 1]);
+            }
+            partition.setParameters(parameters);
+        }
+        if (entry.privileges != null) {
+            partition.setPrivileges(entry.privileges.deepCopy());
+        }
+        return partition;
+    }
+
+    /** Expand the partitions in the range [from, to). */
+    public List<Partition> expand(int from, int to) {
+        List<Partition> partitions = Lists.newArrayListWithCapacity(to - from);
+        for (int i = from; i < to; i++) {
+            partitions.add(get(i));
+        }
+        return partitions;
+    }
+
+    private String intern(String value) {
+        if (value == null) {
+            return null;
+        }
+        String interned = strings.putIfAbsent(value, value);
+        return interned == null ? value : interned;
+    }
+}
@@ -0,0 +1,347 @@
+package moonset.metastore.sync.coordination;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+
+import moonset.metastore.sync.util.CLIArgsTokenizer;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Coalesce the concurrent syncs of the same table on a host, so N syncs launched together cost one
+ * or two syncs instead of N. The syncs are coordinated by lock files in a local directory:
+ *
+ * <ul>
+ *   <li>The sync holding the lock file of the table runs, the others append their partition specs
+ *       to the pending file and wait for the lock.
+ *   <li>A waiter which gets the lock reuses the result of the sync it waited for, if that sync
+ *       succeeded and its specs cover the waiter's spec. A sync which had already finished when
+ *       the waiter came is never reused.
+ *   <li>Otherwise the waiter runs a follow-up sync of all the pending specs merged, which covers
+ *       the other waiters, and they reuse its result in turn.
+ * </ul>
+ *
+ * <p>The specs are the {@link CLIArgsTokenizer} partition patterns, {@link #ALL_PARTITIONS} or
+ * {@link #NO_PARTITION}. The locks are released by the OS if a process dies.
+ */
+@Slf4j
+public class SyncCoalescer {
+
+    /** The spec of a sync of all partitions. */
+    public static final String ALL_PARTITIONS = "*";
+
+    /** The spec of a sync of the table only, which every sync covers. */
+    public static final String NO_PARTITION = "";
+
+    private static final String PENDING_SEPARATOR = "\t";
+
+    private static final String RUN_ID = "run";
+    private static final String STATUS = "status";
+    private static final String RUNNING = "running";
+    private static final String SUCCEEDED = "succeeded";
+    private static final String FAILED = "failed";
+    private static final String SPEC_COUNT = "specs";
+    private static final String SPEC = "spec.";
+
+    /** The sync of the merged specs. */
+    public interface SyncRun {
+        void run(String spec) throws Exception;
+    }
+
+    private final Path lockFile;
+    private final Path pendingFile;
+    private final Path pendingLockFile;
+    private final Path stateFile;
+
+    /**
+     * @param directory the directory of the lock files, it's created if absent.
+     * @param key identifies the syncs which can be coalesced, such as the command line without the
+     *     partition spec.
+     */
+    public SyncCoalescer(final Path directory, final String key) throws IOException {
+        Files.createDirectories(directory);
+        String name = Hashing.sha256().hashString(key, StandardCharsets.UTF_8).toString();
+        this.lockFile = directory.resolve(name + ".lock");
+        this.pendingFile = directory.resolve(name + ".pending");
+        this.pendingLockFile = directory.resolve(name + ".pending.lock");
+        this.stateFile = directory.resolve(name + ".state");
+    }
+
+    /**
+     * Run the sync of the spec, or reuse the result of a concurrent sync covering it.
+     *
+     * @return true if this process ran a sync, false if the result of another sync is reused.
+     */
+    public boolean run(final String spec, final SyncRun sync) throws Exception {
+        String requestId = ManagementFactory.getRuntimeMXBean().getName() + "@" + System.nanoTime();
+        try (FileChannel channel =
+                FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            FileLock lock = channel.tryLock();
+            if (lock == null) {
+                appendPending(requestId, spec);
+                Properties stateBefore = readState();
+                log.info("Another sync of the table is running, wait for it.");
+                lock = channel.lock();
+                Properties state = readState();
+                boolean finishedBefore =
+                        !RUNNING.equals(stateBefore.getProperty(STATUS))
+                                && isSameRun(stateBefore, state);
+                if (!finishedBefore
+                        && SUCCEEDED.equals(state.getProperty(STATUS))
+                        && covers(getSpecs(state), spec)) {
+                    removePending(requestId);
+                    lock.release();
+                    log.info("The sync is covered by the finished sync of " + getSpecs(state) + ", reuse its result.");
+                    return false;
+                }
+            }
+            try {
+                // Our spec may have been taken by a failed sync, so it's added back.
+                Set<String> specs = Sets.newLinkedHashSet(drainPending());
+                specs.add(spec);
+                List<String> mergedSpecs = merge(specs);
+                log.info("Run the sync of " + mergedSpecs + " for " + specs.size() + " requests.");
+                writeState(requestId, mergedSpecs, RUNNING);
+                boolean succeeded = false;
+                try {
+                    for (String mergedSpec : mergedSpecs) {
+                        sync.run(mergedSpec);
+                    }
+                    succeeded = true;
+                } finally {
+                    writeState(requestId, mergedSpecs, succeeded ? SUCCEEDED : FAILED);
+                }
+                return true;
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /** Whether a sync of any of the specs syncs the partitions of the spec. */
+    public static boolean covers(final List<String> specs, final String spec) {
+        for (String coveringSpec : specs) {
+            if (covers(coveringSpec, spec)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean covers(final String coveringSpec, final String spec) {
+        if (ALL_PARTITIONS.equals(coveringSpec) || NO_PARTITION.equals(spec)) {
+            return true;
+        }
+        if (NO_PARTITION.equals(coveringSpec) || ALL_PARTITIONS.equals(spec)) {
+            return false;
+        }
+        Map<String, Set<String>> coveringPatterns = parse(coveringSpec);
+        Map<String, Set<String>> patterns = parse(spec);
+        for (Map.Entry<String, Set<String>> entry : coveringPatterns.entrySet()) {
+            // A key absent from the covering spec matches any value.
+            Set<String> values = patterns.get(entry.getKey());
+            if (values == null || !entry.getValue().containsAll(values)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Merge the specs into the fewest specs covering them. The specs covered by others are
+     * dropped, and two specs with the same keys which differ in the values of one key are merged
+     * into one by the union of those values.
+     */
+    public static List<String> merge(final Set<String> specs) {
+        if (specs.contains(ALL_PARTITIONS)) {
+            return Lists.newArrayList(ALL_PARTITIONS);
+        }
+        List<Map<String, Set<String>>> patterns = Lists.newArrayList();
+        for (String spec : specs) {
+            if (!NO_PARTITION.equals(spec)) {
+                patterns.add(parse(spec));
+            }
+        }
+        if (patterns.isEmpty()) {
+            return Lists.newArrayList(NO_PARTITION);
+        }
+        boolean merged = true;
+        while (merged) {
+            merged = false;
+            for (int i = 0; i < patterns.size() && !merged; i++) {
+                for (int j = i + 1; j < patterns.size() && !merged; j++) {
+                    Map<String, Set<String>> union = union(patterns.get(i), patterns.get(j));
+                    if (union != null) {
+                        patterns.set(i, union);
+                        patterns.remove(j);
+                        merged = true;
+                    }
+                }
+            }
+        }
+        List<String> mergedSpecs = Lists.newArrayList();
+        for (Map<String, Set<String>> pattern : patterns) {
+            mergedSpecs.add(render(pattern));
+        }
+        return mergedSpecs;
+    }
+
+    /** The union of two patterns if it can be expressed by one pattern, otherwise null. */
+    private static Map<String, Set<String>> union(
+            final Map<String, Set<String>> left, final Map<String, Set<String>> right) {
+        String leftSpec = render(left);
+        String rightSpec = render(right);
+        if (covers(leftSpec, rightSpec)) {
+            return left;
+        }
+        if (covers(rightSpec, leftSpec)) {
+            return right;
+        }
+        if (!left.keySet().equals(right.keySet())) {
+            return null;
+        }
+        String differentKey = null;
+        for (String key : left.keySet()) {
+            if (!left.get(key).equals(right.get(key))) {
+                if (differentKey != null) {
+                    return null;
+                }
+                differentKey = key;
+            }
+        }
+        Map<String, Set<String>> union = Maps.newTreeMap();
+        union.putAll(left);
+        union.put(differentKey, Sets.union(left.get(differentKey), right.get(differentKey)).copyInto(new TreeSet<>()));
+        return union;
+    }
+
+    private static Map<String, Set<String>> parse(final String spec) {
+        Map<String, Set<String>> patterns = Maps.newTreeMap();
+        for (Map.Entry<String, String> entry : CLIArgsTokenizer.parsePartition(spec).entrySet()) {
+            patterns.put(
+                    entry.getKey().toLowerCase(),
+                    Sets.newTreeSet(
+                            Lists.newArrayList(entry.getValue().split(CLIArgsTokenizer.PARTITION_VALUE_SEPARATOR))));
+        }
+        return patterns;
+    }
+
+    private static String render(final Map<String, Set<String>> patterns) {
+        List<String> entries = Lists.newArrayList();
+        for (Map.Entry<String, Set<String>> entry : patterns.entrySet()) {
+            entries.add(
+                    entry.getKey()
+                            + CLIArgsTokenizer.PARTITION_KEY_SEPARATOR
+                            + Joiner.on(CLIArgsTokenizer.PARTITION_VALUE_SEPARATOR).join(entry.getValue()));
+        }
+        return Joiner.on(CLIArgsTokenizer.PARTITION_ENTRY_SEPARATOR).join(entries);
+    }
+
+    private void appendPending(final String requestId, final String spec) throws IOException {
+        try (FileChannel channel =
+                        FileChannel.open(pendingLockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                FileLock lock = channel.lock()) {
+            Files.write(
+                    pendingFile,
+                    Lists.newArrayList(requestId + PENDING_SEPARATOR + spec),
+                    StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND);
+        }
+    }
+
+    private void removePending(final String requestId) throws IOException {
+        try (FileChannel channel =
+                        FileChannel.open(pendingLockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                FileLock lock = channel.lock()) {
+            if (!Files.exists(pendingFile)) {
+                return;
+            }
+            List<String> lines = Files.readAllLines(pendingFile, StandardCharsets.UTF_8);
+            Iterator<String> iterator = lines.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().startsWith(requestId + PENDING_SEPARATOR)) {
+                    iterator.remove();
+                }
+            }
+            Files.write(pendingFile, lines, StandardCharsets.UTF_8);
+        }
+    }
+
+    /** Take all the pending specs. */
+    private List<String> drainPending() throws IOException {
+        try (FileChannel channel =
+                        FileChannel.open(pendingLockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                FileLock lock = channel.lock()) {
+            List<String> specs = Lists.newArrayList();
+            if (Files.exists(pendingFile)) {
+                for (String line : Files.readAllLines(pendingFile, StandardCharsets.UTF_8)) {
+                    specs.add(line.substring(line.indexOf(PENDING_SEPARATOR) + 1));
+                }
+                Files.delete(pendingFile);
+            }
+            return specs;
+        }
+    }
+
+    private Properties readState() throws IOException {
+        Properties state = new Properties();
+        if (Files.exists(stateFile)) {
+            try (InputStream in = Files.newInputStream(stateFile)) {
+                state.load(in);
+            }
+        }
+        return state;
+    }
+
+    /** Whether the states are of the same sync. */
+    private static boolean isSameRun(final Properties left, final Properties right) {
+        return left.getProperty(RUN_ID, "").equals(right.getProperty(RUN_ID, ""));
+    }
+
+    private static List<String> getSpecs(final Properties state) {
+        List<String> specs = Lists.newArrayList();
+        int count = Integer.parseInt(state.getProperty(SPEC_COUNT, "0"));
+        for (int i = 0; i < count; i++) {
+            specs.add(state.getProperty(SPEC + i));
+        }
+        return specs;
+    }
+
+    /** Write the state by a rename, so a crash never leaves a partial state. */
+    private void writeState(final String runId, final List<String> specs, final String status) throws IOException {
+        Properties state = new Properties();
+        state.setProperty(RUN_ID, runId);
+        state.setProperty(STATUS, status);
+        state.setProperty(SPEC_COUNT, String.valueOf(specs.size()));
+        for (int i = 0; i < specs.size(); i++) {
+            state.setProperty(SPEC + i, specs.get(i));
+        }
+        Path tmpFile = stateFile.resolveSibling(stateFile.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmpFile)) {
+            state.store(out, null);
+        }
+        Files.move(tmpFile, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,184 @@
+package moonset.metastore.sync.digest;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hadoop.hive.metastore.IMetaStoreClient;
+import org.apache.hadoop.hive.metastore.Warehouse;
+import org.apache.hadoop.hive.metastore.api.FieldSchema;
+import org.apache.hadoop.hive.metastore.api.Partition;
+import org.apache.hadoop.hive.metastore.api.Table;
+import org.apache.thrift.TException;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import moonset.metastore.sync.MetastoreSyncUtils;
+import moonset.metastore.sync.catalog.CatalogClient;
+import moonset.metastore.sync.catalog.CompactPartitionSet;
+import moonset.metastore.sync.exception.MetastoreException;
+import moonset.metastore.sync.trace.Tracer;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Verify the dest partitions against the source by {@link PartitionDigest}, and repair the
+ * partitions which differ. The digest of the dest partitions is stored in the dest table after
+ * each verification, so the next verification reads the dest table instead of all the dest
+ * partitions.
+ *
+ * <p>The saving is on the dest side only, and it's whole only when nothing differs. The source
+ * partitions are always read in full, since the source is written by others and its digest can't
+ * be trusted. Without a stored digest, e.g. before the first verification, all the dest
+ * partitions are read to compute it. When some buckets differ, the dest partitions named by the
+ * source partitions in those buckets are fetched by name; the dest isn't listed.
+ *
+ * <p>The syncs leave the stored dest digest as it is when they write. They only add the source
+ * partitions missing in dest, so a bucket they write differed from the source when the digest
+ * was stored, and it's verified anyway until its digests are equal. A change made to dest by
+ * others is found once the source changes in the same bucket.
+ */
+@Slf4j
+public final class DigestSyncUtils {
+
+    /** Prevent the class to be instanced. */
+    private DigestSyncUtils() {}
+
+    /** The partitions prepared or altered at a time. */
+    private static final int PAGE_SIZE = 1000;
+
+    /**
+     * Verify all partitions of the dest table against the source table, add the missing
+     * partitions and alter the different ones. The partitions only in dest are kept, like the
+     * other syncs do.
+     *
+     * @return the number of partitions repaired.
+     */
+    public static int verifyPartitions(
+            final IMetaStoreClient source,
+            final IMetaStoreClient dest,
+            final String srcDatabaseName,
+            final String srcTableName,
+            final String destDatabaseName,
+            final String destTableName)
+            throws MetastoreException {
+        try (Tracer.Span span = Tracer.span("verifyPartitions").arg("table", destDatabaseName + "." + destTableName)) {
+            Table destTable = dest.getTable(destDatabaseName, destTableName);
+            List<FieldSchema> partitionKeys = destTable.getPartitionKeys();
+            CompactPartitionSet sourcePartitions =
+                    new CatalogClient(source).getAllPartitionsCompact(srcDatabaseName, srcTableName);
+            PartitionDigest sourceDigest = new PartitionDigest();
+            for (int i = 0; i < sourcePartitions.size(); i += PAGE_SIZE) {
+                for (Partition partition : preparePage(sourcePartitions, i, destDatabaseName, destTableName)) {
+                    sourceDigest.add(Warehouse.makePartName(partitionKeys, partition.getValues()), partition);
+                }
+            }
+
+            PartitionDigest destDigest = PartitionDigest.decode(destTable.getParameters().get(PartitionDigest.DIGEST_PARAM));
+            if (destDigest == null) {
+                log.info("The dest table has no partition digest, compute it from all the dest partitions.");
+                destDigest = new PartitionDigest();
+                CompactPartitionSet destPartitions =
+                        new CatalogClient(dest).getAllPartitionsCompact(destDatabaseName, destTableName);
+                for (int i = 0; i < destPartitions.size(); i += PAGE_SIZE) {
+                    for (Partition partition : destPartitions.expand(i, Math.min(i + PAGE_SIZE, destPartitions.size()))) {
+                        destDigest.add(Warehouse.makePartName(partitionKeys, partition.getValues()), partition);
+                    }
+                }
+            }
+
+            Set<Integer> differentBuckets = sourceDigest.diff(destDigest);
+            span.arg("partitions", sourcePartitions.size()).arg("buckets", differentBuckets.size());
+            int repairedCount = 0;
+            if (differentBuckets.isEmpty()) {
+                log.info("The partition digests are equal, the dest table is in sync.");
+            } else {
+                log.info(differentBuckets.size() + " of " + PartitionDigest.BUCKETS + " buckets differ, verify their partitions.");
+                repairedCount =
+                        repairBuckets(
+                                dest,
+                                sourcePartitions,
+                                differentBuckets,
+                                partitionKeys,
+                                destDatabaseName,
+                                destTableName);
+            }
+            if (!sourceDigest.encode().equals(destTable.getParameters().get(PartitionDigest.DIGEST_PARAM))) {
+                Table table = dest.getTable(destDatabaseName, destTableName);
+                table.putToParameters(PartitionDigest.DIGEST_PARAM, sourceDigest.encode());
+                dest.alter_table(destDatabaseName, destTableName, table);
+            }
+            return repairedCount;
+        } catch (TException e) {
+            throw new MetastoreException("failed to verify partitions", e);
+        }
+    }
+
+    /**
+     * Compare the partitions in the buckets one by one, and repair the different ones. Only the
+     * dest partitions named by the source partitions in the buckets are fetched, the partitions
+     * only in dest are kept anyway.
+     */
+    private static int repairBuckets(
+            final IMetaStoreClient dest,
+            final CompactPartitionSet sourcePartitions,
+            final Set<Integer> buckets,
+            final List<FieldSchema> partitionKeys,
+            final String destDatabaseName,
+            final String destTableName)
+            throws TException, MetastoreException {
+        Map<String, Partition> sourceBucketPartitions = Maps.newLinkedHashMap();
+        for (int i = 0; i < sourcePartitions.size(); i += PAGE_SIZE) {
+            for (Partition partition : preparePage(sourcePartitions, i, destDatabaseName, destTableName)) {
+                String name = Warehouse.makePartName(partitionKeys, partition.getValues());
+                if (buckets.contains(PartitionDigest.bucketOf(name))) {
+                    sourceBucketPartitions.put(name, partition);
+                }
+            }
+        }
+        Map<String, Long> destHashes = Maps.newHashMap();
+        for (Partition partition :
+                new CatalogClient(dest)
+                        .getPartitionsByNames(
+                                destDatabaseName, destTableName, Lists.newArrayList(sourceBucketPartitions.keySet()))) {
+            String name = Warehouse.makePartName(partitionKeys, partition.getValues());
+            destHashes.put(name, PartitionDigest.hash(name, partition));
+        }
+
+        List<Partition> missingPartitions = Lists.newArrayList();
+        List<Partition> differentPartitions = Lists.newArrayList();
+        for (Map.Entry<String, Partition> entry : sourceBucketPartitions.entrySet()) {
+            Long destHash = destHashes.get(entry.getKey());
+            if (destHash == null) {
+                missingPartitions.add(entry.getValue());
+            } else if (destHash != PartitionDigest.hash(entry.getKey(), entry.getValue())) {
+                differentPartitions.add(entry.getValue());
+            }
+        }
+        log.info(
+                "There are " + missingPartitions.size() + " missing partitions and " + differentPartitions.size()
+                        + " different partitions in dest.");
+        MetastoreSyncUtils.addPartitions(dest, missingPartitions);
+        for (int i = 0; i < differentPartitions.size(); i += PAGE_SIZE) {
+            dest.alter_partitions(
+                    destDatabaseName,
+                    destTableName,
+                    differentPartitions.subList(i, Math.min(i + PAGE_SIZE, differentPartitions.size())));
+        }
+        return missingPartitions.size() + differentPartitions.size();
+    }
+
+    /** Prepare a page of the source partitions as they are written to dest. */
+    private static List<Partition> preparePage(
+            final CompactPartitionSet partitions,
+            final int from,
+            final String destDatabaseName,
+            final String destTableName)
+            throws MetastoreException {
+        return MetastoreSyncUtils.preparePartitions(
+                partitions.expand(from, Math.min(from + PAGE_SIZE, partitions.size())),
+                destDatabaseName,
+                destTableName);
+    }
+}
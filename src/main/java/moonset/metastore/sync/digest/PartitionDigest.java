@@ -0,0 +1,149 @@
+package moonset.metastore.sync.digest;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.hadoop.hive.metastore.api.Partition;
+import org.apache.hadoop.hive.metastore.api.hive_metastoreConstants;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * A two level merkle tree of the partitions of a table, compact enough for a table parameter. The
+ * partitions are spread over {@link #BUCKETS} buckets by the hash of their names, a bucket digest
+ * is the sum of the hashes of its partitions, so the digest doesn't depend on the partition order
+ * and can be built page by page. The buckets are grouped by {@link #FANOUT} under the root.
+ *
+ * <p>A partition hash covers its name, location and parameters, except the parameters which the
+ * metastore rewrites on every write, such as transient_lastDdlTime.
+ */
+public final class PartitionDigest {
+
+    /** The table parameter which stores the digest of the partitions in that table. */
+    public static final String DIGEST_PARAM = "moonset.partition_digest";
+
+    /** The number of buckets, 256 longs are 2732 characters in base64, within a hive parameter. */
+    public static final int BUCKETS = 256;
+
+    private static final int FANOUT = 16;
+
+    private static final Set<String> VOLATILE_PARAMETERS = ImmutableSet.of(hive_metastoreConstants.DDL_TIME);
+
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    private final long[] buckets;
+
+    public PartitionDigest() {
+        this(new long[BUCKETS]);
+    }
+
+    private PartitionDigest(final long[] buckets) {
+        this.buckets = buckets;
+    }
+
+    /** The bucket of the partition name. */
+    public static int bucketOf(final String partitionName) {
+        return (Hashing.murmur3_32().hashString(partitionName, StandardCharsets.UTF_8).asInt() & Integer.MAX_VALUE) % BUCKETS;
+    }
+
+    /** The hash of a partition, which changes with its name, location or parameters. */
+    public static long hash(final String partitionName, final Partition partition) {
+        Hasher hasher = HASH_FUNCTION.newHasher().putString(partitionName, StandardCharsets.UTF_8).putByte((byte) 0);
+        if (partition.getSd() != null && partition.getSd().getLocation() != null) {
+            hasher.putString(partition.getSd().getLocation(), StandardCharsets.UTF_8);
+        }
+        hasher.putByte((byte) 0);
+        if (partition.getParameters() != null) {
+            for (Map.Entry<String, String> parameter : new TreeMap<>(partition.getParameters()).entrySet()) {
+                if (!VOLATILE_PARAMETERS.contains(parameter.getKey())) {
+                    hasher.putString(parameter.getKey(), StandardCharsets.UTF_8)
+                            .putByte((byte) 0)
+                            .putString(String.valueOf(parameter.getValue()), StandardCharsets.UTF_8)
+                            .putByte((byte) 0);
+                }
+            }
+        }
+        return hasher.hash().asLong();
+    }
+
+    public void add(final String partitionName, final Partition partition) {
+        buckets[bucketOf(partitionName)] += hash(partitionName, partition);
+    }
+
+    /**
+     * The buckets which differ from the other digest, compared top-down: nothing else is compared
+     * if the roots are equal, and only the buckets of the differing groups are compared otherwise.
+     */
+    public Set<Integer> diff(final PartitionDigest other) {
+        Set<Integer> differentBuckets = new TreeSet<>();
+        if (getRoot() == other.getRoot()) {
+            return differentBuckets;
+        }
+        for (int group = 0; group < BUCKETS / FANOUT; group++) {
+            if (getGroup(group) == other.getGroup(group)) {
+                continue;
+            }
+            for (int bucket = group * FANOUT; bucket < (group + 1) * FANOUT; bucket++) {
+                if (buckets[bucket] != other.buckets[bucket]) {
+                    differentBuckets.add(bucket);
+                }
+            }
+        }
+        return differentBuckets;
+    }
+
+    public long getRoot() {
+        Hasher hasher = HASH_FUNCTION.newHasher();
+        for (int group = 0; group < BUCKETS / FANOUT; group++) {
+            hasher.putLong(getGroup(group));
+        }
+        return hasher.hash().asLong();
+    }
+
+    private long getGroup(final int group) {
+        Hasher hasher = HASH_FUNCTION.newHasher();
+        for (int bucket = group * FANOUT; bucket < (group + 1) * FANOUT; bucket++) {
+            hasher.putLong(buckets[bucket]);
+        }
+        return hasher.hash().asLong();
+    }
+
+    /** Encode the buckets for {@link #DIGEST_PARAM}. */
+    public String encode() {
+        ByteBuffer buffer = ByteBuffer.allocate(BUCKETS * Long.BYTES);
+        for (long bucket : buckets) {
+            buffer.putLong(bucket);
+        }
+        return Base64.getEncoder().encodeToString(buffer.array());
+    }
+
+    /** Decode the digest stored in {@link #DIGEST_PARAM}, null if it's absent or malformed. */
+    public static PartitionDigest decode(final String encoded) {
+        if (encoded == null) {
+            return null;
+        }
+        byte[] bytes;
+        try {
+            bytes = Base64.getDecoder().decode(encoded);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (bytes.length != BUCKETS * Long.BYTES) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        long[] buckets = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = buffer.getLong();
+        }
+        return new PartitionDigest(buckets);
+    }
+}
@@ -0,0 +1,200 @@
+package moonset.metastore.sync.discovery;
+
+import static moonset.metastore.sync.util.CLIArgsTokenizer.PARTITION_VALUE_SEPARATOR;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.apache.commons.collections.MapUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hive.common.FileUtils;
+import org.apache.hadoop.hive.metastore.api.FieldSchema;
+import org.apache.hadoop.hive.metastore.api.Partition;
+import org.apache.hadoop.hive.metastore.api.Table;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import moonset.metastore.sync.exception.MetastoreException;
+import moonset.metastore.sync.trace.Tracer;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Discover the partitions of a table by walking its location tree of "key=value" directories,
+ * like MSCK REPAIR does, but the directories of a level are listed in parallel by a fork join
+ * pool. The walk is pruned by the partition keys, a directory whose key doesn't match the key of
+ * its level is skipped, and by the partition patterns, a value out of the pattern of its key is
+ * never listed.
+ */
+@Slf4j
+public class PartitionDiscovery {
+
+    /**
+     * The listings in flight. The workers block on the file system, so the pool is much wider
+     * than the cores.
+     */
+    private static final int PARALLELISM = 32;
+
+    private static final ForkJoinPool DISCOVERY_POOL = new ForkJoinPool(PARALLELISM);
+
+    private static final String KEY_VALUE_SEPARATOR = "=";
+
+    private final Configuration conf;
+
+    public PartitionDiscovery(final Configuration conf) {
+        this.conf = conf;
+    }
+
+    /** List a directory, and fork a task for each child directory of the next partition key. */
+    private static final class DirectoryTask extends RecursiveTask<List<Partition>> {
+        private final FileSystem fs;
+        private final Table table;
+        private final List<Set<String>> patterns;
+        private final Path directory;
+        private final List<String> values;
+
+        private DirectoryTask(
+                FileSystem fs, Table table, List<Set<String>> patterns, Path directory, List<String> values) {
+            this.fs = fs;
+            this.table = table;
+            this.patterns = patterns;
+            this.directory = directory;
+            this.values = values;
+        }
+
+        @Override
+        protected List<Partition> compute() {
+            int depth = values.size();
+            if (depth == table.getPartitionKeysSize()) {
+                return Collections.singletonList(newPartition(table, directory, values));
+            }
+            String key = table.getPartitionKeys().get(depth).getName();
+            Set<String> pattern = patterns.get(depth);
+            List<DirectoryTask> tasks = Lists.newArrayList();
+            for (FileStatus status : listChildren(fs, directory)) {
+                String name = status.getPath().getName();
+                if (!status.isDirectory()) {
+                    continue;
+                }
+                int separator = name.indexOf(KEY_VALUE_SEPARATOR);
+                if (separator <= 0 || !key.equalsIgnoreCase(name.substring(0, separator))) {
+                    // Not a partition directory of this level, such as _temporary or a typo.
+                    continue;
+                }
+                String value = FileUtils.unescapePathName(name.substring(separator + 1));
+                if (pattern != null && !pattern.contains(value)) {
+                    continue;
+                }
+                tasks.add(
+                        new DirectoryTask(
+                                fs,
+                                table,
+                                patterns,
+                                status.getPath(),
+                                ImmutableList.<String>builder().addAll(values).add(value).build()));
+            }
+            List<Partition> partitions = Lists.newArrayList();
+            for (DirectoryTask task : invokeAll(tasks)) {
+                partitions.addAll(task.join());
+            }
+            return partitions;
+        }
+    }
+
+    /**
+     * Discover the partitions under the table location.
+     *
+     * @param partVals the partition patterns, such as "foo1=1;foo2=2,3", null or empty means all
+     *     partitions.
+     * @return the partitions found, with the storage descriptor of the table and the location of
+     *     the directory.
+     * @throws MetastoreException if the table has no location or a directory can't be listed.
+     */
+    public List<Partition> discover(final Table table, final Map<String, String> partVals)
+            throws MetastoreException {
+        if (table.getSd() == null || table.getSd().getLocation() == null) {
+            throw new MetastoreException(
+                    "The table " + table.getDbName() + "." + table.getTableName() + " has no location.");
+        }
+        if (table.getPartitionKeysSize() == 0) {
+            return Lists.newArrayList();
+        }
+        Path location = new Path(table.getSd().getLocation());
+        try (Tracer.Span span =
+                Tracer.span("discoverPartitions").arg("table", table.getDbName() + "." + table.getTableName())) {
+            List<Partition> partitions =
+                    DISCOVERY_POOL.invoke(
+                            new DirectoryTask(
+                                    location.getFileSystem(conf),
+                                    table,
+                                    getPatterns(table, partVals),
+                                    location,
+                                    ImmutableList.of()));
+            span.arg("partitions", partitions.size());
+            log.info("There are " + partitions.size() + " partitions discovered under " + location + ".");
+            return partitions;
+        } catch (IOException e) {
+            throw new MetastoreException("failed to discover partitions under " + location, e);
+        } catch (UncheckedIOException e) {
+            throw new MetastoreException("failed to discover partitions under " + location, e.getCause());
+        }
+    }
+
+    /** The allowed values of each partition key, null if any value is allowed. */
+    private static List<Set<String>> getPatterns(final Table table, final Map<String, String> partVals) {
+        Map<String, Set<String>> patternsByKey = Maps.newHashMap();
+        if (MapUtils.isNotEmpty(partVals)) {
+            for (Map.Entry<String, String> entry : partVals.entrySet()) {
+                patternsByKey.put(
+                        entry.getKey().toLowerCase(),
+                        Sets.newHashSet(entry.getValue().split(PARTITION_VALUE_SEPARATOR)));
+            }
+        }
+        List<Set<String>> patterns = Lists.newArrayList();
+        for (FieldSchema partitionKey : table.getPartitionKeys()) {
+            patterns.add(patternsByKey.remove(partitionKey.getName().toLowerCase()));
+        }
+        if (!patternsByKey.isEmpty()) {
+            throw new IllegalArgumentException(
+                    "The partition keys " + patternsByKey.keySet() + " are not in the table " + table.getTableName());
+        }
+        return patterns;
+    }
+
+    private static FileStatus[] listChildren(final FileSystem fs, final Path directory) {
+        try (Tracer.Span span = Tracer.span("listChildren")) {
+            return fs.listStatus(directory, path -> !path.getName().startsWith("."));
+        } catch (FileNotFoundException e) {
+            // Deleted during the walk.
+            return new FileStatus[0];
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** A partition of the table at the directory, the columns and formats are the table's. */
+    private static Partition newPartition(final Table table, final Path directory, final List<String> values) {
+        Partition partition = new Partition();
+        partition.setDbName(table.getDbName());
+        partition.setTableName(table.getTableName());
+        partition.setValues(Lists.newArrayList(values));
+        partition.setSd(table.getSd().deepCopy());
+        partition.getSd().setLocation(directory.toString());
+        partition.setParameters(Maps.newHashMap());
+        partition.setCreateTime((int) (System.currentTimeMillis() / 1000));
+        return partition;
+    }
+}
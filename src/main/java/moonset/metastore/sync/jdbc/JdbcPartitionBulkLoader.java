@@ -0,0 +1,397 @@
+package moonset.metastore.sync.jdbc;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.collections.CollectionUtils;
+import org.apache.hadoop.hive.conf.HiveConf;
+import org.apache.hadoop.hive.metastore.Warehouse;
+import org.apache.hadoop.hive.metastore.api.MetaException;
+import org.apache.hadoop.hive.metastore.api.Partition;
+import org.apache.hadoop.hive.metastore.api.StorageDescriptor;
+import org.apache.hadoop.hive.metastore.api.Table;
+import org.apache.hadoop.hive.metastore.api.hive_metastoreConstants;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import moonset.metastore.sync.exception.MetastoreException;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Load partitions into hive metastore by writing the rows of PARTITIONS, SDS, SERDES and their
+ * parameter tables straight into the backing database with JDBC batches. It's meant for the cold
+ * load of tables with millions of partitions into a local hive metastore, where add_partitions
+ * spends most of its time on the per call transaction.
+ *
+ * <p>The rows are what the metastore itself writes for the partitions of hive 2.1 schema:
+ *
+ * <ul>
+ *   <li>The partitions share the column descriptor of the table, as the metastore does when the
+ *       columns are the same as the table's.
+ *   <li>The ids are allocated from SEQUENCE_TABLE in bulk, once per chunk, in the same way
+ *       datanucleus reserves its id blocks, so a running metastore keeps working alongside.
+ *   <li>Each chunk of {@link #CHUNK_SIZE} partitions is inserted in one transaction.
+ * </ul>
+ *
+ * The partitions with bucket columns, sort columns, skewed info or their own columns are not bulk
+ * loaded, and are returned to the caller to add via thrift. The partitions which already exist are
+ * skipped. No notification event is written, and the metastore caches, if enabled, aren't aware of
+ * the new partitions until they expire.
+ */
+@Slf4j
+public class JdbcPartitionBulkLoader implements Closeable {
+
+    /** The partitions inserted in one transaction. */
+    public static final int CHUNK_SIZE = 10000;
+
+    private static final String PARTITION_SEQUENCE = "org.apache.hadoop.hive.metastore.model.MPartition";
+    private static final String STORAGE_DESCRIPTOR_SEQUENCE = "org.apache.hadoop.hive.metastore.model.MStorageDescriptor";
+    private static final String SERDE_SEQUENCE = "org.apache.hadoop.hive.metastore.model.MSerDeInfo";
+
+    private final Connection connection;
+
+    private final String quote;
+
+    /** Derby stores the boolean columns as CHAR(1) 'Y' or 'N'. */
+    private final boolean isBooleanAsChar;
+
+    /**
+     * Connect to the database of the hive metastore configured by javax.jdo.option.* in the conf,
+     * which is usually loaded from hive-site.xml.
+     */
+    public JdbcPartitionBulkLoader(HiveConf conf) throws MetastoreException {
+        this(connect(conf));
+    }
+
+    /** Load partitions by an existing connection, e.g. of an embedded derby metastore. */
+    public JdbcPartitionBulkLoader(Connection connection) throws MetastoreException {
+        try {
+            this.connection = connection;
+            connection.setAutoCommit(false);
+            DatabaseMetaData metaData = connection.getMetaData();
+            this.quote = metaData.getIdentifierQuoteString().trim();
+            this.isBooleanAsChar = isCharColumn(metaData, "SDS", "IS_COMPRESSED");
+        } catch (SQLException e) {
+            throw new MetastoreException("can't initialize the bulk loader.", e);
+        }
+    }
+
+    private static Connection connect(HiveConf conf) throws MetastoreException {
+        try {
+            Class.forName(conf.getVar(HiveConf.ConfVars.METASTORE_CONNECTION_DRIVER));
+            char[] password = conf.getPassword(HiveConf.ConfVars.METASTOREPWD.varname);
+            return DriverManager.getConnection(
+                    conf.getVar(HiveConf.ConfVars.METASTORECONNECTURLKEY),
+                    conf.getVar(HiveConf.ConfVars.METASTORE_CONNECTION_USER_NAME),
+                    password == null ? null : new String(password));
+        } catch (Exception e) {
+            throw new MetastoreException("can't connect to the metastore database.", e);
+        }
+    }
+
+    private static boolean isCharColumn(DatabaseMetaData metaData, String table, String column) throws SQLException {
+        try (ResultSet columns = metaData.getColumns(null, null, table, column)) {
+            if (columns.next()) {
+                int type = columns.getInt("DATA_TYPE");
+                return type == Types.CHAR || type == Types.VARCHAR;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Load the partitions of the table, which should already exist in the metastore.
+     *
+     * @param table the dest table, whose partition keys and columns the partitions follow.
+     * @param partitions the prepared partitions of the dest table.
+     * @return the partitions which can't be bulk loaded, they should be added via thrift.
+     * @throws MetastoreException if any chunk fails, the committed chunks are kept.
+     */
+    public List<Partition> loadPartitions(final Table table, final List<Partition> partitions)
+            throws MetastoreException {
+        List<Partition> unsupportedPartitions = Lists.newArrayList();
+        try {
+            long[] tableIds = getTableIds(table.getDbName(), table.getTableName());
+            Set<String> partitionNames = getPartitionNames(tableIds[0]);
+            Map<String, Partition> newPartitions = Maps.newLinkedHashMap();
+            for (Partition partition : partitions) {
+                if (!isBulkLoadable(table, partition)) {
+                    unsupportedPartitions.add(partition);
+                    continue;
+                }
+                String partitionName = Warehouse.makePartName(table.getPartitionKeys(), partition.getValues());
+                if (!partitionNames.contains(partitionName)) {
+                    newPartitions.put(partitionName, partition);
+                }
+            }
+            log.info(
+                    "Bulk load "
+                            + newPartitions.size()
+                            + " partitions, skip "
+                            + (partitions.size() - newPartitions.size() - unsupportedPartitions.size())
+                            + " existing partitions, and leave "
+                            + unsupportedPartitions.size()
+                            + " partitions to thrift.");
+
+            List<Map.Entry<String, Partition>> entries = Lists.newArrayList(newPartitions.entrySet());
+            for (int i = 0; i < entries.size(); i += CHUNK_SIZE) {
+                long startTime = System.nanoTime();
+                List<Map.Entry<String, Partition>> chunk = entries.subList(i, Math.min(i + CHUNK_SIZE, entries.size()));
+                insertChunk(tableIds[0], tableIds[1], chunk);
+                log.info(
+                        "The range [ "
+                                + i
+                                + ", "
+                                + (i + chunk.size())
+                                + " ) partitions have been loaded in "
+                                + (System.nanoTime() - startTime) / 1000000
+                                + " ms.");
+            }
+        } catch (SQLException | MetaException e) {
+            rollback();
+            throw new MetastoreException("failed to bulk load partitions.", e);
+        }
+        return unsupportedPartitions;
+    }
+
+    /** Only the partitions sharing the table columns without bucketing and skew are bulk loaded. */
+    private static boolean isBulkLoadable(final Table table, final Partition partition) {
+        StorageDescriptor sd = partition.getSd();
+        return sd != null
+                && sd.getSerdeInfo() != null
+                && partition.getValues().size() == table.getPartitionKeysSize()
+                && table.getSd().getCols().equals(sd.getCols())
+                && CollectionUtils.isEmpty(sd.getBucketCols())
+                && CollectionUtils.isEmpty(sd.getSortCols())
+                && (sd.getSkewedInfo() == null || CollectionUtils.isEmpty(sd.getSkewedInfo().getSkewedColNames()));
+    }
+
+    /** @return the TBL_ID and the CD_ID of the table. */
+    private long[] getTableIds(String databaseName, String tableName) throws SQLException, MetaException {
+        String sql =
+                "SELECT t." + q("TBL_ID") + ", s." + q("CD_ID")
+                        + " FROM " + q("TBLS") + " t"
+                        + " JOIN " + q("DBS") + " d ON t." + q("DB_ID") + " = d." + q("DB_ID")
+                        + " JOIN " + q("SDS") + " s ON t." + q("SD_ID") + " = s." + q("SD_ID")
+                        + " WHERE d." + q("NAME") + " = ? AND t." + q("TBL_NAME") + " = ?";
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setString(1, databaseName.toLowerCase());
+            statement.setString(2, tableName.toLowerCase());
+            try (ResultSet result = statement.executeQuery()) {
+                if (!result.next()) {
+                    throw new MetaException("The table " + databaseName + "." + tableName + " doesn't exist in the metastore database.");
+                }
+                return new long[] {result.getLong(1), result.getLong(2)};
+            }
+        }
+    }
+
+    private Set<String> getPartitionNames(long tableId) throws SQLException {
+        Set<String> partitionNames = Sets.newHashSet();
+        String sql = "SELECT " + q("PART_NAME") + " FROM " + q("PARTITIONS") + " WHERE " + q("TBL_ID") + " = ?";
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setLong(1, tableId);
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()) {
+                    partitionNames.add(result.getString(1));
+                }
+            }
+        }
+        connection.commit();
+        return partitionNames;
+    }
+
+    private void insertChunk(long tableId, long columnDescriptorId, List<Map.Entry<String, Partition>> chunk)
+            throws SQLException {
+        long partitionId = allocateIds(PARTITION_SEQUENCE, "PARTITIONS", "PART_ID", chunk.size());
+        long storageDescriptorId = allocateIds(STORAGE_DESCRIPTOR_SEQUENCE, "SDS", "SD_ID", chunk.size());
+        long serdeId = allocateIds(SERDE_SEQUENCE, "SERDES", "SERDE_ID", chunk.size());
+        int createTime = (int) (System.currentTimeMillis() / 1000);
+
+        try (PreparedStatement serdes = prepareInsert("SERDES", "SERDE_ID", "NAME", "SLIB");
+                PreparedStatement serdeParams = prepareInsert("SERDE_PARAMS", "SERDE_ID", "PARAM_KEY", "PARAM_VALUE");
+                PreparedStatement sds =
+                        prepareInsert(
+                                "SDS",
+                                "SD_ID",
+                                "CD_ID",
+                                "INPUT_FORMAT",
+                                "IS_COMPRESSED",
+                                "IS_STOREDASSUBDIRECTORIES",
+                                "LOCATION",
+                                "NUM_BUCKETS",
+                                "OUTPUT_FORMAT",
+                                "SERDE_ID");
+                PreparedStatement sdParams = prepareInsert("SD_PARAMS", "SD_ID", "PARAM_KEY", "PARAM_VALUE");
+                PreparedStatement parts =
+                        prepareInsert(
+                                "PARTITIONS", "PART_ID", "CREATE_TIME", "LAST_ACCESS_TIME", "PART_NAME", "SD_ID", "TBL_ID");
+                PreparedStatement partParams = prepareInsert("PARTITION_PARAMS", "PART_ID", "PARAM_KEY", "PARAM_VALUE");
+                PreparedStatement partKeyVals = prepareInsert("PARTITION_KEY_VALS", "PART_ID", "PART_KEY_VAL", "INTEGER_IDX")) {
+            for (int i = 0; i < chunk.size(); i++) {
+                String partitionName = chunk.get(i).getKey();
+                Partition partition = chunk.get(i).getValue();
+                StorageDescriptor sd = partition.getSd();
+                long partId = partitionId + i;
+                long sdId = storageDescriptorId + i;
+                long sId = serdeId + i;
+
+                serdes.setLong(1, sId);
+                serdes.setString(2, sd.getSerdeInfo().getName());
+                serdes.setString(3, sd.getSerdeInfo().getSerializationLib());
+                serdes.addBatch();
+                addParams(serdeParams, sId, sd.getSerdeInfo().getParameters());
+
+                sds.setLong(1, sdId);
+                sds.setLong(2, columnDescriptorId);
+                sds.setString(3, sd.getInputFormat());
+                setBoolean(sds, 4, sd.isCompressed());
+                setBoolean(sds, 5, sd.isStoredAsSubDirectories());
+                sds.setString(6, sd.getLocation());
+                sds.setInt(7, sd.getNumBuckets());
+                sds.setString(8, sd.getOutputFormat());
+                sds.setLong(9, sId);
+                sds.addBatch();
+                addParams(sdParams, sdId, sd.getParameters());
+
+                parts.setLong(1, partId);
+                parts.setInt(2, createTime);
+                parts.setInt(3, partition.getLastAccessTime());
+                parts.setString(4, partitionName);
+                parts.setLong(5, sdId);
+                parts.setLong(6, tableId);
+                parts.addBatch();
+                // The metastore server sets the ddl time when the partition is added.
+                Map<String, String> parameters = Maps.newHashMap();
+                if (partition.getParameters() != null) {
+                    parameters.putAll(partition.getParameters());
+                }
+                parameters.putIfAbsent(hive_metastoreConstants.DDL_TIME, Integer.toString(createTime));
+                addParams(partParams, partId, parameters);
+
+                for (int j = 0; j < partition.getValuesSize(); j++) {
+                    partKeyVals.setLong(1, partId);
+                    partKeyVals.setString(2, partition.getValues().get(j));
+                    partKeyVals.setInt(3, j);
+                    partKeyVals.addBatch();
+                }
+            }
+            // The parents go first to satisfy the foreign keys.
+            for (PreparedStatement statement : Lists.newArrayList(serdes, serdeParams, sds, sdParams, parts, partParams, partKeyVals)) {
+                statement.executeBatch();
+            }
+            connection.commit();
+        }
+    }
+
+    /**
+     * Reserve <code>count</code> ids of the sequence in a short transaction of its own, so the
+     * sequence row isn't locked while the chunk is inserted. A failed chunk leaves a gap in the
+     * ids, which is harmless.
+     *
+     * @return the first reserved id.
+     */
+    private long allocateIds(String sequenceName, String table, String idColumn, int count) throws SQLException {
+        String update =
+                "UPDATE " + q("SEQUENCE_TABLE") + " SET " + q("NEXT_VAL") + " = " + q("NEXT_VAL") + " + ?"
+                        + " WHERE " + q("SEQUENCE_NAME") + " = ?";
+        try (PreparedStatement statement = connection.prepareStatement(update)) {
+            statement.setLong(1, count);
+            statement.setString(2, sequenceName);
+            if (statement.executeUpdate() == 0) {
+                // The sequence is created on the first object of its kind, start after the existing ids.
+                long nextId = getMaxId(table, idColumn) + 1;
+                try (PreparedStatement insert = prepareInsert("SEQUENCE_TABLE", "SEQUENCE_NAME", "NEXT_VAL")) {
+                    insert.setString(1, sequenceName);
+                    insert.setLong(2, nextId + count);
+                    insert.executeUpdate();
+                }
+                connection.commit();
+                return nextId;
+            }
+        }
+        String select = "SELECT " + q("NEXT_VAL") + " FROM " + q("SEQUENCE_TABLE") + " WHERE " + q("SEQUENCE_NAME") + " = ?";
+        try (PreparedStatement statement = connection.prepareStatement(select)) {
+            statement.setString(1, sequenceName);
+            try (ResultSet result = statement.executeQuery()) {
+                result.next();
+                long nextVal = result.getLong(1);
+                connection.commit();
+                return nextVal - count;
+            }
+        }
+    }
+
+    private long getMaxId(String table, String idColumn) throws SQLException {
+        try (Statement statement = connection.createStatement();
+                ResultSet result = statement.executeQuery("SELECT MAX(" + q(idColumn) + ") FROM " + q(table))) {
+            return result.next() ? result.getLong(1) : 0;
+        }
+    }
+
+    private PreparedStatement prepareInsert(String table, String... columns) throws SQLException {
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(q(table)).append(" (");
+        StringBuilder values = new StringBuilder();
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i == 0 ? "" : ", ").append(q(columns[i]));
+            values.append(i == 0 ? "?" : ", ?");
+        }
+        return connection.prepareStatement(sql.append(") VALUES (").append(values).append(")").toString());
+    }
+
+    private static void addParams(PreparedStatement statement, long id, Map<String, String> parameters)
+            throws SQLException {
+        if (parameters == null) {
+            return;
+        }
+        for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+            statement.setLong(1, id);
+            statement.setString(2, parameter.getKey());
+            statement.setString(3, parameter.getValue());
+            statement.addBatch();
+        }
+    }
+
+    private void setBoolean(PreparedStatement statement, int index, boolean value) throws SQLException {
+        if (isBooleanAsChar) {
+            statement.setString(index, value ? "Y" : "N");
+        } else {
+            statement.setBoolean(index, value);
+        }
+    }
+
+    /** Quote the identifier, the metastore schema uses upper case names. */
+    private String q(String identifier) {
+        return quote + identifier + quote;
+    }
+
+    private void rollback() {
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            log.warn("Unable to rollback the bulk load transaction.", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            log.warn("Unable to close the metastore database connection.", e);
+        }
+    }
+}
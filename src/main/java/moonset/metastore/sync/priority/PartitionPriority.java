@@ -0,0 +1,48 @@
+package moonset.metastore.sync.priority;
+
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.hadoop.hive.metastore.api.FieldSchema;
+import org.apache.hadoop.hive.metastore.api.Partition;
+
+import moonset.metastore.sync.util.PartitionUtils;
+
+/**
+ * The order of a prioritized sync, newest first, so the fresh partitions which the downstream
+ * jobs wait for are synced before the old ones of a large catch-up.
+ */
+public final class PartitionPriority {
+
+    /** The pseudo key which orders the partitions by their create time in the source. */
+    public static final String CREATE_TIME = "createTime";
+
+    /** Prevent the class to be instanced. */
+    private PartitionPriority() {}
+
+    /**
+     * The newest first order by the key, which is {@link #CREATE_TIME} or a partition key. The
+     * values of an integral partition key are compared as numbers, the others as strings, which
+     * suits the dates and timestamps in the ISO format. The values which can't be ordered, like
+     * the default partition of the null values, come last.
+     *
+     * @throws IllegalArgumentException if the key is neither {@link #CREATE_TIME} nor a partition key.
+     */
+    public static Comparator<Partition> newestFirst(final List<FieldSchema> partitionKeys, final String key) {
+        if (CREATE_TIME.equalsIgnoreCase(key)) {
+            return Comparator.comparingInt(Partition::getCreateTime).reversed();
+        }
+        for (int i = 0; i < partitionKeys.size(); i++) {
+            if (partitionKeys.get(i).getName().equalsIgnoreCase(key)) {
+                int index = i;
+                boolean integral = PartitionUtils.isIntegralType(partitionKeys.get(i).getType());
+                return Comparator.<Partition, String>comparing(
+                                partition -> partition.getValues().get(index),
+                                (left, right) -> PartitionUtils.compareTimeValues(left, right, integral))
+                        .reversed();
+            }
+        }
+        throw new IllegalArgumentException(
+                "The priority key " + key + " is neither " + CREATE_TIME + " nor a partition key.");
+    }
+}
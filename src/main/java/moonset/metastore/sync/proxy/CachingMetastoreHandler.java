@@ -0,0 +1,552 @@
+package moonset.metastore.sync.proxy;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.hive.metastore.IMetaStoreClient;
+import org.apache.hadoop.hive.metastore.api.AddPartitionsRequest;
+import org.apache.hadoop.hive.metastore.api.AddPartitionsResult;
+import org.apache.hadoop.hive.metastore.api.EnvironmentContext;
+import org.apache.hadoop.hive.metastore.api.MetaException;
+import org.apache.hadoop.hive.metastore.api.Partition;
+import org.apache.hadoop.hive.metastore.api.PartitionsByExprRequest;
+import org.apache.hadoop.hive.metastore.api.PartitionsByExprResult;
+import org.apache.hadoop.hive.metastore.api.PartitionsStatsRequest;
+import org.apache.hadoop.hive.metastore.api.PartitionsStatsResult;
+import org.apache.hadoop.hive.metastore.api.Table;
+import org.apache.hadoop.hive.metastore.api.TableStatsRequest;
+import org.apache.hadoop.hive.metastore.api.TableStatsResult;
+import org.apache.hadoop.hive.metastore.api.ThriftHiveMetastore;
+import org.apache.thrift.TException;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import moonset.metastore.sync.catalog.CatalogClient;
+import moonset.metastore.sync.exception.MetastoreException;
+import moonset.metastore.sync.trace.Tracer;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A thrift metastore handler which serves the reads from an in-memory cache in front of data
+ * catalog, so the hive clients on the cluster get the tables and partitions in a local round trip
+ * instead of a glue call each.
+ *
+ * <p>The cached reads are loaded through the data catalog client, the full partition listings
+ * through {@link CatalogClient} which pages them. An entry older than the refresh interval is
+ * reloaded in the background on its next read while the old value is still served, and an entry
+ * older than the expiry is dropped. The cache is bounded by the number of cached metastore
+ * objects, a partition listing weighs as many objects as it has partitions.
+ *
+ * <p>The other reads which hive and spark issue, like the partition pruning by expression, the
+ * functions and the statistics, are forwarded to data catalog uncached. The writes, with or without
+ * an environment context, are forwarded to data catalog, and drop the cached entries of the table
+ * written even if they fail, since a failed batch may have been applied in part. A read which
+ * began before a write of its table finished is loaded again instead of served. A write made to
+ * data catalog by others is visible once the entries are refreshed. The methods data catalog has
+ * no equivalent of, like the locks, the transactions and the privileges, fail with a {@link
+ * MetaException}.
+ */
+@Slf4j
+public class CachingMetastoreHandler implements InvocationHandler {
+
+    /** The reads served from the cache. */
+    private static final Set<String> CACHED_METHODS =
+            ImmutableSet.of(
+                    "get_database",
+                    "get_databases",
+                    "get_all_databases",
+                    "get_tables",
+                    "get_all_tables",
+                    "get_table",
+                    "get_partitions",
+                    "get_partitions_by_filter",
+                    "get_partition_names",
+                    "get_partition",
+                    "get_partition_by_name",
+                    "get_partitions_by_names");
+
+    /** The reads forwarded to data catalog uncached, they neither fill nor drop the cached entries. */
+    private static final Set<String> FORWARDED_METHODS =
+            ImmutableSet.of(
+                    "get_partitions_by_expr",
+                    "get_partitions_ps",
+                    "get_partitions_ps_with_auth",
+                    "get_partitions_with_auth",
+                    "get_partition_with_auth",
+                    "get_partition_names_ps",
+                    "get_num_partitions_by_filter",
+                    "get_table_objects_by_name",
+                    "get_table_names_by_filter",
+                    "get_table_meta",
+                    "get_fields",
+                    "get_schema",
+                    "get_all_functions",
+                    "get_functions",
+                    "get_function",
+                    "get_table_statistics_req",
+                    "get_partitions_statistics_req",
+                    "get_aggr_stats_for",
+                    "get_config_value",
+                    "getMetaConf",
+                    "partition_name_has_valid_characters");
+
+    /**
+     * The writes which change the tables of a database, a table created, dropped or renamed, so the
+     * table listings of its database are dropped.
+     */
+    private static final Set<String> TABLE_LIST_WRITES =
+            ImmutableSet.of(
+                    "create_table",
+                    "create_table_with_environment_context",
+                    "drop_table",
+                    "drop_table_with_environment_context",
+                    "alter_table",
+                    "alter_table_with_environment_context",
+                    "alter_table_with_cascade");
+
+    /** The reads of the tables in a database, which change with the tables created or dropped. */
+    private static final Set<String> TABLE_LIST_METHODS = ImmutableSet.of("get_tables", "get_all_tables");
+
+    /** The cache key of a read, the database and table names are lowercase like in hive. */
+    private static final class CacheKey {
+        private final String method;
+        private final String database;
+        private final String table;
+        private final List<Object> args;
+
+        private CacheKey(String method, Object[] args) {
+            this.method = method;
+            this.args = args == null ? ImmutableList.of() : Arrays.asList(args);
+            this.database = this.args.size() > 0 && this.args.get(0) instanceof String
+                    ? ((String) this.args.get(0)).toLowerCase() : null;
+            this.table = !TABLE_LIST_METHODS.contains(method) && this.args.size() > 1 && this.args.get(1) instanceof String
+                    ? ((String) this.args.get(1)).toLowerCase() : null;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey other = (CacheKey) obj;
+            return method.equals(other.method)
+                    && Objects.equals(database, other.database)
+                    && Objects.equals(table, other.table)
+                    && args.equals(other.args);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(method, database, table, args);
+        }
+    }
+
+    /** A cached read, with the generation of its table or database when the read began. */
+    private static final class CachedValue {
+        private final long generation;
+        private final Object value;
+
+        private CachedValue(long generation, Object value) {
+            this.generation = generation;
+            this.value = value;
+        }
+    }
+
+    private final IMetaStoreClient client;
+    private final LoadingCache<CacheKey, CachedValue> cache;
+    /**
+     * The write generation of each table, keyed by db.table, and of each database, keyed by its
+     * name. A write bumps them once it's done, so a read which began before is never served, even
+     * if its load finished after the entries were dropped.
+     */
+    private final ConcurrentMap<String, AtomicLong> generations = new ConcurrentHashMap<>();
+
+    /**
+     * @param client the data catalog client, which is called by many server threads at once.
+     * @param maxCachedObjects the max number of tables, partitions and names cached.
+     * @param refreshSeconds the age after which an entry is reloaded on its next read.
+     * @param expireSeconds the age after which an entry is dropped.
+     * @param refreshExecutor the executor of the background reloads.
+     */
+    public CachingMetastoreHandler(
+            final IMetaStoreClient client,
+            final long maxCachedObjects,
+            final long refreshSeconds,
+            final long expireSeconds,
+            final ExecutorService refreshExecutor) {
+        this.client = client;
+        this.cache =
+                CacheBuilder.newBuilder()
+                        .maximumWeight(maxCachedObjects)
+                        .weigher(
+                                new Weigher<CacheKey, CachedValue>() {
+                                    @Override
+                                    public int weigh(CacheKey key, CachedValue cached) {
+                                        return cached.value instanceof Collection ? 1 + ((Collection<?>) cached.value).size() : 1;
+                                    }
+                                })
+                        .refreshAfterWrite(refreshSeconds, TimeUnit.SECONDS)
+                        .expireAfterWrite(expireSeconds, TimeUnit.SECONDS)
+                        .recordStats()
+                        .build(
+                                new CacheLoader<CacheKey, CachedValue>() {
+                                    @Override
+                                    public CachedValue load(CacheKey key) throws Exception {
+                                        return readWithGeneration(key);
+                                    }
+
+                                    @Override
+                                    public ListenableFuture<CachedValue> reload(CacheKey key, CachedValue oldValue) {
+                                        ListenableFutureTask<CachedValue> task =
+                                                ListenableFutureTask.create(() -> readWithGeneration(key));
+                                        refreshExecutor.execute(task);
+                                        return task;
+                                    }
+                                });
+    }
+
+    /** Create the thrift handler served by the metastore processor. */
+    public ThriftHiveMetastore.Iface newHandler() {
+        return (ThriftHiveMetastore.Iface)
+                Proxy.newProxyInstance(
+                        ThriftHiveMetastore.Iface.class.getClassLoader(),
+                        new Class<?>[] {ThriftHiveMetastore.Iface.class},
+                        this);
+    }
+
+    /**
+     * Load the table and its partition listing into the cache before the clients ask for them, or
+     * reload them in the background if they are cached already.
+     */
+    public void warm(final String database, final String table) throws MetastoreException {
+        try (Tracer.Span span = Tracer.span("warmCache").arg("table", database + "." + table)) {
+            CacheKey tableKey = new CacheKey("get_table", new Object[] {database, table});
+            CacheKey partitionsKey = new CacheKey("get_partitions", new Object[] {database, table, (short) -1});
+            cache.refresh(tableKey);
+            cache.refresh(partitionsKey);
+            get(tableKey);
+            Collection<?> partitions = (Collection<?>) get(partitionsKey);
+            span.arg("partitions", partitions.size());
+            log.info("Cached the table " + database + "." + table + " with " + partitions.size() + " partitions.");
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            throw new MetastoreException("failed to warm the cache of " + database + "." + table, e.getCause());
+        }
+    }
+
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    @Override
+    public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+        String name = method.getName();
+        if (method.getDeclaringClass() == Object.class) {
+            return method.invoke(this, args);
+        }
+        if (CACHED_METHODS.contains(name)) {
+            try {
+                return get(new CacheKey(name, args));
+            } catch (ExecutionException | UncheckedExecutionException e) {
+                if (e.getCause() instanceof TException) {
+                    throw e.getCause();
+                }
+                // The thrift clients only expect the exceptions declared by the method.
+                MetaException metaException = new MetaException(String.valueOf(e.getCause()));
+                metaException.initCause(e.getCause());
+                throw metaException;
+            }
+        }
+        if (FORWARDED_METHODS.contains(name)) {
+            return forward(name, args);
+        }
+        if ("set_ugi".equals(name)) {
+            return write(name, args);
+        }
+        try {
+            return write(name, args);
+        } finally {
+            // A failed write may have been applied in part, like a batch of partitions.
+            invalidate(new CacheKey(name, args), args);
+        }
+    }
+
+    /**
+     * The cached read, loaded again if a write to its table finished after the read began, so the
+     * value of a load racing with the write isn't served.
+     */
+    private Object get(final CacheKey key) throws ExecutionException {
+        CachedValue cached = cache.get(key);
+        while (cached.generation != generation(key.database, key.table).get()) {
+            cache.asMap().remove(key, cached);
+            cached = cache.get(key);
+        }
+        return cached.value;
+    }
+
+    private CachedValue readWithGeneration(final CacheKey key) throws TException, MetastoreException {
+        long generation = generation(key.database, key.table).get();
+        return new CachedValue(generation, read(key));
+    }
+
+    /** The write generation of the table, or of the database if the table is null. */
+    private AtomicLong generation(final String database, final String table) {
+        String name = database == null ? "" : table == null ? database : database + "." + table;
+        return generations.computeIfAbsent(name, n -> new AtomicLong());
+    }
+
+    /** Read through the data catalog client, the loader of the cache. */
+    @SuppressWarnings("unchecked")
+    private Object read(final CacheKey key) throws TException, MetastoreException {
+        List<Object> args = key.args;
+        switch (key.method) {
+            case "get_database":
+                return client.getDatabase((String) args.get(0));
+            case "get_databases":
+                return client.getDatabases((String) args.get(0));
+            case "get_all_databases":
+                return client.getAllDatabases();
+            case "get_tables":
+                return client.getTables((String) args.get(0), (String) args.get(1));
+            case "get_all_tables":
+                return client.getAllTables((String) args.get(0));
+            case "get_table":
+                return client.getTable((String) args.get(0), (String) args.get(1));
+            case "get_partitions":
+                if ((Short) args.get(2) < 0) {
+                    return new CatalogClient(client).getAllPartitions((String) args.get(0), (String) args.get(1));
+                }
+                return client.listPartitions((String) args.get(0), (String) args.get(1), (Short) args.get(2));
+            case "get_partitions_by_filter":
+                return client.listPartitionsByFilter(
+                        (String) args.get(0), (String) args.get(1), (String) args.get(2), (Short) args.get(3));
+            case "get_partition_names":
+                return client.listPartitionNames((String) args.get(0), (String) args.get(1), (Short) args.get(2));
+            case "get_partition":
+                return client.getPartition((String) args.get(0), (String) args.get(1), (List<String>) args.get(2));
+            case "get_partition_by_name":
+                return client.getPartition((String) args.get(0), (String) args.get(1), (String) args.get(2));
+            case "get_partitions_by_names":
+                return client.getPartitionsByNames((String) args.get(0), (String) args.get(1), (List<String>) args.get(2));
+            default:
+                throw new IllegalStateException("The method " + key.method + " isn't cached.");
+        }
+    }
+
+    /** Forward an uncached read to the data catalog client. */
+    @SuppressWarnings("unchecked")
+    private Object forward(final String method, final Object[] args) throws TException {
+        switch (method) {
+            case "get_partitions_by_expr":
+                PartitionsByExprRequest exprRequest = (PartitionsByExprRequest) args[0];
+                List<Partition> partitions = Lists.newArrayList();
+                boolean hasUnknownPartitions =
+                        client.listPartitionsByExpr(
+                                exprRequest.getDbName(),
+                                exprRequest.getTblName(),
+                                exprRequest.getExpr(),
+                                exprRequest.getDefaultPartitionName(),
+                                exprRequest.getMaxParts(),
+                                partitions);
+                return new PartitionsByExprResult(partitions, hasUnknownPartitions);
+            case "get_partitions_ps":
+                return client.listPartitions((String) args[0], (String) args[1], (List<String>) args[2], (Short) args[3]);
+            case "get_partitions_ps_with_auth":
+                return client.listPartitionsWithAuthInfo(
+                        (String) args[0], (String) args[1], (List<String>) args[2], (Short) args[3],
+                        (String) args[4], (List<String>) args[5]);
+            case "get_partitions_with_auth":
+                return client.listPartitionsWithAuthInfo(
+                        (String) args[0], (String) args[1], (Short) args[2], (String) args[3], (List<String>) args[4]);
+            case "get_partition_with_auth":
+                return client.getPartitionWithAuthInfo(
+                        (String) args[0], (String) args[1], (List<String>) args[2], (String) args[3], (List<String>) args[4]);
+            case "get_partition_names_ps":
+                return client.listPartitionNames((String) args[0], (String) args[1], (List<String>) args[2], (Short) args[3]);
+            case "get_num_partitions_by_filter":
+                return client.getNumPartitionsByFilter((String) args[0], (String) args[1], (String) args[2]);
+            case "get_table_objects_by_name":
+                return client.getTableObjectsByName((String) args[0], (List<String>) args[1]);
+            case "get_table_names_by_filter":
+                return client.listTableNamesByFilter((String) args[0], (String) args[1], (Short) args[2]);
+            case "get_table_meta":
+                return client.getTableMeta((String) args[0], (String) args[1], (List<String>) args[2]);
+            case "get_fields":
+                return client.getFields((String) args[0], (String) args[1]);
+            case "get_schema":
+                return client.getSchema((String) args[0], (String) args[1]);
+            case "get_all_functions":
+                return client.getAllFunctions();
+            case "get_functions":
+                return client.getFunctions((String) args[0], (String) args[1]);
+            case "get_function":
+                return client.getFunction((String) args[0], (String) args[1]);
+            case "get_table_statistics_req":
+                TableStatsRequest tableStatsRequest = (TableStatsRequest) args[0];
+                return new TableStatsResult(
+                        client.getTableColumnStatistics(
+                                tableStatsRequest.getDbName(), tableStatsRequest.getTblName(), tableStatsRequest.getColNames()));
+            case "get_partitions_statistics_req":
+                PartitionsStatsRequest partitionsStatsRequest = (PartitionsStatsRequest) args[0];
+                return new PartitionsStatsResult(
+                        client.getPartitionColumnStatistics(
+                                partitionsStatsRequest.getDbName(),
+                                partitionsStatsRequest.getTblName(),
+                                partitionsStatsRequest.getPartNames(),
+                                partitionsStatsRequest.getColNames()));
+            case "get_aggr_stats_for":
+                PartitionsStatsRequest aggrStatsRequest = (PartitionsStatsRequest) args[0];
+                return client.getAggrColStatsFor(
+                        aggrStatsRequest.getDbName(),
+                        aggrStatsRequest.getTblName(),
+                        aggrStatsRequest.getColNames(),
+                        aggrStatsRequest.getPartNames());
+            case "get_config_value":
+                return client.getConfigValue((String) args[0], (String) args[1]);
+            case "getMetaConf":
+                return client.getMetaConf((String) args[0]);
+            case "partition_name_has_valid_characters":
+                try {
+                    client.validatePartitionNameCharacters((List<String>) args[0]);
+                    return true;
+                } catch (MetaException e) {
+                    if ((Boolean) args[1]) {
+                        throw e;
+                    }
+                    return false;
+                }
+            default:
+                throw new IllegalStateException("The method " + method + " isn't forwarded.");
+        }
+    }
+
+    /** Forward a write to the data catalog client. */
+    @SuppressWarnings("unchecked")
+    private Object write(final String method, final Object[] args) throws TException {
+        switch (method) {
+            case "set_ugi":
+                // The data catalog client acts as its own principal, the groups are echoed like hive does.
+                return args[1];
+            case "create_table":
+            case "create_table_with_environment_context":
+                client.createTable((Table) args[0]);
+                return null;
+            case "alter_table":
+                client.alter_table((String) args[0], (String) args[1], (Table) args[2]);
+                return null;
+            case "alter_table_with_environment_context":
+                client.alter_table_with_environmentContext(
+                        (String) args[0], (String) args[1], (Table) args[2], (EnvironmentContext) args[3]);
+                return null;
+            case "alter_table_with_cascade":
+                client.alter_table((String) args[0], (String) args[1], (Table) args[2], (Boolean) args[3]);
+                return null;
+            case "drop_table":
+            case "drop_table_with_environment_context":
+                client.dropTable((String) args[0], (String) args[1], (Boolean) args[2], true);
+                return null;
+            case "add_partition":
+            case "add_partition_with_environment_context":
+                return client.add_partition((Partition) args[0]);
+            case "add_partitions":
+                return client.add_partitions((List<Partition>) args[0]);
+            case "add_partitions_req":
+                AddPartitionsRequest request = (AddPartitionsRequest) args[0];
+                List<Partition> added = client.add_partitions(request.getParts(), request.isIfNotExists(), request.isNeedResult());
+                AddPartitionsResult result = new AddPartitionsResult();
+                if (added != null) {
+                    result.setPartitions(added);
+                }
+                return result;
+            case "alter_partition":
+                client.alter_partition((String) args[0], (String) args[1], (Partition) args[2]);
+                return null;
+            case "alter_partition_with_environment_context":
+                client.alter_partition(
+                        (String) args[0], (String) args[1], (Partition) args[2], (EnvironmentContext) args[3]);
+                return null;
+            case "alter_partitions":
+                client.alter_partitions((String) args[0], (String) args[1], (List<Partition>) args[2]);
+                return null;
+            case "alter_partitions_with_environment_context":
+                client.alter_partitions(
+                        (String) args[0], (String) args[1], (List<Partition>) args[2], (EnvironmentContext) args[3]);
+                return null;
+            case "drop_partition":
+            case "drop_partition_with_environment_context":
+                return client.dropPartition((String) args[0], (String) args[1], (List<String>) args[2], (Boolean) args[3]);
+            case "drop_partition_by_name":
+            case "drop_partition_by_name_with_environment_context":
+                return client.dropPartition((String) args[0], (String) args[1], (String) args[2], (Boolean) args[3]);
+            default:
+                throw new MetaException("The method " + method + " isn't supported by the caching metastore proxy.");
+        }
+    }
+
+    /**
+     * Drop the cached entries of the table written, and the table listings of its database if the
+     * table is created, dropped or renamed. The generations are bumped first, so a load which began
+     * before the write is loaded again on its next read.
+     */
+    private void invalidate(final CacheKey writeKey, final Object[] args) {
+        String database = writeKey.database;
+        String table = writeKey.table;
+        if (args != null && args.length > 0) {
+            if (args[0] instanceof Table) {
+                database = ((Table) args[0]).getDbName().toLowerCase();
+                table = ((Table) args[0]).getTableName().toLowerCase();
+            } else if (args[0] instanceof Partition) {
+                database = ((Partition) args[0]).getDbName().toLowerCase();
+                table = ((Partition) args[0]).getTableName().toLowerCase();
+            } else if (args[0] instanceof List && !((List<?>) args[0]).isEmpty() && ((List<?>) args[0]).get(0) instanceof Partition) {
+                Partition partition = (Partition) ((List<?>) args[0]).get(0);
+                database = partition.getDbName().toLowerCase();
+                table = partition.getTableName().toLowerCase();
+            } else if (args[0] instanceof AddPartitionsRequest) {
+                database = ((AddPartitionsRequest) args[0]).getDbName().toLowerCase();
+                table = ((AddPartitionsRequest) args[0]).getTblName().toLowerCase();
+            }
+        }
+        if (database == null) {
+            return;
+        }
+        boolean tableListChanged = TABLE_LIST_WRITES.contains(writeKey.method);
+        if (table != null) {
+            generation(database, table).incrementAndGet();
+        }
+        if (tableListChanged) {
+            generation(database, null).incrementAndGet();
+        }
+        Iterator<CacheKey> iterator = cache.asMap().keySet().iterator();
+        while (iterator.hasNext()) {
+            CacheKey key = iterator.next();
+            if (database.equals(key.database)
+                    && ((table != null && table.equals(key.table)) || (tableListChanged && TABLE_LIST_METHODS.contains(key.method)))) {
+                iterator.remove();
+            }
+        }
+    }
+}
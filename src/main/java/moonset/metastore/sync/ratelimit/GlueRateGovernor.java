@@ -0,0 +1,304 @@
+package moonset.metastore.sync.ratelimit;
+
+import com.amazonaws.AbortedException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.AsyncHandler;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.hadoop.conf.Configuration;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import lombok.extern.slf4j.Slf4j;
+import moonset.metastore.sync.trace.Tracer;
+
+/**
+ * Client side rate limiter shared by all glue clients of the process. Each glue api has its own
+ * token bucket, so the sensors, the syncs and the backfills running in one process stay under the
+ * per api quotas of the account together, instead of throttling each other on the service side.
+ *
+ * <p>The rates are read from the configuration, e.g. in hive-site.xml:
+ *
+ * <pre>
+ * moonset.glue.ratelimit.default        permits per second of the apis without their own rate, 0 means unlimited
+ * moonset.glue.ratelimit.getPartitions  permits per second of GetPartitions, the key is the api method name
+ * moonset.glue.ratelimit.burst.seconds  how many seconds of permits a bucket holds, 1 by default
+ * moonset.glue.ratelimit.priority       HIGH, NORMAL or LOW, the priority of the client
+ * </pre>
+ *
+ * The buckets are created by the configuration of the first client calling the api. The time
+ * spent on waiting for tokens is exported by JMX under {@link #MBEAN_NAME}.
+ */
+@Slf4j
+public final class GlueRateGovernor implements GlueRateGovernorMXBean {
+
+    /** The priority classes. A waiting caller is always served before the lower priority ones. */
+    public enum Priority {
+        /** Latency sensitive reads, such as sensors. */
+        HIGH,
+        NORMAL,
+        /** Bulk traffic, such as backfills. */
+        LOW
+    }
+
+    public static final String RATE_LIMIT_PREFIX = "moonset.glue.ratelimit.";
+    public static final String DEFAULT_RATE = RATE_LIMIT_PREFIX + "default";
+    public static final String BURST_SECONDS = RATE_LIMIT_PREFIX + "burst.seconds";
+    public static final String PRIORITY = RATE_LIMIT_PREFIX + "priority";
+    public static final String MBEAN_NAME = "moonset.metastore.sync:type=GlueRateGovernor";
+
+    private static final String ASYNC_SUFFIX = "Async";
+
+    /**
+     * Send the asynchronous requests once their tokens are due, so they never park the threads
+     * which call them, such as the callback threads of the glue sdk.
+     */
+    private static final ScheduledExecutorService ASYNC_REQUEST_SCHEDULER =
+            Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("glue-rate-governor-%d").build());
+
+    private static GlueRateGovernor instance;
+
+    private final Configuration conf;
+
+    private final ConcurrentMap<String, Optional<TokenBucket>> buckets = Maps.newConcurrentMap();
+
+    private final ConcurrentMap<String, LongAdder> waitNanos = Maps.newConcurrentMap();
+
+    private final ConcurrentMap<String, LongAdder> calls = Maps.newConcurrentMap();
+
+    private final LongAdder[] waitNanosByPriority = new LongAdder[Priority.values().length];
+
+    private GlueRateGovernor(Configuration conf) {
+        this.conf = new Configuration(conf);
+        for (int i = 0; i < waitNanosByPriority.length; i++) {
+            waitNanosByPriority[i] = new LongAdder();
+        }
+    }
+
+    /** Get the governor of the process, it's created by the configuration of the first caller. */
+    public static synchronized GlueRateGovernor getInstance(Configuration conf) {
+        if (instance == null) {
+            instance = new GlueRateGovernor(conf);
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(instance, new ObjectName(MBEAN_NAME));
+            } catch (JMException e) {
+                log.warn("Unable to register the glue rate governor metrics.", e);
+            }
+        }
+        return instance;
+    }
+
+    /** Get the priority of the client from the configuration, NORMAL by default. */
+    public static Priority getPriority(Configuration conf) {
+        return Priority.valueOf(conf.get(PRIORITY, Priority.NORMAL.name()).toUpperCase());
+    }
+
+    /**
+     * Wrap a glue client, so each api request waits for a token of its api before being sent. The
+     * asynchronous apis, such as getPartitionsAsync, share the buckets with the synchronous ones,
+     * but they return at once and their requests are sent later by a scheduler when the token is
+     * due. The returned future and the async handler are completed by the response. An
+     * asynchronous request doesn't hold back the waiting synchronous ones of lower priority.
+     *
+     * @param client the glue client, either AWSGlue or AWSGlueAsync.
+     * @param clientInterface the interface of the client to expose.
+     * @param priority the priority of all requests of the client.
+     */
+    public <T> T wrap(final T client, final Class<T> clientInterface, final Priority priority) {
+        return clientInterface.cast(
+                Proxy.newProxyInstance(
+                        clientInterface.getClassLoader(),
+                        new Class<?>[] {clientInterface},
+                        (proxy, method, args) -> {
+                            if (args == null || args.length == 0 || !(args[0] instanceof AmazonWebServiceRequest)) {
+                                return invoke(client, method, args);
+                            }
+                            String api = getApiName(method.getName());
+                            if (method.getName().endsWith(ASYNC_SUFFIX)
+                                    && Future.class.isAssignableFrom(method.getReturnType())) {
+                                return invokeAsync(client, clientInterface, method, args, api, priority);
+                            }
+                            try (Tracer.Span span = Tracer.span("throttle." + api)) {
+                                acquire(api, priority);
+                            }
+                            try (Tracer.Span span = Tracer.span("glue." + method.getName())) {
+                                return invoke(client, method, args);
+                            }
+                        }));
+    }
+
+    private static Object invoke(Object client, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(client, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Send an asynchronous request once a token of its api is taken. The request is always sent
+     * through the overload with an async handler, which completes the returned future.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> Future<Object> invokeAsync(
+            final T client,
+            final Class<T> clientInterface,
+            final Method method,
+            final Object[] args,
+            final String api,
+            final Priority priority)
+            throws NoSuchMethodException {
+        AsyncHandler<AmazonWebServiceRequest, Object> callerHandler =
+                args.length > 1 ? (AsyncHandler<AmazonWebServiceRequest, Object>) args[1] : null;
+        Method withHandler =
+                args.length > 1
+                        ? method
+                        : clientInterface.getMethod(method.getName(), method.getParameterTypes()[0], AsyncHandler.class);
+        CompletableFuture<Object> result = new CompletableFuture<>();
+        AsyncHandler<AmazonWebServiceRequest, Object> handler =
+                new AsyncHandler<AmazonWebServiceRequest, Object>() {
+                    @Override
+                    public void onError(Exception exception) {
+                        try {
+                            if (callerHandler != null) {
+                                callerHandler.onError(exception);
+                            }
+                        } finally {
+                            result.completeExceptionally(exception);
+                        }
+                    }
+
+                    @Override
+                    public void onSuccess(AmazonWebServiceRequest request, Object response) {
+                        try {
+                            if (callerHandler != null) {
+                                callerHandler.onSuccess(request, response);
+                            }
+                        } finally {
+                            result.complete(response);
+                        }
+                    }
+                };
+        calls.computeIfAbsent(api, key -> new LongAdder()).increment();
+        sendWhenDue(
+                api,
+                priority,
+                System.nanoTime(),
+                () -> {
+                    try (Tracer.Span span = Tracer.span("glue." + method.getName())) {
+                        invoke(client, withHandler, new Object[] {args[0], handler});
+                    } catch (Exception e) {
+                        handler.onError(e);
+                    } catch (Throwable t) {
+                        result.completeExceptionally(t);
+                    }
+                });
+        return result;
+    }
+
+    /**
+     * Run the request once a token of the api is taken. The request waits in the bucket like a
+     * blocked caller of its priority, and the bucket is drained on the scheduler when the next
+     * token is due.
+     */
+    private void sendWhenDue(final String api, final Priority priority, final long start, final Runnable request) {
+        Optional<TokenBucket> bucket = buckets.computeIfAbsent(api, this::newBucket);
+        if (!bucket.isPresent()) {
+            request.run();
+            return;
+        }
+        scheduleDrain(
+                bucket.get(),
+                bucket.get()
+                        .submit(
+                                priority,
+                                () -> {
+                                    long waited = System.nanoTime() - start;
+                                    waitNanos.computeIfAbsent(api, key -> new LongAdder()).add(waited);
+                                    waitNanosByPriority[priority.ordinal()].add(waited);
+                                    request.run();
+                                }));
+    }
+
+    /** Drain the bucket after the delay, and again as long as it asks, -1 means never. */
+    private static void scheduleDrain(final TokenBucket bucket, final long delayNanos) {
+        if (delayNanos >= 0) {
+            ASYNC_REQUEST_SCHEDULER.schedule(
+                    () -> scheduleDrain(bucket, bucket.drain()), delayNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /** Wait for a token of the glue api. */
+    public void acquire(String api, Priority priority) {
+        calls.computeIfAbsent(api, key -> new LongAdder()).increment();
+        Optional<TokenBucket> bucket = buckets.computeIfAbsent(api, this::newBucket);
+        if (!bucket.isPresent()) {
+            return;
+        }
+        try {
+            long waited = bucket.get().acquire(priority);
+            waitNanos.computeIfAbsent(api, key -> new LongAdder()).add(waited);
+            waitNanosByPriority[priority.ordinal()].add(waited);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AbortedException("interrupted while waiting for the rate limit of " + api, e);
+        }
+    }
+
+    private Optional<TokenBucket> newBucket(String api) {
+        double permitsPerSecond = conf.getDouble(RATE_LIMIT_PREFIX + api, conf.getDouble(DEFAULT_RATE, 0));
+        if (permitsPerSecond <= 0) {
+            return Optional.empty();
+        }
+        log.info("Limit glue api " + api + " to " + permitsPerSecond + " calls per second.");
+        return Optional.of(new TokenBucket(permitsPerSecond, conf.getDouble(BURST_SECONDS, 1)));
+    }
+
+    private static String getApiName(String methodName) {
+        return methodName.endsWith(ASYNC_SUFFIX)
+                ? methodName.substring(0, methodName.length() - ASYNC_SUFFIX.length())
+                : methodName;
+    }
+
+    @Override
+    public Map<String, Long> getWaitMillis() {
+        return toMillis(waitNanos);
+    }
+
+    @Override
+    public Map<String, Long> getWaitMillisByPriority() {
+        ImmutableMap.Builder<String, Long> result = ImmutableMap.builder();
+        for (Priority priority : Priority.values()) {
+            result.put(priority.name(), TimeUnit.NANOSECONDS.toMillis(waitNanosByPriority[priority.ordinal()].sum()));
+        }
+        return result.build();
+    }
+
+    @Override
+    public Map<String, Long> getCalls() {
+        return Maps.transformValues(ImmutableMap.copyOf(calls), LongAdder::sum);
+    }
+
+    private static Map<String, Long> toMillis(Map<String, LongAdder> nanos) {
+        return Maps.transformValues(ImmutableMap.copyOf(nanos), adder -> TimeUnit.NANOSECONDS.toMillis(adder.sum()));
+    }
+}
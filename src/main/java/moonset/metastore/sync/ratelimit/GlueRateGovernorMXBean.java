@@ -0,0 +1,16 @@
+package moonset.metastore.sync.ratelimit;
+
+import java.util.Map;
+
+/** The metrics of {@link GlueRateGovernor}, exported by JMX. */
+public interface GlueRateGovernorMXBean {
+
+    /** The milliseconds the callers have waited for tokens, keyed by glue api. */
+    Map<String, Long> getWaitMillis();
+
+    /** The milliseconds the callers have waited for tokens, keyed by priority. */
+    Map<String, Long> getWaitMillisByPriority();
+
+    /** The number of calls which went through the governor, keyed by glue api. */
+    Map<String, Long> getCalls();
+}
@@ -0,0 +1,207 @@
+package moonset.metastore.sync.ratelimit;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+import com.google.common.collect.Lists;
+
+/**
+ * A token bucket refilled at a fixed rate. A caller only takes a token when no caller of a higher
+ * priority is waiting, so the high priority traffic is served first once the bucket runs dry.
+ *
+ * <p>An asynchronous request waits in a queue of its priority instead of a thread, and counts as a
+ * waiter of its priority until it's sent, so it preempts the lower priority callers like a
+ * blocked one. The queues are drained highest priority first whenever a request is submitted, and
+ * by {@link #drain} which the owner schedules when the next token is due.
+ */
+final class TokenBucket {
+
+    private final double permitsPerNano;
+
+    private final double capacity;
+
+    private final ReentrantLock lock = new ReentrantLock(true);
+
+    private final Condition changed = lock.newCondition();
+
+    private final int[] waiters = new int[GlueRateGovernor.Priority.values().length];
+
+    private final List<Queue<Runnable>> pending = Lists.newArrayList();
+
+    private final LongSupplier nanoClock;
+
+    /** Whether a drain is scheduled already, so a single one is scheduled at a time. */
+    private boolean drainScheduled;
+
+    private double tokens;
+
+    private long lastRefillNanos;
+
+    TokenBucket(double permitsPerSecond, double burstSeconds) {
+        this(permitsPerSecond, burstSeconds, System::nanoTime);
+    }
+
+    /** @param nanoClock the clock of the refills, {@link System#nanoTime} but in tests. */
+    TokenBucket(double permitsPerSecond, double burstSeconds, LongSupplier nanoClock) {
+        this.permitsPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.capacity = Math.max(1, permitsPerSecond * burstSeconds);
+        this.tokens = capacity;
+        this.nanoClock = nanoClock;
+        this.lastRefillNanos = nanoClock.getAsLong();
+        for (int i = 0; i < waiters.length; i++) {
+            pending.add(new ArrayDeque<>());
+        }
+    }
+
+    /**
+     * Take one token, waiting if necessary.
+     *
+     * @return the nanoseconds spent on waiting.
+     */
+    long acquire(GlueRateGovernor.Priority priority) throws InterruptedException {
+        long start = nanoClock.getAsLong();
+        lock.lock();
+        try {
+            waiters[priority.ordinal()]++;
+            try {
+                while (true) {
+                    refill();
+                    boolean preempted = hasHigherPriorityWaiter(priority.ordinal());
+                    if (!preempted && tokens >= 1) {
+                        tokens -= 1;
+                        break;
+                    }
+                    if (preempted) {
+                        // Woken up once the higher priority waiter takes its token.
+                        changed.await();
+                    } else {
+                        changed.awaitNanos((long) Math.ceil((1 - tokens) / permitsPerNano));
+                    }
+                }
+            } finally {
+                waiters[priority.ordinal()]--;
+                changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return nanoClock.getAsLong() - start;
+    }
+
+    /**
+     * Take one token if there is one and no caller of a higher priority is waiting, without
+     * waiting.
+     *
+     * @return 0 if the token is taken, otherwise the nanoseconds to wait before trying again.
+     */
+    long tryAcquire(GlueRateGovernor.Priority priority) {
+        lock.lock();
+        try {
+            return tryTake(priority.ordinal());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queue an asynchronous request, and send the queued requests whose tokens are available.
+     *
+     * @return the nanoseconds after which {@link #drain} should be called, -1 if it needn't be.
+     */
+    long submit(GlueRateGovernor.Priority priority, Runnable request) {
+        lock.lock();
+        try {
+            pending.get(priority.ordinal()).add(request);
+            waiters[priority.ordinal()]++;
+        } finally {
+            lock.unlock();
+        }
+        return drain(false);
+    }
+
+    /**
+     * Send the queued requests whose tokens are available, highest priority first. It's called by
+     * the drain scheduled by {@link #submit} or by a former drain.
+     *
+     * @return the nanoseconds after which drain should be called again, -1 if it needn't be.
+     */
+    long drain() {
+        return drain(true);
+    }
+
+    private long drain(boolean scheduled) {
+        List<Runnable> due = Lists.newArrayList();
+        long delayNanos = -1;
+        lock.lock();
+        try {
+            if (scheduled) {
+                drainScheduled = false;
+            }
+            for (int i = 0; i < pending.size(); i++) {
+                while (!pending.get(i).isEmpty()) {
+                    delayNanos = tryTake(i);
+                    if (delayNanos > 0) {
+                        break;
+                    }
+                    due.add(pending.get(i).poll());
+                    waiters[i]--;
+                    delayNanos = -1;
+                }
+                if (delayNanos > 0) {
+                    break;
+                }
+            }
+            if (!due.isEmpty()) {
+                // The lower priority callers preempted by the requests sent may take a token now.
+                changed.signalAll();
+            }
+            if (delayNanos > 0) {
+                if (drainScheduled) {
+                    delayNanos = -1;
+                } else {
+                    drainScheduled = true;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        // The requests only send themselves, they're run outside the lock.
+        for (Runnable request : due) {
+            request.run();
+        }
+        return delayNanos;
+    }
+
+    /** Take one token if possible, the lock is held. See {@link #tryAcquire}. */
+    private long tryTake(int priority) {
+        refill();
+        if (hasHigherPriorityWaiter(priority)) {
+            return (long) Math.ceil(1 / permitsPerNano);
+        }
+        if (tokens >= 1) {
+            tokens -= 1;
+            return 0;
+        }
+        return (long) Math.ceil((1 - tokens) / permitsPerNano);
+    }
+
+    private boolean hasHigherPriorityWaiter(int priority) {
+        for (int i = 0; i < priority; i++) {
+            if (waiters[i] > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void refill() {
+        long now = nanoClock.getAsLong();
+        tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * permitsPerNano);
+        lastRefillNanos = now;
+    }
+}
@@ -0,0 +1,319 @@
+package moonset.metastore.sync.replication;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.hive.metastore.IMetaStoreClient;
+import org.apache.hadoop.hive.metastore.Warehouse;
+import org.apache.hadoop.hive.metastore.api.FieldSchema;
+import org.apache.hadoop.hive.metastore.api.NoSuchObjectException;
+import org.apache.hadoop.hive.metastore.api.NotificationEvent;
+import org.apache.hadoop.hive.metastore.api.NotificationEventResponse;
+import org.apache.hadoop.hive.metastore.api.Partition;
+import org.apache.hadoop.hive.metastore.api.Table;
+import org.apache.thrift.TException;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import lombok.extern.slf4j.Slf4j;
+import moonset.metastore.sync.MetastoreSyncUtils;
+import moonset.metastore.sync.exception.MetastoreException;
+import moonset.metastore.sync.trace.Tracer;
+
+/**
+ * Replicate the changes of hive metastore to data catalog by tailing the notification log of hive
+ * metastore, so the partitions written on the cluster appear in data catalog within seconds
+ * without rescanning the tables. It requires the DbNotificationListener of hive metastore, i.e.
+ * <code>hive.metastore.event.listeners=org.apache.hive.hcatalog.listener.DbNotificationListener
+ * </code>.
+ *
+ * <p>The events of the configured tables are read in batches of {@link #MAX_EVENTS} and coalesced,
+ * so a partition changed many times in a batch is read from hive and written to data catalog once.
+ * The id of the last applied event is persisted to a local file after each batch. A batch may be
+ * applied again after a crash, which is harmless since applying it is idempotent.
+ */
+@Slf4j
+public class NotificationLogReplicator {
+
+    /** The max events read and applied at a time. */
+    public static final int MAX_EVENTS = 1000;
+
+    private static final long POLL_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(2);
+
+    /** The partitions read from hive at a time. */
+    private static final int PARTITION_PAGE_SIZE = 1000;
+
+    private static final String CREATE_TABLE = "CREATE_TABLE";
+    private static final String ALTER_TABLE = "ALTER_TABLE";
+    private static final String ADD_PARTITION = "ADD_PARTITION";
+    private static final String ALTER_PARTITION = "ALTER_PARTITION";
+    private static final String DROP_PARTITION = "DROP_PARTITION";
+
+    /** The coalesced changes of a table in a batch. */
+    private static final class TableChanges {
+        private boolean tableChanged;
+        /** The partition key values, true to add or alter the partition, false to drop it. */
+        private final Map<Map<String, String>, Boolean> partitions = Maps.newLinkedHashMap();
+    }
+
+    private final IMetaStoreClient source;
+    private final IMetaStoreClient dest;
+    private final String srcDatabaseName;
+    private final String destDatabaseName;
+    private final Set<String> tableNames;
+    private final Path eventIdFile;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Set<String> knownDestTables = Sets.newHashSet();
+
+    /**
+     * @param source the hive metastore.
+     * @param dest the data catalog, usually a NoFileSystemOpsAWSCatalogMetastoreClient.
+     * @param tableNames the tables to replicate, null means all tables of the database. The dest
+     *     tables have the same names.
+     * @param eventIdFile the local file to persist the id of the last applied event.
+     */
+    public NotificationLogReplicator(
+            final IMetaStoreClient source,
+            final IMetaStoreClient dest,
+            final String srcDatabaseName,
+            final String destDatabaseName,
+            final Set<String> tableNames,
+            final Path eventIdFile) {
+        this.source = source;
+        this.dest = dest;
+        this.srcDatabaseName = srcDatabaseName.toLowerCase();
+        this.destDatabaseName = destDatabaseName;
+        if (tableNames == null) {
+            this.tableNames = null;
+        } else {
+            this.tableNames = Sets.newHashSet();
+            for (String tableName : tableNames) {
+                this.tableNames.add(tableName.toLowerCase());
+            }
+        }
+        this.eventIdFile = eventIdFile;
+    }
+
+    /** Replicate the events continuously until the thread is interrupted. */
+    public void run() throws MetastoreException {
+        long lastEventId = readLastEventId();
+        log.info("Start to replicate the events after " + lastEventId + ".");
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                long nextEventId = replicate(lastEventId);
+                if (nextEventId - lastEventId < MAX_EVENTS) {
+                    Thread.sleep(POLL_INTERVAL_MILLIS);
+                }
+                lastEventId = nextEventId;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.info("Stop replicating at event " + lastEventId + ".");
+    }
+
+    /**
+     * Read, coalesce and apply a batch of events after the event id, and persist the id of the last
+     * event read.
+     *
+     * @return the id of the last event read, which is the input id if there is no new event.
+     * @throws MetastoreException if the events after the id were already cleaned up by hive
+     *     metastore, a full sync is needed then.
+     */
+    public long replicate(final long lastEventId) throws MetastoreException {
+        NotificationEventResponse response;
+        try {
+            response = source.getNextNotification(lastEventId, MAX_EVENTS, null);
+        } catch (TException e) {
+            throw new MetastoreException("failed to read the notification log", e);
+        }
+        List<NotificationEvent> events = response.getEvents();
+        if (events == null || events.isEmpty()) {
+            return lastEventId;
+        }
+        if (events.get(0).getEventId() > lastEventId + 1) {
+            throw new MetastoreException(
+                    String.format(
+                            "The events (%d, %d) were cleaned up from the notification log, run a full sync and remove %s.",
+                            lastEventId, events.get(0).getEventId(), eventIdFile));
+        }
+
+        try (Tracer.Span span = Tracer.span("replicateEvents").arg("events", events.size())) {
+            Map<String, TableChanges> changes = coalesce(events);
+            for (Map.Entry<String, TableChanges> entry : changes.entrySet()) {
+                apply(entry.getKey(), entry.getValue());
+            }
+        }
+        long nextEventId = events.get(events.size() - 1).getEventId();
+        writeLastEventId(nextEventId);
+        log.info("The events (" + lastEventId + ", " + nextEventId + "] are replicated.");
+        return nextEventId;
+    }
+
+    private Map<String, TableChanges> coalesce(final List<NotificationEvent> events) throws MetastoreException {
+        Map<String, TableChanges> changes = Maps.newLinkedHashMap();
+        for (NotificationEvent event : events) {
+            if (event.getDbName() == null
+                    || event.getTableName() == null
+                    || !srcDatabaseName.equalsIgnoreCase(event.getDbName())
+                    || (tableNames != null && !tableNames.contains(event.getTableName().toLowerCase()))) {
+                continue;
+            }
+            TableChanges tableChanges = changes.computeIfAbsent(event.getTableName().toLowerCase(), key -> new TableChanges());
+            switch (event.getEventType()) {
+                case CREATE_TABLE:
+                case ALTER_TABLE:
+                    tableChanges.tableChanged = true;
+                    break;
+                case ADD_PARTITION:
+                    for (JsonNode partition : parse(event).path("partitions")) {
+                        tableChanges.partitions.put(toSpec(partition), true);
+                    }
+                    break;
+                case ALTER_PARTITION:
+                    tableChanges.partitions.put(toSpec(parse(event).path("keyValues")), true);
+                    break;
+                case DROP_PARTITION:
+                    for (JsonNode partition : parse(event).path("partitions")) {
+                        tableChanges.partitions.put(toSpec(partition), false);
+                    }
+                    break;
+                default:
+                    log.debug("Skip the event " + event.getEventId() + " of type " + event.getEventType() + ".");
+            }
+        }
+        return changes;
+    }
+
+    private JsonNode parse(final NotificationEvent event) throws MetastoreException {
+        try {
+            return mapper.readTree(event.getMessage());
+        } catch (IOException e) {
+            throw new MetastoreException("failed to parse the event " + event.getEventId(), e);
+        }
+    }
+
+    /** The partition key values of a message, the keys are lower case. */
+    private static Map<String, String> toSpec(final JsonNode partition) {
+        Map<String, String> spec = Maps.newHashMap();
+        Iterator<Map.Entry<String, JsonNode>> iterator = partition.fields();
+        while (iterator.hasNext()) {
+            Map.Entry<String, JsonNode> field = iterator.next();
+            spec.put(field.getKey().toLowerCase(), field.getValue().asText());
+        }
+        return spec;
+    }
+
+    private void apply(final String tableName, final TableChanges changes) throws MetastoreException {
+        try {
+            if (!source.tableExists(srcDatabaseName, tableName)) {
+                log.info("The table " + tableName + " no longer exists in source, skip its events.");
+                return;
+            }
+            if (changes.tableChanged || !knownDestTables.contains(tableName)) {
+                MetastoreSyncUtils.syncTable(source, dest, srcDatabaseName, tableName, destDatabaseName, tableName);
+                knownDestTables.add(tableName);
+            }
+            if (changes.partitions.isEmpty()) {
+                return;
+            }
+
+            Table table = source.getTable(srcDatabaseName, tableName);
+            List<String> upsertNames = Lists.newArrayList();
+            List<List<String>> drops = Lists.newArrayList();
+            for (Map.Entry<Map<String, String>, Boolean> partition : changes.partitions.entrySet()) {
+                List<String> values = Lists.newArrayList();
+                for (FieldSchema key : table.getPartitionKeys()) {
+                    values.add(partition.getKey().get(key.getName().toLowerCase()));
+                }
+                if (partition.getValue()) {
+                    upsertNames.add(Warehouse.makePartName(table.getPartitionKeys(), values));
+                } else {
+                    drops.add(values);
+                }
+            }
+            for (int i = 0; i < upsertNames.size(); i += PARTITION_PAGE_SIZE) {
+                List<Partition> partitions =
+                        source.getPartitionsByNames(
+                                srcDatabaseName,
+                                tableName,
+                                upsertNames.subList(i, Math.min(i + PARTITION_PAGE_SIZE, upsertNames.size())));
+                upsert(tableName, MetastoreSyncUtils.preparePartitions(partitions, destDatabaseName, tableName));
+            }
+            for (List<String> values : drops) {
+                try {
+                    dest.dropPartition(destDatabaseName, tableName, values, false);
+                } catch (NoSuchObjectException e) {
+                    log.debug("The partition " + values + " doesn't exist in dest.");
+                }
+            }
+            log.info(
+                    String.format(
+                            "The table %s: %d partitions added or altered, %d partitions dropped.",
+                            tableName, upsertNames.size(), drops.size()));
+        } catch (TException e) {
+            throw new MetastoreException("failed to apply the events of table " + tableName, e);
+        }
+    }
+
+    /** Add the partitions, and alter the ones which already exist. */
+    private void upsert(final String tableName, final List<Partition> partitions) throws TException {
+        if (partitions.isEmpty()) {
+            return;
+        }
+        Set<List<String>> created = Sets.newHashSet();
+        for (Partition partition : dest.add_partitions(partitions, true, true)) {
+            created.add(partition.getValues());
+        }
+        List<Partition> existing = Lists.newArrayList();
+        for (Partition partition : partitions) {
+            if (!created.contains(partition.getValues())) {
+                existing.add(partition);
+            }
+        }
+        if (!existing.isEmpty()) {
+            dest.alter_partitions(destDatabaseName, tableName, existing);
+        }
+    }
+
+    /**
+     * The persisted event id, or the current event id of hive metastore if none is persisted. The
+     * partitions before the current event should be synced by a full sync.
+     */
+    private long readLastEventId() throws MetastoreException {
+        try {
+            if (Files.exists(eventIdFile)) {
+                return Long.parseLong(new String(Files.readAllBytes(eventIdFile), StandardCharsets.UTF_8).trim());
+            }
+            long currentEventId = source.getCurrentNotificationEventId().getEventId();
+            log.info("No event id is persisted in " + eventIdFile + ", start from the current event " + currentEventId + ".");
+            writeLastEventId(currentEventId);
+            return currentEventId;
+        } catch (IOException | NumberFormatException | TException e) {
+            throw new MetastoreException("failed to read the last event id", e);
+        }
+    }
+
+    /** Persist the event id atomically, so a crash never leaves a partial file. */
+    private void writeLastEventId(final long eventId) throws MetastoreException {
+        Path tempFile = eventIdFile.resolveSibling(eventIdFile.getFileName() + ".tmp");
+        try {
+            Files.write(tempFile, String.valueOf(eventId).getBytes(StandardCharsets.UTF_8));
+            Files.move(tempFile, eventIdFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new MetastoreException("failed to persist the event id " + eventId, e);
+        }
+    }
+}
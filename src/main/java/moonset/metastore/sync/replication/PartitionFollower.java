@@ -0,0 +1,251 @@
+package moonset.metastore.sync.replication;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.apache.hadoop.hive.metastore.IMetaStoreClient;
+import org.apache.hadoop.hive.metastore.Warehouse;
+import org.apache.hadoop.hive.metastore.api.FieldSchema;
+import org.apache.hadoop.hive.metastore.api.Partition;
+import org.apache.hadoop.hive.metastore.api.Table;
+import org.apache.hadoop.hive.serde.serdeConstants;
+import org.apache.thrift.TException;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import lombok.extern.slf4j.Slf4j;
+import moonset.metastore.sync.MetastoreSyncUtils;
+import moonset.metastore.sync.exception.MetastoreException;
+import moonset.metastore.sync.trace.Tracer;
+import moonset.metastore.sync.util.PartitionUtils;
+
+/**
+ * Follow the new partitions of data catalog tables into local hive metastore, so the partitions
+ * added to data catalog are visible on the cluster within seconds without rescanning the tables.
+ *
+ * <p>Each table is polled by a filter on its time-like partition key, such as snapshot_date,
+ * which only returns the partitions at or after the watermark, the newest value synced. The
+ * partitions not synced yet are added to hive, and the watermark moves forward with the newest
+ * value. The poll interval doubles while nothing new appears or the polls fail, up to {@link
+ * #MAX_POLL_INTERVAL_MILLIS}, and drops back once a new partition is found.
+ *
+ * <p>A partition added later under a value older than the watermark isn't followed, a periodic
+ * sync of all partitions still catches it.
+ */
+@Slf4j
+public class PartitionFollower {
+
+    private static final long MIN_POLL_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(2);
+
+    private static final long MAX_POLL_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    /** The names of the partition keys which are taken as time-like, if no key is given. */
+    private static final Pattern TIME_KEY_PATTERN =
+            Pattern.compile(".*(date|day|dt|hour|time|month|year).*", Pattern.CASE_INSENSITIVE);
+
+    private static final Set<String> TIME_TYPES =
+            ImmutableSet.of(serdeConstants.DATE_TYPE_NAME, serdeConstants.TIMESTAMP_TYPE_NAME);
+
+    /** The state of a followed table. */
+    private static final class FollowedTable {
+        private final String tableName;
+        private List<FieldSchema> partitionKeys;
+        private int timeKeyIndex;
+        /** The newest value of the time key synced, null if nothing is synced yet. */
+        private String watermark;
+        /** The names of the synced partitions at or after the watermark. */
+        private final Set<String> syncedNames = Sets.newHashSet();
+
+        private FollowedTable(String tableName) {
+            this.tableName = tableName;
+        }
+
+        private boolean isIntegral() {
+            return PartitionUtils.isIntegralType(partitionKeys.get(timeKeyIndex).getType());
+        }
+
+        private int compare(String left, String right) {
+            return PartitionUtils.compareTimeValues(left, right, isIntegral());
+        }
+    }
+
+    private final IMetaStoreClient source;
+    private final IMetaStoreClient dest;
+    private final String srcDatabaseName;
+    private final String destDatabaseName;
+    private final String timeKey;
+    private final List<FollowedTable> tables = Lists.newArrayList();
+
+    /**
+     * @param source the data catalog.
+     * @param dest the local hive metastore.
+     * @param tableNames the tables to follow, the dest tables have the same names.
+     * @param timeKey the time-like partition key to poll by, null to pick it by the key types and
+     *     names.
+     */
+    public PartitionFollower(
+            final IMetaStoreClient source,
+            final IMetaStoreClient dest,
+            final String srcDatabaseName,
+            final String destDatabaseName,
+            final Set<String> tableNames,
+            final String timeKey) {
+        this.source = source;
+        this.dest = dest;
+        this.srcDatabaseName = srcDatabaseName;
+        this.destDatabaseName = destDatabaseName;
+        this.timeKey = timeKey;
+        for (String tableName : tableNames) {
+            tables.add(new FollowedTable(tableName));
+        }
+    }
+
+    /** Follow the tables continuously until the thread is interrupted. */
+    public void run() throws MetastoreException {
+        for (FollowedTable table : tables) {
+            initialize(table);
+        }
+        long interval = MIN_POLL_INTERVAL_MILLIS;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                int syncedCount = 0;
+                boolean failed = false;
+                for (FollowedTable table : tables) {
+                    try {
+                        syncedCount += poll(table);
+                    } catch (MetastoreException e) {
+                        log.warn("Failed to poll the table " + table.tableName + ", retry later.", e);
+                        failed = true;
+                    }
+                }
+                interval = syncedCount > 0 && !failed ? MIN_POLL_INTERVAL_MILLIS : Math.min(interval * 2, MAX_POLL_INTERVAL_MILLIS);
+                Thread.sleep(interval);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.info("Stop following the tables.");
+    }
+
+    /** Sync the table, pick its time key, and find the watermark from the dest partition names. */
+    private void initialize(final FollowedTable table) throws MetastoreException {
+        MetastoreSyncUtils.syncTable(source, dest, srcDatabaseName, table.tableName, destDatabaseName, table.tableName);
+        try {
+            Table sourceTable = source.getTable(srcDatabaseName, table.tableName);
+            table.partitionKeys = sourceTable.getPartitionKeys();
+            table.timeKeyIndex = getTimeKeyIndex(sourceTable);
+            for (String name : dest.listPartitionNames(destDatabaseName, table.tableName, (short) -1)) {
+                String value = Warehouse.getPartValuesFromPartName(name).get(table.timeKeyIndex);
+                if (table.watermark == null || table.compare(value, table.watermark) > 0) {
+                    table.watermark = value;
+                }
+                table.syncedNames.add(name);
+            }
+        } catch (TException e) {
+            throw new MetastoreException("failed to initialize the followed table " + table.tableName, e);
+        }
+        retainFromWatermark(table);
+        log.info(
+                "Follow the table " + table.tableName + " by the partition key "
+                        + table.partitionKeys.get(table.timeKeyIndex).getName() + " from " + table.watermark + ".");
+    }
+
+    /**
+     * List the source partitions at or after the watermark, and sync the ones not synced yet.
+     *
+     * @return the number of new partitions synced.
+     */
+    private int poll(final FollowedTable table) throws MetastoreException {
+        try (Tracer.Span span = Tracer.span("followTable").arg("table", table.tableName)) {
+            List<Partition> partitions;
+            if (table.watermark == null) {
+                partitions = source.listPartitions(srcDatabaseName, table.tableName, (short) -1);
+            } else {
+                partitions = source.listPartitionsByFilter(srcDatabaseName, table.tableName, getFilter(table), (short) -1);
+            }
+            List<Partition> newPartitions = Lists.newArrayList();
+            List<String> newNames = Lists.newArrayList();
+            String watermark = table.watermark;
+            for (Partition partition : partitions) {
+                String name = Warehouse.makePartName(table.partitionKeys, partition.getValues());
+                if (!table.syncedNames.contains(name)) {
+                    newPartitions.add(partition);
+                    newNames.add(name);
+                }
+                String value = partition.getValues().get(table.timeKeyIndex);
+                if (watermark == null || table.compare(value, watermark) > 0) {
+                    watermark = value;
+                }
+            }
+            span.arg("partitions", partitions.size()).arg("new", newPartitions.size());
+            if (newPartitions.isEmpty()) {
+                return 0;
+            }
+            MetastoreSyncUtils.syncPartitions(dest, destDatabaseName, table.tableName, newPartitions);
+            table.syncedNames.addAll(newNames);
+            if (!watermark.equals(table.watermark)) {
+                table.watermark = watermark;
+                retainFromWatermark(table);
+            }
+            log.info(
+                    "There are " + newPartitions.size() + " new partitions of " + table.tableName
+                            + " synced, the watermark is " + table.watermark + ".");
+            return newPartitions.size();
+        } catch (TException e) {
+            throw new MetastoreException("failed to poll the partitions of " + table.tableName, e);
+        }
+    }
+
+    /** Forget the synced names before the watermark, which are never listed again. */
+    private static void retainFromWatermark(final FollowedTable table) throws MetastoreException {
+        if (table.watermark == null) {
+            return;
+        }
+        try {
+            Iterator<String> iterator = table.syncedNames.iterator();
+            while (iterator.hasNext()) {
+                String value = Warehouse.getPartValuesFromPartName(iterator.next()).get(table.timeKeyIndex);
+                if (table.compare(value, table.watermark) < 0) {
+                    iterator.remove();
+                }
+            }
+        } catch (TException e) {
+            throw new MetastoreException("failed to parse the partition names of " + table.tableName, e);
+        }
+    }
+
+    private static String getFilter(final FollowedTable table) {
+        String key = table.partitionKeys.get(table.timeKeyIndex).getName();
+        return table.isIntegral() ? key + ">=" + table.watermark : key + ">=\"" + table.watermark + "\"";
+    }
+
+    /** The given time key, or the first key of a time type, or the first key named like time. */
+    private int getTimeKeyIndex(final Table table) {
+        List<FieldSchema> partitionKeys = table.getPartitionKeys();
+        for (int i = 0; i < partitionKeys.size(); i++) {
+            if (timeKey != null && partitionKeys.get(i).getName().equalsIgnoreCase(timeKey)) {
+                return i;
+            }
+        }
+        if (timeKey == null) {
+            for (int i = 0; i < partitionKeys.size(); i++) {
+                if (TIME_TYPES.contains(partitionKeys.get(i).getType().toLowerCase())) {
+                    return i;
+                }
+            }
+            for (int i = 0; i < partitionKeys.size(); i++) {
+                if (TIME_KEY_PATTERN.matcher(partitionKeys.get(i).getName()).matches()) {
+                    return i;
+                }
+            }
+        }
+        throw new IllegalArgumentException(
+                "No time-like partition key " + (timeKey == null ? "" : timeKey + " ") + "found in "
+                        + table.getDbName() + "." + table.getTableName() + ", specify it by the partition key name.");
+    }
+}
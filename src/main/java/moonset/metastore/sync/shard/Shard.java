@@ -0,0 +1,67 @@
+package moonset.metastore.sync.shard;
+
+import java.nio.charset.StandardCharsets;
+
+import com.google.common.hash.Hashing;
+
+/**
+ * A share of the partitions of a table, so N workers on different nodes sync a huge table
+ * together, each reading and writing only its share. The partitions are split by the hash of
+ * their names, or by the glue segments for a data catalog source with at most {@link
+ * #MAX_SEGMENTS} shards, which saves each worker from listing the whole table.
+ */
+public final class Shard {
+
+    /** The max total segments of glue GetPartitions. */
+    public static final int MAX_SEGMENTS = 10;
+
+    private static final String SEPARATOR = "/";
+
+    private final int index;
+    private final int count;
+
+    public Shard(final int index, final int count) {
+        if (count <= 0 || index < 0 || index >= count) {
+            throw new IllegalArgumentException("The shard " + index + SEPARATOR + count + " is out of range.");
+        }
+        this.index = index;
+        this.count = count;
+    }
+
+    /** Parse a shard like "0/4", the index is zero based. */
+    public static Shard parse(final String shard) {
+        String[] parts = shard.split(SEPARATOR);
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("The shard " + shard + " should be like 0/4.");
+        }
+        try {
+            return new Shard(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("The shard " + shard + " should be like 0/4.", e);
+        }
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /** Whether a data catalog source is split by the glue segments instead of the name hash. */
+    public boolean isSegment() {
+        return count <= MAX_SEGMENTS;
+    }
+
+    /** Whether the partition of the name belongs to this shard by the name hash. */
+    public boolean contains(final String partitionName) {
+        int hash = Hashing.murmur3_32().hashString(partitionName, StandardCharsets.UTF_8).asInt();
+        return (hash & Integer.MAX_VALUE) % count == index;
+    }
+
+    @Override
+    public String toString() {
+        return index + SEPARATOR + count;
+    }
+}
@@ -0,0 +1,131 @@
+package moonset.metastore.sync.shard;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import moonset.metastore.sync.exception.MetastoreException;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The report of a shard of a sharded sync, written by each worker into a shared directory on hdfs
+ * or s3, and merged by a final step which fails unless every shard of the table succeeded.
+ */
+@Slf4j
+public final class ShardReport {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final String REPORT_SUFFIX = ".json";
+
+    /** Prevent the class to be instanced. */
+    private ShardReport() {}
+
+    /**
+     * Write the report of the shard into the directory, a report written by a former attempt of
+     * the shard is overwritten.
+     *
+     * @param error the failure of the shard, null if it succeeded.
+     */
+    public static void write(
+            final Path directory,
+            final Configuration conf,
+            final String table,
+            final Shard shard,
+            final int partitionCount,
+            final long durationMillis,
+            final Throwable error)
+            throws MetastoreException {
+        ObjectNode report = MAPPER.createObjectNode();
+        report.put("table", table);
+        report.put("shard", shard.getIndex());
+        report.put("shards", shard.getCount());
+        report.put("partitions", partitionCount);
+        report.put("durationMillis", durationMillis);
+        report.put("succeeded", error == null);
+        if (error != null) {
+            report.put("error", String.valueOf(error));
+        }
+        Path file = new Path(directory, "shard-" + shard.getIndex() + "-of-" + shard.getCount() + REPORT_SUFFIX);
+        try (OutputStream out = file.getFileSystem(conf).create(file, true)) {
+            MAPPER.writeValue(out, report);
+        } catch (IOException e) {
+            throw new MetastoreException("failed to write the shard report " + file, e);
+        }
+    }
+
+    /**
+     * Merge the reports in the directory, and log the totals.
+     *
+     * @return the total number of partitions synced by the shards.
+     * @throws MetastoreException if a shard is missing or failed, or the reports are of different
+     *     tables or shard counts.
+     */
+    public static int merge(final Path directory, final Configuration conf) throws MetastoreException {
+        SortedMap<Integer, JsonNode> reports = Maps.newTreeMap();
+        String table = null;
+        int shardCount = -1;
+        try {
+            FileSystem fs = directory.getFileSystem(conf);
+            for (FileStatus status : fs.listStatus(directory, path -> path.getName().endsWith(REPORT_SUFFIX))) {
+                JsonNode report;
+                try (InputStream in = fs.open(status.getPath())) {
+                    report = MAPPER.readTree(in);
+                }
+                if (table == null) {
+                    table = report.path("table").asText();
+                    shardCount = report.path("shards").asInt();
+                } else if (!table.equals(report.path("table").asText()) || shardCount != report.path("shards").asInt()) {
+                    throw new MetastoreException(
+                            "The report " + status.getPath() + " is of another sync, expected " + table + " in " + shardCount + " shards.");
+                }
+                reports.put(report.path("shard").asInt(), report);
+            }
+        } catch (IOException e) {
+            throw new MetastoreException("failed to read the shard reports in " + directory, e);
+        }
+        if (table == null) {
+            throw new MetastoreException("There is no shard report in " + directory + ".");
+        }
+
+        int partitionCount = 0;
+        long maxDurationMillis = 0;
+        List<String> problems = Lists.newArrayList();
+        for (int shard = 0; shard < shardCount; shard++) {
+            JsonNode report = reports.get(shard);
+            if (report == null) {
+                problems.add("shard " + shard + " has no report");
+            } else if (!report.path("succeeded").asBoolean()) {
+                problems.add("shard " + shard + " failed: " + report.path("error").asText());
+            } else {
+                partitionCount += report.path("partitions").asInt();
+                maxDurationMillis = Math.max(maxDurationMillis, report.path("durationMillis").asLong());
+            }
+        }
+        for (Map.Entry<Integer, JsonNode> entry : reports.entrySet()) {
+            log.info("Shard " + entry.getKey() + "/" + shardCount + ": " + entry.getValue());
+        }
+        if (!problems.isEmpty()) {
+            throw new MetastoreException("The sharded sync of " + table + " is incomplete, " + problems);
+        }
+        log.info(
+                "The " + shardCount + " shards of " + table + " synced " + partitionCount
+                        + " partitions, the slowest shard took " + maxDurationMillis + " ms.");
+        return partitionCount;
+    }
+}
@@ -0,0 +1,203 @@
+package moonset.metastore.sync.snapshot;
+
+import com.google.common.collect.Lists;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hive.metastore.api.Database;
+import org.apache.hadoop.hive.metastore.api.Partition;
+import org.apache.hadoop.hive.metastore.api.Table;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.transport.TIOStreamTransport;
+
+/**
+ * Read a catalog snapshot file. The file is memory mapped, so the blocks can be decoded by many
+ * threads without seeking a shared stream, and they are inflated straight from the mapped pages
+ * without a copy on the heap. A snapshot on a remote file system, such as hdfs, is copied to local
+ * disk first.
+ */
+@Slf4j
+public class CatalogSnapshotReader implements Closeable {
+
+    /** The database and table stored in the table block. */
+    public static final class TableSnapshot {
+        private final Database database;
+        private final Table table;
+
+        TableSnapshot(Database database, Table table) {
+            this.database = database;
+            this.table = table;
+        }
+
+        public Database getDatabase() {
+            return database;
+        }
+
+        public Table getTable() {
+            return table;
+        }
+    }
+
+    private final File localFile;
+
+    private final boolean isTemporary;
+
+    private final FileChannel channel;
+
+    private final List<SnapshotIndex.TableEntry> tables;
+
+    public CatalogSnapshotReader(Path path, Configuration conf) throws IOException {
+        FileSystem fs = path.getFileSystem(conf);
+        if ("file".equals(fs.getUri().getScheme())) {
+            localFile = new File(path.toUri().getPath());
+            isTemporary = false;
+        } else {
+            localFile = File.createTempFile("catalog-snapshot", ".bin");
+            isTemporary = true;
+            log.info("Copy the snapshot " + path + " to local file " + localFile);
+            fs.copyToLocalFile(false, path, new Path(localFile.getAbsolutePath()), true);
+        }
+        channel = FileChannel.open(localFile.toPath(), StandardOpenOption.READ);
+
+        long size = channel.size();
+        DataInputStream header = new DataInputStream(openStream(0, 8));
+        DataInputStream trailer =
+                new DataInputStream(openStream(size - SnapshotIndex.TRAILER_SIZE, SnapshotIndex.TRAILER_SIZE));
+        if (header.readInt() != SnapshotIndex.MAGIC || header.readInt() != SnapshotIndex.VERSION) {
+            throw new IOException("The file " + path + " is not a catalog snapshot of version " + SnapshotIndex.VERSION);
+        }
+        long indexOffset = trailer.readLong();
+        if (trailer.readInt() != SnapshotIndex.MAGIC) {
+            throw new IOException("The catalog snapshot " + path + " is truncated.");
+        }
+        tables =
+                SnapshotIndex.read(
+                        new DataInputStream(
+                                openStream(indexOffset, (int) (size - SnapshotIndex.TRAILER_SIZE - indexOffset))));
+    }
+
+    public int getTableCount() {
+        return tables.size();
+    }
+
+    public String getDatabaseName(int tableIndex) {
+        return tables.get(tableIndex).databaseName;
+    }
+
+    public String getTableName(int tableIndex) {
+        return tables.get(tableIndex).tableName;
+    }
+
+    public int getPartitionBlockCount(int tableIndex) {
+        return tables.get(tableIndex).partitionBlocks.size();
+    }
+
+    public int getPartitionCount(int tableIndex) {
+        return tables.get(tableIndex).getPartitionCount();
+    }
+
+    public TableSnapshot readTable(int tableIndex) throws IOException {
+        SnapshotIndex.Block block = tables.get(tableIndex).tableBlock;
+        try {
+            TProtocol protocol = openBlock(block);
+            Database database = new Database();
+            database.read(protocol);
+            Table table = new Table();
+            table.read(protocol);
+            return new TableSnapshot(database, table);
+        } catch (TException e) {
+            throw new IOException("fail to deserialize snapshot block.", e);
+        }
+    }
+
+    /** Decode one partition block of a table. This method is thread safe. */
+    public List<Partition> readPartitions(int tableIndex, int blockIndex) throws IOException {
+        SnapshotIndex.Block block = tables.get(tableIndex).partitionBlocks.get(blockIndex);
+        try {
+            TProtocol protocol = openBlock(block);
+            List<Partition> partitions = Lists.newArrayListWithCapacity(block.count);
+            for (int i = 0; i < block.count; i++) {
+                Partition partition = new Partition();
+                partition.read(protocol);
+                partitions.add(partition);
+            }
+            return partitions;
+        } catch (TException e) {
+            throw new IOException("fail to deserialize snapshot block.", e);
+        }
+    }
+
+    private TProtocol openBlock(SnapshotIndex.Block block) throws IOException {
+        return new TCompactProtocol(
+                new TIOStreamTransport(
+                        new InflaterInputStream(openStream(block.offset, block.length))));
+    }
+
+    /** Map the range of the file, and read it through a stream over the mapped pages. */
+    private InputStream openStream(long offset, int length) throws IOException {
+        return new ByteBufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY, offset, length));
+    }
+
+    /** An input stream over the remaining bytes of a buffer, which isn't shared with other streams. */
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        if (isTemporary && !localFile.delete()) {
+            log.warn("Unable to delete the local snapshot copy " + localFile);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package moonset.metastore.sync.snapshot;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hive.metastore.api.Database;
+import org.apache.hadoop.hive.metastore.api.Partition;
+import org.apache.hadoop.hive.metastore.api.Table;
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.transport.TIOStreamTransport;
+
+/**
+ * Write tables and their partitions into a catalog snapshot file on any hadoop file system. See
+ * {@link SnapshotIndex} for the layout.
+ */
+public class CatalogSnapshotWriter implements Closeable {
+
+    private final FSDataOutputStream out;
+
+    private final List<SnapshotIndex.TableEntry> tables = Lists.newArrayList();
+
+    public CatalogSnapshotWriter(Path path, Configuration conf) throws IOException {
+        this.out = path.getFileSystem(conf).create(path, true);
+        out.writeInt(SnapshotIndex.MAGIC);
+        out.writeInt(SnapshotIndex.VERSION);
+    }
+
+    /** Append a table, the database it belongs to, and its partitions. */
+    public void addTable(Database database, Table table, List<Partition> partitions) throws IOException {
+        SnapshotIndex.TableEntry entry = new SnapshotIndex.TableEntry(table.getDbName(), table.getTableName());
+        entry.tableBlock = writeBlock(ImmutableList.<TBase<?, ?>>of(database, table));
+        for (int i = 0; i < partitions.size(); i += SnapshotIndex.PARTITIONS_PER_BLOCK) {
+            entry.partitionBlocks.add(
+                    writeBlock(partitions.subList(i, Math.min(i + SnapshotIndex.PARTITIONS_PER_BLOCK, partitions.size()))));
+        }
+        tables.add(entry);
+    }
+
+    private SnapshotIndex.Block writeBlock(List<? extends TBase<?, ?>> objects) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DeflaterOutputStream deflater = new DeflaterOutputStream(bytes)) {
+            TProtocol protocol = new TCompactProtocol(new TIOStreamTransport(deflater));
+            for (TBase<?, ?> object : objects) {
+                object.write(protocol);
+            }
+        } catch (TException e) {
+            throw new IOException("fail to serialize snapshot block.", e);
+        }
+        long offset = out.getPos();
+        bytes.writeTo(out);
+        return new SnapshotIndex.Block(offset, bytes.size(), objects.size());
+    }
+
+    /** Write the index and the trailer, then close the file. */
+    @Override
+    public void close() throws IOException {
+        try {
+            long indexOffset = out.getPos();
+            SnapshotIndex.write(out, tables);
+            out.writeLong(indexOffset);
+            out.writeInt(SnapshotIndex.MAGIC);
+        } finally {
+            out.close();
+        }
+    }
+}
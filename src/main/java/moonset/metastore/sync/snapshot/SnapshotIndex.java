@@ -0,0 +1,106 @@
+package moonset.metastore.sync.snapshot;
+
+import com.google.common.collect.Lists;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The index of a catalog snapshot file. The file layout is:
+ *
+ * <pre>
+ * MAGIC VERSION
+ * block*                      each block is deflated thrift compact structs
+ * index                       see {@link #write}
+ * index offset(long) MAGIC
+ * </pre>
+ *
+ * A table has one block holding its Database and Table, followed by partition blocks of up to
+ * {@link #PARTITIONS_PER_BLOCK} partitions each, so the reader can decode and write blocks in
+ * parallel.
+ */
+final class SnapshotIndex {
+
+    /** "MSNP" in ascii. */
+    static final int MAGIC = 0x4D534E50;
+
+    static final int VERSION = 1;
+
+    /** The size of the trailer: the index offset and the magic. */
+    static final int TRAILER_SIZE = 12;
+
+    static final int PARTITIONS_PER_BLOCK = 1000;
+
+    /** Prevent the class to be instanced. */
+    private SnapshotIndex() {}
+
+    /** The position of a block in the snapshot file. */
+    static final class Block {
+        final long offset;
+        final int length;
+        final int count;
+
+        Block(long offset, int length, int count) {
+            this.offset = offset;
+            this.length = length;
+            this.count = count;
+        }
+    }
+
+    /** The blocks of one table. */
+    static final class TableEntry {
+        final String databaseName;
+        final String tableName;
+        Block tableBlock;
+        final List<Block> partitionBlocks = Lists.newArrayList();
+
+        TableEntry(String databaseName, String tableName) {
+            this.databaseName = databaseName;
+            this.tableName = tableName;
+        }
+
+        int getPartitionCount() {
+            return partitionBlocks.stream().mapToInt(block -> block.count).sum();
+        }
+    }
+
+    static void write(DataOutput out, List<TableEntry> tables) throws IOException {
+        out.writeInt(tables.size());
+        for (TableEntry table : tables) {
+            out.writeUTF(table.databaseName);
+            out.writeUTF(table.tableName);
+            writeBlock(out, table.tableBlock);
+            out.writeInt(table.partitionBlocks.size());
+            for (Block block : table.partitionBlocks) {
+                writeBlock(out, block);
+            }
+        }
+    }
+
+    static List<TableEntry> read(DataInput in) throws IOException {
+        int tableCount = in.readInt();
+        List<TableEntry> tables = Lists.newArrayListWithCapacity(tableCount);
+        for (int i = 0; i < tableCount; i++) {
+            TableEntry table = new TableEntry(in.readUTF(), in.readUTF());
+            table.tableBlock = readBlock(in);
+            int blockCount = in.readInt();
+            for (int j = 0; j < blockCount; j++) {
+                table.partitionBlocks.add(readBlock(in));
+            }
+            tables.add(table);
+        }
+        return tables;
+    }
+
+    private static void writeBlock(DataOutput out, Block block) throws IOException {
+        out.writeLong(block.offset);
+        out.writeInt(block.length);
+        out.writeInt(block.count);
+    }
+
+    private static Block readBlock(DataInput in) throws IOException {
+        return new Block(in.readLong(), in.readInt(), in.readInt());
+    }
+}
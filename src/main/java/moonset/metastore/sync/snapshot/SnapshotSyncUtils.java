@@ -0,0 +1,201 @@
+package moonset.metastore.sync.snapshot;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hive.metastore.IMetaStoreClient;
+import org.apache.hadoop.hive.metastore.api.Database;
+import org.apache.hadoop.hive.metastore.api.MetaException;
+import org.apache.hadoop.hive.metastore.api.NoSuchObjectException;
+import org.apache.hadoop.hive.metastore.api.Partition;
+import org.apache.hadoop.hive.metastore.api.Table;
+import org.apache.thrift.TException;
+
+import com.google.common.collect.Lists;
+
+import moonset.metastore.sync.MetastoreSyncUtils;
+import moonset.metastore.sync.catalog.CatalogClient;
+import moonset.metastore.sync.exception.MetastoreException;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Export tables to a catalog snapshot file, and import a snapshot into a metastore. A transient
+ * cluster can bootstrap its local hive metastore from a snapshot on local disk or hdfs, instead of
+ * syncing from data catalog table by table.
+ */
+@Slf4j
+public final class SnapshotSyncUtils {
+
+    /** Prevent the class to be instanced. */
+    private SnapshotSyncUtils() {}
+
+    /**
+     * Export the tables of the database and all their partitions to a snapshot file.
+     *
+     * @param tableNames the tables to export, null means all tables of the database.
+     */
+    public static void exportSnapshot(
+            final IMetaStoreClient source,
+            final String databaseName,
+            final Set<String> tableNames,
+            final Path path,
+            final Configuration conf)
+            throws MetastoreException {
+        CatalogClient client = new CatalogClient(source);
+        try (CatalogSnapshotWriter writer = new CatalogSnapshotWriter(path, conf)) {
+            Database database = source.getDatabase(databaseName);
+            for (String tableName : source.getAllTables(databaseName)) {
+                if (tableNames != null && !tableNames.contains(tableName)) {
+                    continue;
+                }
+                Table table = source.getTable(databaseName, tableName);
+                List<Partition> partitions = client.getAllPartitions(databaseName, tableName);
+                writer.addTable(database, table, partitions);
+                log.info("The table " + databaseName + "." + tableName + " with " + partitions.size() + " partitions is exported.");
+            }
+        } catch (TException | IOException e) {
+            throw new MetastoreException("fail to export snapshot.", e);
+        }
+    }
+
+    /**
+     * Import the tables of the database in the snapshot into dest metastore. Each dest client is
+     * used by one thread at a time, so the partition blocks are decoded and written with as many
+     * threads as there are dest clients.
+     *
+     * @param tableNames the tables to import, null means all tables of the database.
+     * @param dests the clients of the same dest metastore.
+     */
+    public static void importSnapshot(
+            final Path path,
+            final Configuration conf,
+            final String databaseName,
+            final Set<String> tableNames,
+            final List<IMetaStoreClient> dests)
+            throws MetastoreException {
+        ExecutorService executor = Executors.newFixedThreadPool(dests.size());
+        BlockingQueue<IMetaStoreClient> pool = new LinkedBlockingQueue<>(dests);
+        try (CatalogSnapshotReader reader = new CatalogSnapshotReader(path, conf)) {
+            List<Future<?>> futures = Lists.newArrayList();
+            for (int i = 0; i < reader.getTableCount(); i++) {
+                if (!databaseName.equals(reader.getDatabaseName(i))
+                        || (tableNames != null && !tableNames.contains(reader.getTableName(i)))) {
+                    continue;
+                }
+                CatalogSnapshotReader.TableSnapshot snapshot = reader.readTable(i);
+                Table table = snapshot.getTable();
+                IMetaStoreClient dest = pool.take();
+                Set<String> existingPartitionNames = ConcurrentHashMap.newKeySet();
+                try {
+                    MetastoreSyncUtils.syncTable(
+                            asSource(snapshot),
+                            dest,
+                            table.getDbName(),
+                            table.getTableName(),
+                            table.getDbName(),
+                            table.getTableName());
+                    existingPartitionNames.addAll(
+                            MetastoreSyncUtils.getPartitionNames(dest, table.getDbName(), table.getTableName()));
+                } finally {
+                    pool.put(dest);
+                }
+                log.info("Import " + reader.getPartitionCount(i) + " partitions of table " + table.getDbName() + "." + table.getTableName() + ".");
+                for (int j = 0; j < reader.getPartitionBlockCount(i); j++) {
+                    final int tableIndex = i;
+                    final int blockIndex = j;
+                    futures.add(
+                            executor.submit(
+                                    () -> {
+                                        List<Partition> partitions =
+                                                MetastoreSyncUtils.preparePartitions(
+                                                        reader.readPartitions(tableIndex, blockIndex),
+                                                        table.getDbName(),
+                                                        table.getTableName());
+                                        IMetaStoreClient client = pool.take();
+                                        try {
+                                            MetastoreSyncUtils.addPartitions(
+                                                    client, partitions, table.getPartitionKeys(), existingPartitionNames);
+                                        } finally {
+                                            pool.put(client);
+                                        }
+                                        return null;
+                                    }));
+                }
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw new MetastoreException("fail to import snapshot.", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MetastoreException("interrupted while importing snapshot.", e);
+        } catch (IOException e) {
+            throw new MetastoreException("fail to import snapshot.", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Expose the snapshot as a read only source metastore, so the table is synced with exactly the
+     * same rules as {@link MetastoreSyncUtils#syncTable}. It serves the database and the table of
+     * the snapshot, which are all that syncTable reads from its source, the partitions are imported
+     * block by block instead. Any other call fails with a {@link MetaException}, which syncTable
+     * reports like a failure of any source.
+     */
+    private static IMetaStoreClient asSource(final CatalogSnapshotReader.TableSnapshot snapshot) {
+        Database database = snapshot.getDatabase();
+        Table table = snapshot.getTable();
+        return (IMetaStoreClient)
+                Proxy.newProxyInstance(
+                        IMetaStoreClient.class.getClassLoader(),
+                        new Class<?>[] {IMetaStoreClient.class},
+                        (proxy, method, args) -> {
+                            if (method.getDeclaringClass() == Object.class) {
+                                switch (method.getName()) {
+                                    case "equals":
+                                        return proxy == args[0];
+                                    case "hashCode":
+                                        return System.identityHashCode(proxy);
+                                    default:
+                                        return "SnapshotSource[" + table.getDbName() + "." + table.getTableName() + "]";
+                                }
+                            }
+                            switch (method.getName()) {
+                                case "getDatabase":
+                                    if (!database.getName().equalsIgnoreCase((String) args[0])) {
+                                        throw new NoSuchObjectException("The database " + args[0] + " isn't in the snapshot.");
+                                    }
+                                    return database.deepCopy();
+                                case "getTable":
+                                    if (!isSnapshotTable(table, (String) args[0], (String) args[1])) {
+                                        throw new NoSuchObjectException("The table " + args[0] + "." + args[1] + " isn't in the snapshot.");
+                                    }
+                                    return table.deepCopy();
+                                case "tableExists":
+                                    return isSnapshotTable(table, (String) args[0], (String) args[1]);
+                                case "close":
+                                    return null;
+                                default:
+                                    throw new MetaException(method.getName() + " is not supported by a snapshot source.");
+                            }
+                        });
+    }
+
+    private static boolean isSnapshotTable(final Table table, final String databaseName, final String tableName) {
+        return table.getDbName().equalsIgnoreCase(databaseName) && table.getTableName().equalsIgnoreCase(tableName);
+    }
+}
@@ -0,0 +1,126 @@
+package moonset.metastore.sync.tools;
+
+import moonset.metastore.sync.MetastoreClientFactory;
+import moonset.metastore.sync.proxy.CachingMetastoreHandler;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.metastore.IMetaStoreClient;
+import org.apache.hadoop.hive.metastore.api.ThriftHiveMetastore;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.server.TServer;
+import org.apache.thrift.server.TThreadPoolServer;
+import org.apache.thrift.transport.TServerSocket;
+import org.apache.thrift.transport.TTransportFactory;
+
+/*
+ * Serve a local thrift metastore endpoint in front of data catalog, which answers the reads from
+ * an in-memory cache and forwards the writes to data catalog. Point hive.metastore.uris of the
+ * cluster to thrift://localhost:<port> to use it.
+ *
+ * commandline --port 9084 [--glue_region us-east-1] [--max_cached_objects 200000]
+ *             [--refresh_seconds 60] [--expire_seconds 600] [--warm_database foo --warm_tables foo,bar]
+ *
+ * The warm tables are loaded before serving, and their partitions are reloaded every refresh
+ * interval, so the reads of them never wait for data catalog.
+ */
+public class CachingMetastoreServer {
+    private static final Log log = LogFactory.getLog(CachingMetastoreServer.class);
+
+    private static final String PORT = "port";
+    private static final String GLUE_REGION = "glue_region";
+    private static final String DEFAULT_GLUE_REGION = "us-east-1";
+    private static final String MAX_CACHED_OBJECTS = "max_cached_objects";
+    private static final String DEFAULT_MAX_CACHED_OBJECTS = "200000";
+    private static final String REFRESH_SECONDS = "refresh_seconds";
+    private static final String DEFAULT_REFRESH_SECONDS = "60";
+    private static final String EXPIRE_SECONDS = "expire_seconds";
+    private static final String DEFAULT_EXPIRE_SECONDS = "600";
+    private static final String WARM_DATABASE = "warm_database";
+    private static final String WARM_TABLES = "warm_tables";
+    private static final String MAX_WORKER_THREADS = "max_worker_threads";
+    private static final String DEFAULT_MAX_WORKER_THREADS = "200";
+
+    public static void main(final String[] args) throws Exception {
+        Options options = new Options();
+        Option port = new Option(PORT, true, "the port to serve the thrift metastore");
+        port.setRequired(true);
+        options.addOption(port);
+        options.addOption(new Option(GLUE_REGION, true, "the glue data catalog region"));
+        options.addOption(new Option(MAX_CACHED_OBJECTS, true, "the max number of tables, partitions and names cached"));
+        options.addOption(new Option(REFRESH_SECONDS, true, "the age after which a cached entry is reloaded"));
+        options.addOption(new Option(EXPIRE_SECONDS, true, "the age after which a cached entry is dropped"));
+        options.addOption(new Option(WARM_DATABASE, true, "the database of the warm tables"));
+        options.addOption(new Option(WARM_TABLES, true, "the tables loaded before serving and kept fresh, comma separated"));
+        options.addOption(new Option(MAX_WORKER_THREADS, true, "the max number of threads serving the clients"));
+        CommandLine line = new GnuParser().parse(options, args);
+        if (line.hasOption(WARM_TABLES) != line.hasOption(WARM_DATABASE)) {
+            throw new IllegalArgumentException("The warm tables and the warm database must be given together.");
+        }
+        long refreshSeconds = Long.parseLong(line.getOptionValue(REFRESH_SECONDS, DEFAULT_REFRESH_SECONDS));
+        long expireSeconds = Long.parseLong(line.getOptionValue(EXPIRE_SECONDS, DEFAULT_EXPIRE_SECONDS));
+        if (refreshSeconds >= expireSeconds) {
+            throw new IllegalArgumentException("The refresh interval must be shorter than the expiry.");
+        }
+
+        IMetaStoreClient dataCatalog =
+                new MetastoreClientFactory().getDataCatalogClient(line.getOptionValue(GLUE_REGION, DEFAULT_GLUE_REGION));
+        ExecutorService refreshExecutor = Executors.newFixedThreadPool(4);
+        CachingMetastoreHandler handler =
+                new CachingMetastoreHandler(
+                        dataCatalog,
+                        Long.parseLong(line.getOptionValue(MAX_CACHED_OBJECTS, DEFAULT_MAX_CACHED_OBJECTS)),
+                        refreshSeconds,
+                        expireSeconds,
+                        refreshExecutor);
+        ScheduledExecutorService warmer = Executors.newSingleThreadScheduledExecutor();
+        if (line.hasOption(WARM_TABLES)) {
+            String database = line.getOptionValue(WARM_DATABASE);
+            String[] tables = line.getOptionValue(WARM_TABLES).split(",");
+            for (String table : tables) {
+                handler.warm(database, table.trim());
+            }
+            warmer.scheduleWithFixedDelay(
+                    () -> {
+                        for (String table : tables) {
+                            try {
+                                handler.warm(database, table.trim());
+                            } catch (Exception e) {
+                                log.warn("Failed to warm the cache of " + database + "." + table + ", retry later.", e);
+                            }
+                        }
+                        log.info("Cache stats: " + handler.getStats());
+                    },
+                    refreshSeconds,
+                    refreshSeconds,
+                    TimeUnit.SECONDS);
+        }
+
+        TServerSocket serverSocket = new TServerSocket(Integer.parseInt(line.getOptionValue(PORT)));
+        TServer server =
+                new TThreadPoolServer(
+                        new TThreadPoolServer.Args(serverSocket)
+                                .processor(new ThriftHiveMetastore.Processor<>(handler.newHandler()))
+                                .transportFactory(new TTransportFactory())
+                                .protocolFactory(new TBinaryProtocol.Factory())
+                                .maxWorkerThreads(
+                                        Integer.parseInt(line.getOptionValue(MAX_WORKER_THREADS, DEFAULT_MAX_WORKER_THREADS))));
+        log.info("Serving the caching metastore on port " + line.getOptionValue(PORT) + ".");
+        try {
+            server.serve();
+        } finally {
+            warmer.shutdownNow();
+            refreshExecutor.shutdownNow();
+            dataCatalog.close();
+        }
+    }
+}
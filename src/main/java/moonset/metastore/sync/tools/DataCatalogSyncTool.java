@@ -1,17 +1,53 @@
 package moonset.metastore.sync.tools;
 
+import moonset.metastore.sync.FanOutSyncUtils;
+import moonset.metastore.sync.GlueMetastoreSyncUtils;
 import moonset.metastore.sync.MetastoreClientFactory;
 import moonset.metastore.sync.MetastoreSyncUtils;
+import moonset.metastore.sync.StagedReplaceUtils;
+import moonset.metastore.sync.catalog.AsyncCatalogClient;
+import moonset.metastore.sync.catalog.CatalogClient;
+import moonset.metastore.sync.coordination.SyncCoalescer;
+import moonset.metastore.sync.digest.DigestSyncUtils;
+import moonset.metastore.sync.discovery.PartitionDiscovery;
 import moonset.metastore.sync.exception.MetastoreException;
+import moonset.metastore.sync.jdbc.JdbcPartitionBulkLoader;
 import moonset.metastore.sync.parser.ExtendedGnuParser;
+import moonset.metastore.sync.priority.PartitionPriority;
+import moonset.metastore.sync.replication.NotificationLogReplicator;
+import moonset.metastore.sync.replication.PartitionFollower;
+import moonset.metastore.sync.shard.Shard;
+import moonset.metastore.sync.shard.ShardReport;
+import moonset.metastore.sync.snapshot.SnapshotSyncUtils;
+import moonset.metastore.sync.trace.Tracer;
 import moonset.metastore.sync.util.CLIArgsTokenizer;
+import moonset.metastore.sync.util.LocationVerifier;
 
+import java.io.File;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 
 import org.apache.commons.cli.*;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hive.conf.HiveConf;
 import org.apache.hadoop.hive.metastore.IMetaStoreClient;
+import org.apache.hadoop.hive.metastore.api.AlreadyExistsException;
+import org.apache.hadoop.hive.metastore.api.FieldSchema;
+import org.apache.hadoop.hive.metastore.api.Partition;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 /*
  * The command line interface of metastore sync process.
@@ -25,8 +61,57 @@ import org.apache.hadoop.hive.metastore.IMetaStoreClient;
  * commandline --source [hive|datacatlog] --database foo --table foo
  * To sync table with all partitions:
  * commandline --source [hive|datacatlog] --database foo --table foo --all-partitions
- * To sync table with all partitions:
- * commandline --source [hive|datacatlog] --database foo --table foo --all-partitions
+ * To replicate table with all partitions from one data catalog to another, without hive conversion:
+ * commandline --source datacatlog --glue_region us-east-1 --dest_glue_region us-west-2 [--dest_catalog_id 123456789012] --database foo --table foo --all-partitions
+ *
+ * To sync table from hive to data catalogs in several regions, reading the source only once:
+ * commandline --source hive --glue_region us-east-1,us-west-2 --database foo --table foo --all-partitions
+ * To sync table from data catalog to several hive metastores, reading the source only once:
+ * commandline --source datacatlog --dest_hive_uris thrift://foo:9083,thrift://bar:9083 --database foo --table foo --all-partitions
+ *
+ * To export tables with all partitions to a snapshot file, '*' means all tables of the database:
+ * commandline --source [hive|datacatlog] --database foo --table foo,bar --export_snapshot hdfs:///foo.snapshot
+ * To import tables from a snapshot file into local hive metastore:
+ * commandline --source datacatlog --database foo --table '*' --import_snapshot hdfs:///foo.snapshot
+ * To cold load a large table from data catalog by writing the local hive metastore database directly:
+ * commandline --source datacatlog --database foo --table foo --all-partitions --bulk_load
+ *
+ * To replace the dest table, a local hive table is replaced by syncing into a staging table and swapping them by renames:
+ * commandline --source datacatlog --database foo --table foo --all-partitions --replace-dest-table
+ *
+ * To replicate the partition changes of local hive to data catalog continuously by tailing the notification log of hive metastore:
+ * commandline --source hive --database foo --table foo,bar --replicate_events /var/lib/moonset/foo.event_id
+ *
+ * To register the new partition directories under the source table location into the source metastore before syncing them, instead of MSCK REPAIR or a crawler:
+ * commandline --source [hive|datacatlog] --database foo --table foo --partition "snapshot_date=foo1,foo2" --discover_partitions
+ *
+ * To verify all partitions by the partition digest stored in the dest table, fetching only the dest partitions of the differing buckets, and repair them:
+ * commandline --source [hive|datacatlog] --database foo --table foo --all-partitions --verify_digest
+ *
+ * To coalesce the concurrent syncs of the same table on this host, a sync covered by a running sync reuses its result, and the others are merged into one follow-up sync:
+ * commandline --source [hive|datacatlog] --database foo --table foo --partition "snapshot_date=foo1" --coalesce_dir /var/lock/moonset
+ *
+ * To follow the new partitions of data catalog tables into local hive continuously, polling by the newest values of a time-like partition key:
+ * commandline --source datacatlog --database foo --table foo,bar [--follow_key snapshot_date] --follow
+ *
+ * To sync a huge table by N workers on different nodes, each syncing the i-th shard, and then check the reports of all shards:
+ * commandline --source [hive|datacatlog] --database foo --table foo --all-partitions --shard 0/4 --shard_report_dir s3://foo/reports/foo
+ * commandline --source [hive|datacatlog] --database foo --table foo --merge_shard_reports s3://foo/reports/foo
+ *
+ * To sync the newest partitions first within a time budget, the next run resumes the partitions left since those in dest are skipped:
+ * commandline --source [hive|datacatlog] --database foo --table foo --all-partitions --priority_key [snapshot_date|createTime] [--deadline_minutes 30]
+ *
+ * To spread the calls to local hive over all the metastores in hive.metastore.uris, writing the partition batches to them concurrently:
+ * commandline --source [hive|datacatlog] --database foo --table foo --all-partitions --balance_metastore_uris
+ *
+ * To verify the partition locations exist before syncing them, by listing each parent directory once:
+ * commandline --source [hive|datacatlog] --database foo --table foo --all-partitions --verify_locations
+ *
+ * To sync the table and partition column statistics as well, so the statistics don't need to be computed again:
+ * commandline --source [hive|datacatlog] --database foo --table foo --all-partitions --sync_column_stats
+ *
+ * To profile a sync, write the phases to a chrome trace file, which can be opened by chrome://tracing or ui.perfetto.dev:
+ * commandline --source [hive|datacatlog] --database foo --table foo --all-partitions --trace_file /tmp/sync.trace.json
  *
  * Now, we only support provide snapshot_date explicitly, and we plan to support start_date and end_date if we find we need that feature.
  */
@@ -49,6 +134,197 @@ public class DataCatalogSyncTool {
     private static final String DATACATALOG = "datacatalog";
     private static final String GLUE_REGION = "glue_region";
     private static final String DEFAULT_GLUE_REGION = "us-east-1";
+    private static final String DEST_GLUE_REGION = "dest_glue_region";
+    private static final String DEST_CATALOG_ID = "dest_catalog_id";
+    private static final String DEST_HIVE_URIS = "dest_hive_uris";
+    private static final String LIST_SEPARATOR = ",";
+    private static final String EXPORT_SNAPSHOT = "export_snapshot";
+    private static final String IMPORT_SNAPSHOT = "import_snapshot";
+    private static final String ALL_TABLES = "*";
+    private static final int IMPORT_SNAPSHOT_THREADS = 8;
+    private static final String BULK_LOAD = "bulk_load";
+    private static final String TRACE_FILE = "trace_file";
+    private static final String SYNC_COLUMN_STATS = "sync_column_stats";
+    private static final String REPLICATE_EVENTS = "replicate_events";
+    private static final String VERIFY_LOCATIONS = "verify_locations";
+    private static final String DISCOVER_PARTITIONS = "discover_partitions";
+    private static final String COALESCE_DIR = "coalesce_dir";
+    private static final String VERIFY_DIGEST = "verify_digest";
+    private static final String FOLLOW = "follow";
+    private static final String FOLLOW_KEY = "follow_key";
+    private static final String SHARD = "shard";
+    private static final String SHARD_REPORT_DIR = "shard_report_dir";
+    private static final String MERGE_SHARD_REPORTS = "merge_shard_reports";
+    private static final String PRIORITY_KEY = "priority_key";
+    private static final String DEADLINE_MINUTES = "deadline_minutes";
+    private static final String BALANCE_METASTORE_URIS = "balance_metastore_uris";
+
+    /** The tables a mode accepts in the table option. */
+    private enum Tables {
+        ANY,
+        LISTED,
+        SINGLE
+    }
+
+    /**
+     * The modes of the tool, each selected by its own option, and the table of which sources,
+     * tables and options every mode accepts. A command line selects at most one mode, a plain
+     * sync if none, and parse rejects any option its mode doesn't list here.
+     */
+    private enum Mode {
+        PLAIN_SYNC(
+                "a plain sync",
+                line -> false,
+                ImmutableSet.of(HIVE, DATACATALOG),
+                Tables.ANY,
+                ImmutableSet.of(),
+                ImmutableSet.of(
+                        REMOTE_DATABASE, REMOTE_TABLE, PARTITION, ALL_PARTITIONS, REPLACE_DEST_TABLE, ALLOW_NONE_SOURCE_TABLE,
+                        SYNC_COLUMN_STATS, VERIFY_LOCATIONS, DISCOVER_PARTITIONS, COALESCE_DIR, BALANCE_METASTORE_URIS)),
+        BULK_LOAD_SYNC(
+                "the " + BULK_LOAD + " option",
+                line -> line.hasOption(BULK_LOAD),
+                ImmutableSet.of(DATACATALOG),
+                Tables.ANY,
+                ImmutableSet.of(),
+                ImmutableSet.of(
+                        BULK_LOAD, REMOTE_DATABASE, REMOTE_TABLE, PARTITION, ALL_PARTITIONS, REPLACE_DEST_TABLE,
+                        ALLOW_NONE_SOURCE_TABLE, SYNC_COLUMN_STATS, VERIFY_LOCATIONS, DISCOVER_PARTITIONS, COALESCE_DIR)),
+        DIGEST_SYNC(
+                "the " + VERIFY_DIGEST + " option",
+                line -> line.hasOption(VERIFY_DIGEST),
+                ImmutableSet.of(HIVE, DATACATALOG),
+                Tables.ANY,
+                ImmutableSet.of(ALL_PARTITIONS),
+                ImmutableSet.of(
+                        VERIFY_DIGEST, REMOTE_DATABASE, REMOTE_TABLE, ALL_PARTITIONS, ALLOW_NONE_SOURCE_TABLE,
+                        SYNC_COLUMN_STATS, VERIFY_LOCATIONS, DISCOVER_PARTITIONS, COALESCE_DIR, BALANCE_METASTORE_URIS)),
+        SHARD_SYNC(
+                "the " + SHARD + " option",
+                line -> line.hasOption(SHARD),
+                ImmutableSet.of(HIVE, DATACATALOG),
+                Tables.SINGLE,
+                ImmutableSet.of(ALL_PARTITIONS),
+                ImmutableSet.of(
+                        SHARD, SHARD_REPORT_DIR, REMOTE_DATABASE, REMOTE_TABLE, ALL_PARTITIONS, ALLOW_NONE_SOURCE_TABLE,
+                        VERIFY_LOCATIONS, DISCOVER_PARTITIONS, COALESCE_DIR, BALANCE_METASTORE_URIS)),
+        PRIORITY_SYNC(
+                "the " + PRIORITY_KEY + " option",
+                line -> line.hasOption(PRIORITY_KEY),
+                ImmutableSet.of(HIVE, DATACATALOG),
+                Tables.SINGLE,
+                ImmutableSet.of(PARTITION, ALL_PARTITIONS),
+                ImmutableSet.of(
+                        PRIORITY_KEY, DEADLINE_MINUTES, REMOTE_DATABASE, REMOTE_TABLE, PARTITION,
+                        ALL_PARTITIONS, ALLOW_NONE_SOURCE_TABLE, SYNC_COLUMN_STATS, VERIFY_LOCATIONS, DISCOVER_PARTITIONS,
+                        COALESCE_DIR, BALANCE_METASTORE_URIS)),
+        SNAPSHOT_EXPORT(
+                "the " + EXPORT_SNAPSHOT + " option",
+                line -> line.hasOption(EXPORT_SNAPSHOT),
+                ImmutableSet.of(HIVE, DATACATALOG),
+                Tables.ANY,
+                ImmutableSet.of(),
+                ImmutableSet.of(EXPORT_SNAPSHOT, REMOTE_DATABASE, REMOTE_TABLE, DISCOVER_PARTITIONS)),
+        SNAPSHOT_IMPORT(
+                "the " + IMPORT_SNAPSHOT + " option",
+                line -> line.hasOption(IMPORT_SNAPSHOT),
+                ImmutableSet.of(HIVE, DATACATALOG),
+                Tables.ANY,
+                ImmutableSet.of(),
+                ImmutableSet.of(IMPORT_SNAPSHOT, VERIFY_LOCATIONS)),
+        EVENT_REPLICATION(
+                "the " + REPLICATE_EVENTS + " option",
+                line -> line.hasOption(REPLICATE_EVENTS),
+                ImmutableSet.of(HIVE),
+                Tables.ANY,
+                ImmutableSet.of(),
+                ImmutableSet.of(REPLICATE_EVENTS, REMOTE_DATABASE)),
+        SHARD_REPORT_MERGE(
+                "the " + MERGE_SHARD_REPORTS + " option",
+                line -> line.hasOption(MERGE_SHARD_REPORTS),
+                ImmutableSet.of(HIVE, DATACATALOG),
+                Tables.ANY,
+                ImmutableSet.of(),
+                ImmutableSet.of(MERGE_SHARD_REPORTS)),
+        FOLLOWING(
+                "the " + FOLLOW + " option",
+                line -> line.hasOption(FOLLOW),
+                ImmutableSet.of(DATACATALOG),
+                Tables.LISTED,
+                ImmutableSet.of(),
+                ImmutableSet.of(FOLLOW, FOLLOW_KEY, REMOTE_DATABASE)),
+        CATALOG_REPLICATION(
+                "the " + DEST_GLUE_REGION + " option",
+                line -> line.hasOption(DEST_GLUE_REGION),
+                ImmutableSet.of(DATACATALOG),
+                Tables.ANY,
+                ImmutableSet.of(),
+                ImmutableSet.of(
+                        DEST_GLUE_REGION, DEST_CATALOG_ID, REMOTE_DATABASE, REMOTE_TABLE, PARTITION, ALL_PARTITIONS,
+                        REPLACE_DEST_TABLE, ALLOW_NONE_SOURCE_TABLE, DISCOVER_PARTITIONS, COALESCE_DIR)),
+        HIVE_FAN_OUT(
+                "the " + DEST_HIVE_URIS + " option",
+                line -> line.hasOption(DEST_HIVE_URIS),
+                ImmutableSet.of(DATACATALOG),
+                Tables.ANY,
+                ImmutableSet.of(),
+                ImmutableSet.of(
+                        DEST_HIVE_URIS, REMOTE_DATABASE, REMOTE_TABLE, PARTITION, ALL_PARTITIONS, REPLACE_DEST_TABLE,
+                        ALLOW_NONE_SOURCE_TABLE, VERIFY_LOCATIONS, DISCOVER_PARTITIONS, COALESCE_DIR)),
+        REGION_FAN_OUT(
+                "a " + GLUE_REGION + " list",
+                line -> line.getOptionValue(GLUE_REGION, "").contains(LIST_SEPARATOR),
+                ImmutableSet.of(HIVE),
+                Tables.ANY,
+                ImmutableSet.of(),
+                ImmutableSet.of(
+                        REMOTE_DATABASE, REMOTE_TABLE, PARTITION, ALL_PARTITIONS, REPLACE_DEST_TABLE,
+                        ALLOW_NONE_SOURCE_TABLE, VERIFY_LOCATIONS, DISCOVER_PARTITIONS, COALESCE_DIR));
+
+        /** The options valid in every mode. */
+        private static final Set<String> COMMON_OPTIONS = ImmutableSet.of(SOURCE, DATABASE, TABLE, GLUE_REGION, TRACE_FILE);
+
+        private final String label;
+        private final Predicate<CommandLine> selector;
+        private final Set<String> sources;
+        private final Tables tables;
+        /** The options of which one is required, none if empty. */
+        private final Set<String> requiredOptions;
+        /** The options valid in the mode besides {@link #COMMON_OPTIONS}. */
+        private final Set<String> options;
+
+        Mode(
+                final String label,
+                final Predicate<CommandLine> selector,
+                final Set<String> sources,
+                final Tables tables,
+                final Set<String> requiredOptions,
+                final Set<String> options) {
+            this.label = label;
+            this.selector = selector;
+            this.sources = sources;
+            this.tables = tables;
+            this.requiredOptions = requiredOptions;
+            this.options = options;
+        }
+
+        /** The modes selected by the command line, which should be one at most. */
+        private static List<Mode> selected(final CommandLine line) {
+            List<Mode> modes = Lists.newArrayList();
+            for (Mode mode : values()) {
+                if (mode.selector.test(line)) {
+                    modes.add(mode);
+                }
+            }
+            return modes;
+        }
+
+        /** The mode of a parsed command line. */
+        private static Mode of(final CommandLine line) {
+            List<Mode> modes = selected(line);
+            return modes.isEmpty() ? PLAIN_SYNC : modes.get(0);
+        }
+    }
 
     private static CommandLine parse(final String[] args) throws ParseException {
         Options options = new Options();
@@ -94,6 +370,7 @@ public class DataCatalogSyncTool {
                         .withDescription("all partitions of the table to sync")
                         .create(ALL_PARTITIONS);
         //replace-dest-table is optional parameter, it means to drop the existing local table, and then sync the remote table.
+        //A local hive table is replaced by syncing into a staging table and swapping them, so the readers always see a table.
         Option replaceDestTable =
                 OptionBuilder.withArgName("replace-dest-table") // Keep parameter key unchanged for backward compatible.
                         .hasArg(false)
@@ -121,8 +398,46 @@ public class DataCatalogSyncTool {
                 OptionBuilder.withArgName("glue_region")
                         .hasArg()
                         .isRequired(false)
-                        .withDescription("The glue data catalog region")
+                        .withDescription("The glue data catalog region, a comma separated list of regions to sync to when source is " + HIVE)
                         .create(GLUE_REGION);
+        //dest-glue-region is optional parameter, it means to replicate from data catalog to data catalog directly.
+        Option destGlueRegion =
+                OptionBuilder.withArgName("dest_glue_region")
+                        .hasArg()
+                        .isRequired(false)
+                        .withDescription("The dest glue data catalog region, only valid when source is " + DATACATALOG)
+                        .create(DEST_GLUE_REGION);
+        Option destCatalogId =
+                OptionBuilder.withArgName("dest_catalog_id")
+                        .hasArg()
+                        .isRequired(false)
+                        .withDescription("The dest glue data catalog id(account id), the caller's account will be used if not specified")
+                        .create(DEST_CATALOG_ID);
+        //dest-hive-uris is optional parameter, it means to sync from data catalog to several hive metastores.
+        Option destHiveUris =
+                OptionBuilder.withArgName("dest_hive_uris")
+                        .hasArg()
+                        .isRequired(false)
+                        .withDescription("A comma separated list of dest hive metastore uris, only valid when source is " + DATACATALOG + ", the local hive metastore will be used if not specified")
+                        .create(DEST_HIVE_URIS);
+        Option exportSnapshot =
+                OptionBuilder.withArgName("export_snapshot")
+                        .hasArg()
+                        .isRequired(false)
+                        .withDescription("export the tables and all their partitions from source to the snapshot file")
+                        .create(EXPORT_SNAPSHOT);
+        Option importSnapshot =
+                OptionBuilder.withArgName("import_snapshot")
+                        .hasArg()
+                        .isRequired(false)
+                        .withDescription("import the tables and all their partitions from the snapshot file into local hive metastore")
+                        .create(IMPORT_SNAPSHOT);
+        Option traceFile =
+                OptionBuilder.withArgName("trace_file")
+                        .hasArg()
+                        .isRequired(false)
+                        .withDescription("write the spans of the sync phases to the file in chrome trace format")
+                        .create(TRACE_FILE);
 
         options.addOption(localDatabase);
         options.addOption(destTable);
@@ -134,6 +449,74 @@ public class DataCatalogSyncTool {
         options.addOption(replaceDestTable);
         options.addOption(allowNoneSourceTable);
         options.addOption(glueRegion);
+        options.addOption(destGlueRegion);
+        options.addOption(destCatalogId);
+        options.addOption(destHiveUris);
+        options.addOption(exportSnapshot);
+        options.addOption(importSnapshot);
+        options.addOption(traceFile);
+        options.addOption(
+                OptionBuilder.withArgName("event_id_file")
+                        .hasArg()
+                        .isRequired(false)
+                        .withDescription("replicate the changes of local hive to data catalog continuously from the event id persisted in the file")
+                        .create(REPLICATE_EVENTS));
+        options.addOption(
+                OptionBuilder.withArgName("lock_dir")
+                        .hasArg()
+                        .isRequired(false)
+                        .withDescription("coalesce the concurrent syncs of the same table on this host by the lock files in the directory")
+                        .create(COALESCE_DIR));
+        options.addOption(
+                OptionBuilder.withArgName("i/N")
+                        .hasArg()
+                        .isRequired(false)
+                        .withDescription("sync only the i-th of N shards of all partitions, the index is zero based")
+                        .create(SHARD));
+        options.addOption(
+                OptionBuilder.withArgName("report_dir")
+                        .hasArg()
+                        .isRequired(false)
+                        .withDescription("write the report of the shard into the directory")
+                        .create(SHARD_REPORT_DIR));
+        options.addOption(
+                OptionBuilder.withArgName("report_dir")
+                        .hasArg()
+                        .isRequired(false)
+                        .withDescription("merge the shard reports in the directory, and fail unless every shard succeeded")
+                        .create(MERGE_SHARD_REPORTS));
+        options.addOption(
+                OptionBuilder.withArgName("partition_key|" + PartitionPriority.CREATE_TIME)
+                        .hasArg()
+                        .isRequired(false)
+                        .withDescription("sync the partitions newest first by the partition key or the create time")
+                        .create(PRIORITY_KEY));
+        options.addOption(
+                OptionBuilder.withArgName("minutes")
+                        .hasArg()
+                        .isRequired(false)
+                        .withDescription("stop the prioritized sync of the partitions at the deadline, leaving the rest")
+                        .create(DEADLINE_MINUTES));
+        options.addOption(
+                new Option(FOLLOW, "follow the new partitions of the data catalog tables into local hive continuously"));
+        options.addOption(
+                OptionBuilder.withArgName("partition_key")
+                        .hasArg()
+                        .isRequired(false)
+                        .withDescription("the time-like partition key to follow the tables by, picked by the key types and names if not specified")
+                        .create(FOLLOW_KEY));
+        options.addOption(
+                new Option(VERIFY_DIGEST, "verify all partitions by the partition digest stored in the dest table, and repair the different ones"));
+        options.addOption(
+                new Option(DISCOVER_PARTITIONS, "register the partition directories under the source table location into the source metastore before the sync"));
+        options.addOption(
+                new Option(BALANCE_METASTORE_URIS, "spread the calls to local hive over all the metastores in hive.metastore.uris"));
+        options.addOption(
+                new Option(VERIFY_LOCATIONS, "verify the partition locations exist by listing their parent directories"));
+        options.addOption(
+                new Option(SYNC_COLUMN_STATS, "sync the table and partition column statistics after the partitions"));
+        options.addOption(
+                new Option(BULK_LOAD, "load the partitions by writing the local hive metastore database directly"));
 
         CommandLineParser parser = new ExtendedGnuParser(true);
         CommandLine line = parser.parse(options, args);
@@ -146,6 +529,48 @@ public class DataCatalogSyncTool {
             throw new ParseException(
                     "The " + PARTITION + " and " + ALL_PARTITIONS + " options should not coexist");
         }
+        List<Mode> modes = Mode.selected(line);
+        if (modes.size() > 1) {
+            throw new ParseException("Only one of " + Joiner.on(", ").join(Lists.transform(modes, mode -> mode.label)) + " is allowed");
+        }
+        Mode mode = Mode.of(line);
+        if (!mode.sources.contains(line.getOptionValue(SOURCE))) {
+            throw new ParseException(
+                    "The " + SOURCE + " should be " + Joiner.on(" or ").join(mode.sources) + " for " + mode.label);
+        }
+        if ((mode.tables != Tables.ANY && ALL_TABLES.equals(line.getOptionValue(TABLE)))
+                || (mode.tables == Tables.SINGLE && line.getOptionValue(TABLE).contains(LIST_SEPARATOR))) {
+            throw new ParseException(
+                    (mode.tables == Tables.SINGLE ? "A single table is" : "Listed tables are") + " required for " + mode.label);
+        }
+        if (!mode.requiredOptions.isEmpty() && mode.requiredOptions.stream().noneMatch(line::hasOption)) {
+            throw new ParseException(
+                    "The " + Joiner.on(" or ").join(mode.requiredOptions) + " option is required for " + mode.label);
+        }
+        for (Option option : line.getOptions()) {
+            if (!Mode.COMMON_OPTIONS.contains(option.getOpt()) && !mode.options.contains(option.getOpt())) {
+                throw new ParseException("The " + option.getOpt() + " option is not valid for " + mode.label);
+            }
+        }
+        if (line.hasOption(DISCOVER_PARTITIONS) && ALL_TABLES.equals(line.getOptionValue(TABLE))) {
+            throw new ParseException("The " + DISCOVER_PARTITIONS + " option requires listed tables");
+        }
+        if (line.hasOption(SHARD)) {
+            try {
+                Shard.parse(line.getOptionValue(SHARD));
+            } catch (IllegalArgumentException e) {
+                throw new ParseException(e.getMessage());
+            }
+        }
+        if (line.hasOption(DEADLINE_MINUTES)) {
+            try {
+                if (Long.parseLong(line.getOptionValue(DEADLINE_MINUTES)) <= 0) {
+                    throw new ParseException("The " + DEADLINE_MINUTES + " should be positive");
+                }
+            } catch (NumberFormatException e) {
+                throw new ParseException("The " + DEADLINE_MINUTES + " should be a number of minutes");
+            }
+        }
         return line;
     }
 
@@ -153,8 +578,76 @@ public class DataCatalogSyncTool {
         long startTime = System.nanoTime();
         CommandLine line = parse(args);
 
-        boolean includePartition = line.hasOption(PARTITION);
-        boolean includeAllPartition = line.hasOption(ALL_PARTITIONS);
+        if (line.hasOption(TRACE_FILE)) {
+            Tracer.start(new File(line.getOptionValue(TRACE_FILE)));
+        }
+        try (Tracer.Span span = Tracer.span("sync").arg("source", line.getOptionValue(SOURCE))) {
+            if (line.hasOption(COALESCE_DIR)) {
+                coalesce(args, line, startTime);
+            } else {
+                sync(line, startTime);
+            }
+        } finally {
+            Tracer.stop();
+        }
+    }
+
+    /**
+     * Run the sync through a {@link SyncCoalescer}, the syncs with the same command line except the
+     * partition spec are coalesced. The coalesced sync parses the command line again with the
+     * merged spec.
+     */
+    private static void coalesce(final String[] args, final CommandLine line, final long startTime)
+            throws Exception {
+        String spec =
+                line.hasOption(ALL_PARTITIONS)
+                        ? SyncCoalescer.ALL_PARTITIONS
+                        : line.getOptionValue(PARTITION, SyncCoalescer.NO_PARTITION);
+        List<String> baseArgs = removeOptions(args, Sets.newHashSet(PARTITION, TRACE_FILE), Sets.newHashSet(ALL_PARTITIONS));
+        SyncCoalescer coalescer =
+                new SyncCoalescer(Paths.get(line.getOptionValue(COALESCE_DIR)), String.join(" ", baseArgs));
+        boolean ran =
+                coalescer.run(
+                        spec,
+                        mergedSpec -> {
+                            List<String> syncArgs = Lists.newArrayList(baseArgs);
+                            if (SyncCoalescer.ALL_PARTITIONS.equals(mergedSpec)) {
+                                syncArgs.add("--" + ALL_PARTITIONS);
+                            } else if (!SyncCoalescer.NO_PARTITION.equals(mergedSpec)) {
+                                syncArgs.add("--" + PARTITION);
+                                syncArgs.add(mergedSpec);
+                            }
+                            sync(parse(syncArgs.toArray(new String[0])), startTime);
+                        });
+        if (!ran) {
+            log.info("Sync successfully by a concurrent sync");
+            logDuration(startTime);
+        }
+    }
+
+    /** Remove the options and their values from the command line arguments. */
+    private static List<String> removeOptions(
+            final String[] args, final Set<String> optionsWithValue, final Set<String> flags) {
+        List<String> result = Lists.newArrayList();
+        for (int i = 0; i < args.length; i++) {
+            String name = args[i].replaceFirst("^--?", "");
+            if (args[i].startsWith("-") && flags.contains(name)) {
+                continue;
+            }
+            if (args[i].startsWith("-") && optionsWithValue.contains(name)) {
+                i++;
+                continue;
+            }
+            if (args[i].startsWith("-") && name.contains("=")
+                    && optionsWithValue.contains(name.substring(0, name.indexOf('=')))) {
+                continue;
+            }
+            result.add(args[i]);
+        }
+        return result;
+    }
+
+    private static void sync(final CommandLine line, final long startTime) throws Exception {
         boolean isReplaceDestTable = line.hasOption(REPLACE_DEST_TABLE);
         boolean isAllowNoneSourceTable = line.hasOption(ALLOW_NONE_SOURCE_TABLE);
         String localDatabaseName = line.getOptionValue(DATABASE);
@@ -172,10 +665,48 @@ public class DataCatalogSyncTool {
                 line.getOptionValue(PARTITION)));
 
         IMetaStoreClient source, dest;
-        MetastoreClientFactory factory = new MetastoreClientFactory();
+        // The sync calls both of its clients, so they are built in background while it starts.
+        MetastoreClientFactory factory = new MetastoreClientFactory(true);
+        if (line.hasOption(VERIFY_LOCATIONS)) {
+            MetastoreSyncUtils.setLocationVerifier(new LocationVerifier(factory.getConf(MetastoreClientFactory.EMR_HIVE_SITE_XML_PATH)));
+        }
 
         String region = line.getOptionValue(GLUE_REGION) == null ? DEFAULT_GLUE_REGION : line.getOptionValue(GLUE_REGION);;
 
+        if (line.hasOption(DISCOVER_PARTITIONS)) {
+            discoverPartitions(line, factory, region, localDatabaseName, localTableName, remoteDatabaseName, remoteTableName);
+        }
+        switch (Mode.of(line)) {
+            case SNAPSHOT_EXPORT:
+            case SNAPSHOT_IMPORT:
+                transferSnapshot(line, factory, region, localDatabaseName, localTableName, remoteDatabaseName, remoteTableName);
+                logDuration(startTime);
+                return;
+            case EVENT_REPLICATION:
+                replicateEvents(line, factory, region, localDatabaseName, localTableName, remoteDatabaseName);
+                logDuration(startTime);
+                return;
+            case SHARD_REPORT_MERGE:
+                ShardReport.merge(new Path(line.getOptionValue(MERGE_SHARD_REPORTS)), factory.getConf(null));
+                logDuration(startTime);
+                return;
+            case FOLLOWING:
+                follow(line, factory, region, localDatabaseName, localTableName, remoteDatabaseName);
+                logDuration(startTime);
+                return;
+            case CATALOG_REPLICATION:
+                replicateDataCatalog(line, factory, region, remoteDatabaseName, remoteTableName, localDatabaseName, localTableName);
+                logDuration(startTime);
+                return;
+            case HIVE_FAN_OUT:
+            case REGION_FAN_OUT:
+                fanOut(line, factory, region, localDatabaseName, localTableName, remoteDatabaseName, remoteTableName);
+                logDuration(startTime);
+                return;
+            default:
+                break;
+        }
+
         String srcDatabaseName;
         String srcTableName;
         String destDatabaseName;
@@ -186,44 +717,557 @@ public class DataCatalogSyncTool {
             srcTableName = remoteTableName;
             destDatabaseName = localDatabaseName;
             destTableName = localTableName;
-            source = factory.getDataCatalogClient(region);
-            dest = factory.getHiveMetastoreClient(MetastoreClientFactory.EMR_HIVE_SITE_XML_PATH);
+            source = factory.getLazyDataCatalogClient(region);
+            dest = getLocalHiveClient(line, factory);
         } else {
             srcDatabaseName = localDatabaseName;
             srcTableName = localTableName;
             destDatabaseName = remoteDatabaseName;
             destTableName = remoteTableName;
-            dest = factory.getDataCatalogClient(region);
-            source = factory.getHiveMetastoreClient(MetastoreClientFactory.EMR_HIVE_SITE_XML_PATH);
+            dest = factory.getLazyDataCatalogClient(region);
+            source = getLocalHiveClient(line, factory);
         }
 
+        CompletableFuture<Void> retiredTableDrop = null;
         if(isReplaceDestTable && dest.tableExists(destDatabaseName, destTableName)){
-            log.info("Replace mode, drop the dest table and then sync source table.");
-            dest.dropTable(destDatabaseName, destTableName);
+            if (MetastoreClientFactory.isHiveMetastoreClient(dest) && source.tableExists(srcDatabaseName, srcTableName)) {
+                log.info("Replace mode, sync source table into a staging table and then swap it with the dest table.");
+                retiredTableDrop = replaceByStaging(line, factory, source, dest, srcDatabaseName, srcTableName, destDatabaseName, destTableName);
+            } else {
+                log.info("Replace mode, drop the dest table and then sync source table.");
+                dest.dropTable(destDatabaseName, destTableName);
+            }
         }
-        if(!source.tableExists(srcDatabaseName, srcTableName)){
+        if (retiredTableDrop != null) {
+            log.info("The dest table is replaced.");
+        } else if(!source.tableExists(srcDatabaseName, srcTableName)){
             if (!isAllowNoneSourceTable) {
                 throw new MetastoreException("The " + srcDatabaseName + "." + srcTableName + " not exists.");
             }else{
                 //do nothing since the source table do not exist, since isAllowNoneSourceTable is set, this case is valid.
                 log.info("The source table does not exist, since isAllowNoneSourceTable is set, this case is valid.");
             }
+        } else if (line.hasOption(SHARD)) {
+            syncShard(line, factory, source, dest, srcDatabaseName, srcTableName, destDatabaseName, destTableName);
         } else {
-            log.trace("Begin to sync table.");
-            MetastoreSyncUtils.syncTable(source, dest, srcDatabaseName, srcTableName, destDatabaseName, destTableName);
-            if (includePartition) {
-                log.trace(String.format("Begin to sync partitionsi %s.", line.getOptionValue(PARTITION)));
-                MetastoreSyncUtils.syncPartitions(source, dest, srcDatabaseName, srcTableName, destDatabaseName, destTableName, CLIArgsTokenizer.parsePartition(line.getOptionValue(PARTITION)));
-            }
-            if (includeAllPartition) {
-                log.trace("Begin to sync all partitions.");
-                MetastoreSyncUtils.syncAllPartitions(source, dest, srcDatabaseName, srcTableName, destDatabaseName, destTableName);
-            }
+            syncExistingTable(line, factory, source, dest, srcDatabaseName, srcTableName, destDatabaseName, destTableName);
         }
         log.info("Sync successfully");
         source.close();
         dest.close();
+        if (retiredTableDrop != null) {
+            log.info("Wait for the replaced table to be dropped in background.");
+            retiredTableDrop.join();
+        }
+
+        logDuration(startTime);
+    }
+
+    /**
+     * Sync the table, its partitions and column statistics, the source table should exist.
+     *
+     * @return the number of source partitions synced.
+     */
+    private static int syncExistingTable(
+            final CommandLine line,
+            final MetastoreClientFactory factory,
+            final IMetaStoreClient source,
+            final IMetaStoreClient dest,
+            final String srcDatabaseName,
+            final String srcTableName,
+            final String destDatabaseName,
+            final String destTableName)
+            throws Exception {
+        boolean includePartition = line.hasOption(PARTITION);
+        boolean includeAllPartition = line.hasOption(ALL_PARTITIONS);
+        int partitionCount = 0;
+        log.trace("Begin to sync table.");
+        MetastoreSyncUtils.syncTable(source, dest, srcDatabaseName, srcTableName, destDatabaseName, destTableName);
+        if (line.hasOption(PRIORITY_KEY)) {
+            partitionCount = syncByPriority(line, source, dest, srcDatabaseName, srcTableName, destDatabaseName, destTableName);
+        } else if (line.hasOption(BULK_LOAD)) {
+            partitionCount = bulkLoad(line, factory, source, dest, srcDatabaseName, srcTableName, destDatabaseName, destTableName);
+        } else if (includePartition) {
+            log.trace(String.format("Begin to sync partitionsi %s.", line.getOptionValue(PARTITION)));
+            partitionCount = MetastoreSyncUtils.syncPartitions(source, dest, srcDatabaseName, srcTableName, destDatabaseName, destTableName, CLIArgsTokenizer.parsePartition(line.getOptionValue(PARTITION)));
+        }
+        if (includeAllPartition && line.hasOption(VERIFY_DIGEST)) {
+            log.trace("Begin to verify all partitions by digest.");
+            int repairedCount = DigestSyncUtils.verifyPartitions(source, dest, srcDatabaseName, srcTableName, destDatabaseName, destTableName);
+            log.info("There are " + repairedCount + " partitions repaired.");
+        } else if (includeAllPartition && !line.hasOption(BULK_LOAD) && !line.hasOption(PRIORITY_KEY)) {
+            log.trace("Begin to sync all partitions.");
+            partitionCount = MetastoreSyncUtils.syncAllPartitions(source, dest, srcDatabaseName, srcTableName, destDatabaseName, destTableName);
+        }
+        if (line.hasOption(SYNC_COLUMN_STATS)) {
+            log.trace("Begin to sync column statistics.");
+            MetastoreSyncUtils.syncTableColumnStatistics(source, dest, srcDatabaseName, srcTableName, destDatabaseName, destTableName);
+            if (includePartition || includeAllPartition) {
+                MetastoreSyncUtils.syncPartitionColumnStatistics(
+                        source,
+                        dest,
+                        srcDatabaseName,
+                        srcTableName,
+                        destDatabaseName,
+                        destTableName,
+                        includePartition ? CLIArgsTokenizer.parsePartition(line.getOptionValue(PARTITION)) : null);
+            }
+        }
+        return partitionCount;
+    }
+
+    /**
+     * Sync the partitions newest first, and stop at the deadline if given. The next run syncs the
+     * partitions left along with the ones added since, all of them newest first, since the
+     * partitions already in dest are skipped.
+     *
+     * @return the number of source partitions synced or in dest already.
+     */
+    private static int syncByPriority(
+            final CommandLine line,
+            final IMetaStoreClient source,
+            final IMetaStoreClient dest,
+            final String srcDatabaseName,
+            final String srcTableName,
+            final String destDatabaseName,
+            final String destTableName)
+            throws Exception {
+        long deadlineNanos =
+                line.hasOption(DEADLINE_MINUTES)
+                        ? System.nanoTime() + TimeUnit.MINUTES.toNanos(Long.parseLong(line.getOptionValue(DEADLINE_MINUTES)))
+                        : Long.MAX_VALUE;
+        List<FieldSchema> partitionKeys = source.getTable(srcDatabaseName, srcTableName).getPartitionKeys();
+        Comparator<Partition> priority = PartitionPriority.newestFirst(partitionKeys, line.getOptionValue(PRIORITY_KEY));
+
+        CatalogClient client = new CatalogClient(source);
+        List<Partition> partitions;
+        if (line.hasOption(PARTITION)) {
+            partitions = client.getPartitions(srcDatabaseName, srcTableName, CLIArgsTokenizer.parsePartition(line.getOptionValue(PARTITION)));
+        } else {
+            partitions = client.getAllPartitions(srcDatabaseName, srcTableName);
+        }
+        List<Partition> remainder = MetastoreSyncUtils.syncPartitions(dest, destDatabaseName, destTableName, partitions, priority, deadlineNanos);
+        if (!remainder.isEmpty()) {
+            log.warn("There are " + remainder.size() + " partitions left at the deadline for the next run.");
+        }
+        return partitions.size() - remainder.size();
+    }
+
+    /**
+     * Sync the table and the partitions of a shard, and write the report of the shard if asked.
+     * The workers of the shards may create the dest table concurrently, and the losers sync the
+     * table again.
+     */
+    private static void syncShard(
+            final CommandLine line,
+            final MetastoreClientFactory factory,
+            final IMetaStoreClient source,
+            final IMetaStoreClient dest,
+            final String srcDatabaseName,
+            final String srcTableName,
+            final String destDatabaseName,
+            final String destTableName)
+            throws Exception {
+        Shard shard = Shard.parse(line.getOptionValue(SHARD));
+        long shardStartTime = System.nanoTime();
+        int partitionCount = 0;
+        Exception error = null;
+        try {
+            try {
+                MetastoreSyncUtils.syncTable(source, dest, srcDatabaseName, srcTableName, destDatabaseName, destTableName);
+            } catch (MetastoreException e) {
+                if (!(e.getCause() instanceof AlreadyExistsException)) {
+                    throw e;
+                }
+                log.info("The dest table was created by another shard, sync it again.");
+                MetastoreSyncUtils.syncTable(source, dest, srcDatabaseName, srcTableName, destDatabaseName, destTableName);
+            }
+            log.info("Begin to sync the partitions of shard " + shard + ".");
+            partitionCount = MetastoreSyncUtils.syncAllPartitions(source, dest, srcDatabaseName, srcTableName, destDatabaseName, destTableName, shard);
+        } catch (Exception e) {
+            error = e;
+            throw e;
+        } finally {
+            if (line.hasOption(SHARD_REPORT_DIR)) {
+                ShardReport.write(
+                        new Path(line.getOptionValue(SHARD_REPORT_DIR)),
+                        factory.getConf(null),
+                        destDatabaseName + "." + destTableName,
+                        shard,
+                        partitionCount,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - shardStartTime),
+                        error);
+            }
+        }
+    }
+
+    /**
+     * Sync the source table into a staging table of local hive, and swap it with the dest table
+     * once its partition count is verified. The dest table is untouched if anything fails.
+     *
+     * @return the background drop of the replaced table.
+     */
+    private static CompletableFuture<Void> replaceByStaging(
+            final CommandLine line,
+            final MetastoreClientFactory factory,
+            final IMetaStoreClient source,
+            final IMetaStoreClient dest,
+            final String srcDatabaseName,
+            final String srcTableName,
+            final String destDatabaseName,
+            final String destTableName)
+            throws Exception {
+        StagedReplaceUtils.dropStagingTable(dest, destDatabaseName, destTableName);
+        String retiredTableName;
+        try {
+            int partitionCount =
+                    syncExistingTable(
+                            line,
+                            factory,
+                            source,
+                            dest,
+                            srcDatabaseName,
+                            srcTableName,
+                            destDatabaseName,
+                            StagedReplaceUtils.getStagingTableName(destTableName));
+            retiredTableName = StagedReplaceUtils.swap(dest, destDatabaseName, destTableName, partitionCount);
+        } catch (Exception e) {
+            log.error("Failed to replace the dest table, it's unchanged.");
+            try {
+                StagedReplaceUtils.dropStagingTable(dest, destDatabaseName, destTableName);
+            } catch (MetastoreException dropException) {
+                log.warn("Failed to clean up the staging table.", dropException);
+            }
+            throw e;
+        }
+        return StagedReplaceUtils.dropRetiredTable(
+                factory.getLazyHiveMetastoreClient(MetastoreClientFactory.EMR_HIVE_SITE_XML_PATH),
+                destDatabaseName,
+                retiredTableName);
+    }
+
+    /**
+     * Load the source partitions into local hive metastore by JDBC, the partitions which can't be
+     * bulk loaded are added via thrift.
+     *
+     * @return the number of source partitions loaded.
+     */
+    private static int bulkLoad(
+            final CommandLine line,
+            final MetastoreClientFactory factory,
+            final IMetaStoreClient source,
+            final IMetaStoreClient dest,
+            final String srcDatabaseName,
+            final String srcTableName,
+            final String destDatabaseName,
+            final String destTableName)
+            throws Exception {
+        CatalogClient client = new CatalogClient(source);
+        List<Partition> partitions = Lists.newArrayList();
+        if (line.hasOption(ALL_PARTITIONS)) {
+            partitions = client.getAllPartitions(srcDatabaseName, srcTableName);
+        } else if (line.hasOption(PARTITION)) {
+            partitions = client.getPartitions(srcDatabaseName, srcTableName, CLIArgsTokenizer.parsePartition(line.getOptionValue(PARTITION)));
+        }
+        if (partitions.isEmpty()) {
+            log.info("No partition found, skip bulk load.");
+            return 0;
+        }
+        HiveConf conf = factory.getConf(MetastoreClientFactory.EMR_HIVE_SITE_XML_PATH);
+        try (JdbcPartitionBulkLoader loader = new JdbcPartitionBulkLoader(conf)) {
+            List<Partition> unsupportedPartitions =
+                    loader.loadPartitions(
+                            dest.getTable(destDatabaseName, destTableName),
+                            MetastoreSyncUtils.preparePartitions(partitions, destDatabaseName, destTableName));
+            MetastoreSyncUtils.addPartitions(dest, unsupportedPartitions);
+        }
+        return partitions.size();
+    }
+
+    /**
+     * Register the partition directories under the source table location into the source
+     * metastore, so the following sync propagates them to the dest without MSCK REPAIR or a
+     * crawler. The partition patterns, if any, prune the walk.
+     */
+    private static void discoverPartitions(
+            final CommandLine line,
+            final MetastoreClientFactory factory,
+            final String region,
+            final String localDatabaseName,
+            final String localTableName,
+            final String remoteDatabaseName,
+            final String remoteTableName)
+            throws Exception {
+        boolean fromHive = HIVE.equals(line.getOptionValue(SOURCE));
+        // The first region is the source of a fan out to several regions.
+        IMetaStoreClient source =
+                fromHive
+                        ? factory.getLazyHiveMetastoreClient(MetastoreClientFactory.EMR_HIVE_SITE_XML_PATH)
+                        : factory.getLazyDataCatalogClient(region.split(LIST_SEPARATOR)[0].trim());
+        PartitionDiscovery discovery =
+                new PartitionDiscovery(factory.getConf(MetastoreClientFactory.EMR_HIVE_SITE_XML_PATH));
+        try {
+            String databaseName = fromHive ? localDatabaseName : remoteDatabaseName;
+            for (String tableName : parseTableNames(fromHive ? localTableName : remoteTableName)) {
+                int count =
+                        MetastoreSyncUtils.discoverPartitions(
+                                source,
+                                discovery,
+                                databaseName,
+                                tableName,
+                                line.hasOption(PARTITION) ? CLIArgsTokenizer.parsePartition(line.getOptionValue(PARTITION)) : null);
+                log.info("There are " + count + " new partitions registered into " + databaseName + "." + tableName + ".");
+            }
+        } finally {
+            source.close();
+        }
+    }
+
+    /**
+     * Replicate the changes of the local hive tables to data catalog continuously, until the
+     * process is killed.
+     */
+    private static void replicateEvents(
+            final CommandLine line,
+            final MetastoreClientFactory factory,
+            final String region,
+            final String localDatabaseName,
+            final String localTableName,
+            final String remoteDatabaseName)
+            throws Exception {
+        IMetaStoreClient source = factory.getLazyHiveMetastoreClient(MetastoreClientFactory.EMR_HIVE_SITE_XML_PATH);
+        IMetaStoreClient dest = factory.getLazyDataCatalogClient(region);
+        try {
+            new NotificationLogReplicator(
+                            source,
+                            dest,
+                            localDatabaseName,
+                            remoteDatabaseName,
+                            parseTableNames(localTableName),
+                            Paths.get(line.getOptionValue(REPLICATE_EVENTS)))
+                    .run();
+        } finally {
+            source.close();
+            dest.close();
+        }
+    }
+
+    /**
+     * Follow the new partitions of the data catalog tables into local hive continuously, until the
+     * process is killed.
+     */
+    private static void follow(
+            final CommandLine line,
+            final MetastoreClientFactory factory,
+            final String region,
+            final String localDatabaseName,
+            final String localTableName,
+            final String remoteDatabaseName)
+            throws Exception {
+        IMetaStoreClient source = factory.getLazyDataCatalogClient(region);
+        IMetaStoreClient dest = factory.getLazyHiveMetastoreClient(MetastoreClientFactory.EMR_HIVE_SITE_XML_PATH);
+        try {
+            new PartitionFollower(
+                            source,
+                            dest,
+                            remoteDatabaseName,
+                            localDatabaseName,
+                            parseTableNames(localTableName),
+                            line.getOptionValue(FOLLOW_KEY))
+                    .run();
+        } finally {
+            source.close();
+            dest.close();
+        }
+    }
+
+    /**
+     * Replicate the table from one data catalog to another directly. The remote names are the
+     * source, and the local names are the dest.
+     */
+    private static void replicateDataCatalog(
+            final CommandLine line,
+            final MetastoreClientFactory factory,
+            final String region,
+            final String srcDatabaseName,
+            final String srcTableName,
+            final String destDatabaseName,
+            final String destTableName)
+            throws Exception {
+        AsyncCatalogClient source = new AsyncCatalogClient(factory.getDataCatalogAsyncClient(region));
+        AsyncCatalogClient dest =
+                new AsyncCatalogClient(
+                        factory.getDataCatalogAsyncClient(line.getOptionValue(DEST_GLUE_REGION)),
+                        line.getOptionValue(DEST_CATALOG_ID));
+        try {
+            if (line.hasOption(REPLACE_DEST_TABLE)
+                    && dest.getTableIfExists(destDatabaseName, destTableName).join() != null) {
+                log.info("Replace mode, drop the dest table and then sync source table.");
+                dest.deleteTable(destDatabaseName, destTableName).join();
+            }
+            if (source.getTableIfExists(srcDatabaseName, srcTableName).join() == null) {
+                if (!line.hasOption(ALLOW_NONE_SOURCE_TABLE)) {
+                    throw new MetastoreException("The " + srcDatabaseName + "." + srcTableName + " not exists.");
+                }
+                log.info("The source table does not exist, since isAllowNoneSourceTable is set, this case is valid.");
+            } else {
+                GlueMetastoreSyncUtils.syncTable(source, dest, srcDatabaseName, srcTableName, destDatabaseName, destTableName);
+                if (line.hasOption(PARTITION)) {
+                    GlueMetastoreSyncUtils.syncPartitions(source, dest, srcDatabaseName, srcTableName, destDatabaseName, destTableName, CLIArgsTokenizer.parsePartition(line.getOptionValue(PARTITION)));
+                }
+                if (line.hasOption(ALL_PARTITIONS)) {
+                    GlueMetastoreSyncUtils.syncPartitions(source, dest, srcDatabaseName, srcTableName, destDatabaseName, destTableName, null);
+                }
+            }
+            log.info("Sync successfully");
+        } finally {
+            source.getGlue().shutdown();
+            dest.getGlue().shutdown();
+        }
+    }
+
+    /**
+     * Sync the table to several dests with one source read. For source hive, the dests are the
+     * data catalogs in the listed regions; for source data catalog, the dests are the listed hive
+     * metastores.
+     */
+    private static void fanOut(
+            final CommandLine line,
+            final MetastoreClientFactory factory,
+            final String region,
+            final String localDatabaseName,
+            final String localTableName,
+            final String remoteDatabaseName,
+            final String remoteTableName)
+            throws Exception {
+        boolean fromHive = HIVE.equals(line.getOptionValue(SOURCE));
+        String srcDatabaseName = fromHive ? localDatabaseName : remoteDatabaseName;
+        String srcTableName = fromHive ? localTableName : remoteTableName;
+        String destDatabaseName = fromHive ? remoteDatabaseName : localDatabaseName;
+        String destTableName = fromHive ? remoteTableName : localTableName;
+
+        IMetaStoreClient source =
+                fromHive
+                        ? factory.getLazyHiveMetastoreClient(MetastoreClientFactory.EMR_HIVE_SITE_XML_PATH)
+                        : factory.getLazyDataCatalogClient(region);
+        Map<String, IMetaStoreClient> dests = Maps.newLinkedHashMap();
+        try {
+            if (fromHive) {
+                for (String destRegion : region.split(LIST_SEPARATOR)) {
+                    dests.put("datacatalog:" + destRegion.trim(), factory.getLazyDataCatalogClient(destRegion.trim()));
+                }
+            } else {
+                for (String uri : line.getOptionValue(DEST_HIVE_URIS).split(LIST_SEPARATOR)) {
+                    dests.put(uri.trim(), factory.getLazyThriftMetastoreClient(uri.trim()));
+                }
+            }
+
+            if (line.hasOption(REPLACE_DEST_TABLE)) {
+                for (IMetaStoreClient dest : dests.values()) {
+                    if (dest.tableExists(destDatabaseName, destTableName)) {
+                        log.info("Replace mode, drop the dest table and then sync source table.");
+                        dest.dropTable(destDatabaseName, destTableName);
+                    }
+                }
+            }
+            if (!source.tableExists(srcDatabaseName, srcTableName)) {
+                if (!line.hasOption(ALLOW_NONE_SOURCE_TABLE)) {
+                    throw new MetastoreException("The " + srcDatabaseName + "." + srcTableName + " not exists.");
+                }
+                log.info("The source table does not exist, since isAllowNoneSourceTable is set, this case is valid.");
+            } else {
+                FanOutSyncUtils.sync(
+                        source,
+                        dests,
+                        srcDatabaseName,
+                        srcTableName,
+                        destDatabaseName,
+                        destTableName,
+                        line.hasOption(PARTITION) ? CLIArgsTokenizer.parsePartition(line.getOptionValue(PARTITION)) : null,
+                        line.hasOption(ALL_PARTITIONS));
+            }
+            log.info("Sync successfully");
+        } finally {
+            source.close();
+            for (IMetaStoreClient dest : dests.values()) {
+                dest.close();
+            }
+        }
+    }
+
+    /**
+     * Export the source tables to a snapshot file, or import the tables in a snapshot file into
+     * local hive metastore with {@link #IMPORT_SNAPSHOT_THREADS} parallel writers.
+     */
+    private static void transferSnapshot(
+            final CommandLine line,
+            final MetastoreClientFactory factory,
+            final String region,
+            final String localDatabaseName,
+            final String localTableName,
+            final String remoteDatabaseName,
+            final String remoteTableName)
+            throws Exception {
+        HiveConf conf = factory.getConf(null);
+        if (line.hasOption(EXPORT_SNAPSHOT)) {
+            boolean fromHive = HIVE.equals(line.getOptionValue(SOURCE));
+            IMetaStoreClient source =
+                    fromHive
+                            ? factory.getLazyHiveMetastoreClient(MetastoreClientFactory.EMR_HIVE_SITE_XML_PATH)
+                            : factory.getLazyDataCatalogClient(region);
+            try {
+                SnapshotSyncUtils.exportSnapshot(
+                        source,
+                        fromHive ? localDatabaseName : remoteDatabaseName,
+                        parseTableNames(fromHive ? localTableName : remoteTableName),
+                        new Path(line.getOptionValue(EXPORT_SNAPSHOT)),
+                        conf);
+            } finally {
+                source.close();
+            }
+            log.info("Export snapshot successfully");
+        } else {
+            List<IMetaStoreClient> dests = Lists.newArrayList();
+            try {
+                for (int i = 0; i < IMPORT_SNAPSHOT_THREADS; i++) {
+                    dests.add(factory.getLazyHiveMetastoreClient(MetastoreClientFactory.EMR_HIVE_SITE_XML_PATH));
+                }
+                SnapshotSyncUtils.importSnapshot(
+                        new Path(line.getOptionValue(IMPORT_SNAPSHOT)),
+                        conf,
+                        localDatabaseName,
+                        parseTableNames(localTableName),
+                        dests);
+            } finally {
+                for (IMetaStoreClient dest : dests) {
+                    dest.close();
+                }
+            }
+            log.info("Import snapshot successfully");
+        }
+    }
+
+    /** Parse a comma separated table list, {@link #ALL_TABLES} means all tables and returns null. */
+    private static Set<String> parseTableNames(final String tableNames) {
+        if (ALL_TABLES.equals(tableNames)) {
+            return null;
+        }
+        Set<String> result = Sets.newHashSet();
+        for (String tableName : tableNames.split(LIST_SEPARATOR)) {
+            result.add(tableName.trim());
+        }
+        return result;
+    }
+
+    /** The client of local hive, balanced over all its metastores if asked. */
+    private static IMetaStoreClient getLocalHiveClient(final CommandLine line, final MetastoreClientFactory factory)
+            throws MetastoreException {
+        return line.hasOption(BALANCE_METASTORE_URIS)
+                ? factory.getBalancedHiveMetastoreClient(MetastoreClientFactory.EMR_HIVE_SITE_XML_PATH)
+                : factory.getLazyHiveMetastoreClient(MetastoreClientFactory.EMR_HIVE_SITE_XML_PATH);
+    }
 
+    private static void logDuration(final long startTime) {
         long endTime = System.nanoTime();
         long duration = (endTime - startTime);
 
@@ -0,0 +1,79 @@
+package moonset.metastore.sync.tools;
+
+import moonset.metastore.sync.MetastoreClientFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.metastore.IMetaStoreClient;
+
+/*
+ * Measure the time to the first rpc of both clients of a sync, which dominates the runtime of the
+ * small syncs. Run it in a fresh jvm for each mode, since the class loading is most of the cost.
+ *
+ * commandline --database foo --table foo [--glue_region us-east-1] [--eager]
+ *
+ * The eager mode builds the clients one by one like the sync tool used to, and the default mode
+ * uses the lazy clients of a prefetching factory, which are built in parallel in background.
+ */
+public class StartupBenchmark {
+    private static final Log log = LogFactory.getLog(StartupBenchmark.class);
+
+    private static final String DATABASE = "database";
+    private static final String TABLE = "table";
+    private static final String GLUE_REGION = "glue_region";
+    private static final String DEFAULT_GLUE_REGION = "us-east-1";
+    private static final String EAGER = "eager";
+
+    public static void main(final String[] args) throws Exception {
+        long startTime = System.nanoTime();
+        long jvmStartupMillis = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+        Options options = new Options();
+        Option database = new Option(DATABASE, true, "the database name");
+        database.setRequired(true);
+        Option table = new Option(TABLE, true, "the table name");
+        table.setRequired(true);
+        options.addOption(database);
+        options.addOption(table);
+        options.addOption(new Option(GLUE_REGION, true, "the glue data catalog region"));
+        options.addOption(new Option(EAGER, false, "build the clients one by one on the calling thread"));
+        CommandLine line = new GnuParser().parse(options, args);
+        String region = line.getOptionValue(GLUE_REGION, DEFAULT_GLUE_REGION);
+
+        MetastoreClientFactory factory = new MetastoreClientFactory(!line.hasOption(EAGER));
+        IMetaStoreClient dataCatalog;
+        IMetaStoreClient hive;
+        if (line.hasOption(EAGER)) {
+            dataCatalog = factory.getDataCatalogClient(region);
+            hive = factory.getHiveMetastoreClient(MetastoreClientFactory.EMR_HIVE_SITE_XML_PATH);
+        } else {
+            dataCatalog = factory.getLazyDataCatalogClient(region);
+            hive = factory.getLazyHiveMetastoreClient(MetastoreClientFactory.EMR_HIVE_SITE_XML_PATH);
+        }
+        long clientsTime = System.nanoTime();
+        try {
+            dataCatalog.tableExists(line.getOptionValue(DATABASE), line.getOptionValue(TABLE));
+            long dataCatalogTime = System.nanoTime();
+            hive.tableExists(line.getOptionValue(DATABASE), line.getOptionValue(TABLE));
+            long hiveTime = System.nanoTime();
+
+            log.info(
+                    String.format(
+                            "Mode %s: jvm startup %d ms, clients returned %d ms, first data catalog rpc %d ms, first hive rpc %d ms after main.",
+                            line.hasOption(EAGER) ? "eager" : "lazy",
+                            jvmStartupMillis,
+                            TimeUnit.NANOSECONDS.toMillis(clientsTime - startTime),
+                            TimeUnit.NANOSECONDS.toMillis(dataCatalogTime - startTime),
+                            TimeUnit.NANOSECONDS.toMillis(hiveTime - startTime)));
+        } finally {
+            dataCatalog.close();
+            hive.close();
+        }
+    }
+}
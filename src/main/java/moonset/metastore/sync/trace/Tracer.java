@@ -0,0 +1,241 @@
+package moonset.metastore.sync.trace;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.transport.TTransport;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.common.collect.Maps;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Opt-in span tracing of a sync run. The spans are written in the chrome trace event format, so
+ * the file can be opened by chrome://tracing or https://ui.perfetto.dev to see where the time goes
+ * on each thread. Tracing is off unless {@link #start} is called, and a span is a shared no-op
+ * object then. At most {@link #MAX_EVENTS} spans are kept, the oldest ones are dropped beyond it,
+ * so a long running process which traces doesn't run out of memory.
+ *
+ * <pre>
+ * try (Tracer.Span span = Tracer.span("add_partitions").arg("partitions", partitions.size())) {
+ *     ...
+ * }
+ * </pre>
+ */
+@Slf4j
+public final class Tracer {
+
+    /** A timed phase on the current thread, ended by {@link #close}. */
+    public static class Span implements AutoCloseable {
+        private final String name;
+        private final long startNanos;
+        private final Map<String, Object> args = Maps.newLinkedHashMap();
+
+        private Span(String name) {
+            this.name = name;
+            this.startNanos = System.nanoTime();
+        }
+
+        /** Attach an argument, such as a partition count or bytes, shown with the span. */
+        public Span arg(String key, Object value) {
+            args.put(key, value);
+            return this;
+        }
+
+        @Override
+        public void close() {
+            Thread thread = Thread.currentThread();
+            THREAD_NAMES.putIfAbsent(thread.getId(), thread.getName());
+            EVENTS.add(new Event(name, startNanos, System.nanoTime() - startNanos, thread.getId(), args));
+            if (EVENT_COUNT.incrementAndGet() > MAX_EVENTS && EVENTS.poll() != null) {
+                EVENT_COUNT.decrementAndGet();
+                DROPPED_EVENTS.incrementAndGet();
+            }
+        }
+    }
+
+    private static final class NoopSpan extends Span {
+        private NoopSpan() {
+            super(null);
+        }
+
+        @Override
+        public Span arg(String key, Object value) {
+            return this;
+        }
+
+        @Override
+        public void close() {}
+    }
+
+    private static final class Event {
+        private final String name;
+        private final long startNanos;
+        private final long durationNanos;
+        private final long threadId;
+        private final Map<String, Object> args;
+
+        private Event(String name, long startNanos, long durationNanos, long threadId, Map<String, Object> args) {
+            this.name = name;
+            this.startNanos = startNanos;
+            this.durationNanos = durationNanos;
+            this.threadId = threadId;
+            this.args = args;
+        }
+    }
+
+    /** The spans kept in memory at most, a span takes about 200 bytes with a few args. */
+    public static final int MAX_EVENTS = 1000000;
+
+    private static final Span NOOP = new NoopSpan();
+
+    private static final Queue<Event> EVENTS = new ConcurrentLinkedQueue<>();
+
+    /** The size of {@link #EVENTS}, whose size() walks the whole queue. */
+    private static final AtomicInteger EVENT_COUNT = new AtomicInteger();
+
+    private static final AtomicLong DROPPED_EVENTS = new AtomicLong();
+
+    private static final ConcurrentMap<Long, String> THREAD_NAMES = Maps.newConcurrentMap();
+
+    private static volatile File traceFile;
+
+    private static volatile long originNanos;
+
+    /** Prevent the class to be instanced. */
+    private Tracer() {}
+
+    /** Start to record spans, which are written to the file by {@link #stop}. */
+    public static synchronized void start(File file) {
+        clear();
+        THREAD_NAMES.clear();
+        originNanos = System.nanoTime();
+        traceFile = file;
+    }
+
+    public static boolean isEnabled() {
+        return traceFile != null;
+    }
+
+    /** Begin a span on the current thread. */
+    public static Span span(String name) {
+        return traceFile == null ? NOOP : new Span(name);
+    }
+
+    /**
+     * The thrift binary size of the objects, which is what the metastore client sends. It's only
+     * computed when tracing is enabled, since it serializes the objects.
+     */
+    public static long thriftSize(Collection<? extends TBase<?, ?>> objects) {
+        if (traceFile == null) {
+            return 0;
+        }
+        CountingTransport transport = new CountingTransport();
+        TBinaryProtocol protocol = new TBinaryProtocol(transport);
+        try {
+            for (TBase<?, ?> object : objects) {
+                object.write(protocol);
+            }
+        } catch (TException e) {
+            log.debug("Unable to compute the thrift size.", e);
+        }
+        return transport.bytes;
+    }
+
+    /** Stop recording, and write the recorded spans to the trace file. */
+    public static synchronized void stop() {
+        File file = traceFile;
+        if (file == null) {
+            return;
+        }
+        traceFile = null;
+        try (JsonGenerator json = new JsonFactory().createGenerator(file, JsonEncoding.UTF8)) {
+            json.writeStartObject();
+            json.writeArrayFieldStart("traceEvents");
+            for (Map.Entry<Long, String> thread : THREAD_NAMES.entrySet()) {
+                json.writeStartObject();
+                json.writeStringField("name", "thread_name");
+                json.writeStringField("ph", "M");
+                json.writeNumberField("pid", 1);
+                json.writeNumberField("tid", thread.getKey());
+                json.writeObjectFieldStart("args");
+                json.writeStringField("name", thread.getValue());
+                json.writeEndObject();
+                json.writeEndObject();
+            }
+            for (Event event : EVENTS) {
+                json.writeStartObject();
+                json.writeStringField("name", event.name);
+                json.writeStringField("ph", "X");
+                json.writeNumberField("ts", TimeUnit.NANOSECONDS.toMicros(event.startNanos - originNanos));
+                json.writeNumberField("dur", TimeUnit.NANOSECONDS.toMicros(event.durationNanos));
+                json.writeNumberField("pid", 1);
+                json.writeNumberField("tid", event.threadId);
+                json.writeObjectFieldStart("args");
+                for (Map.Entry<String, Object> arg : event.args.entrySet()) {
+                    if (arg.getValue() instanceof Integer || arg.getValue() instanceof Long) {
+                        json.writeNumberField(arg.getKey(), ((Number) arg.getValue()).longValue());
+                    } else {
+                        json.writeStringField(arg.getKey(), String.valueOf(arg.getValue()));
+                    }
+                }
+                json.writeEndObject();
+                json.writeEndObject();
+            }
+            json.writeEndArray();
+            json.writeEndObject();
+            log.info("There are " + EVENT_COUNT.get() + " spans written to " + file + ", and "
+                    + DROPPED_EVENTS.get() + " older spans dropped.");
+        } catch (IOException e) {
+            log.warn("Unable to write the trace file " + file, e);
+        } finally {
+            clear();
+        }
+    }
+
+    private static void clear() {
+        EVENTS.clear();
+        EVENT_COUNT.set(0);
+        DROPPED_EVENTS.set(0);
+    }
+
+    /** A transport which only counts the written bytes. */
+    private static final class CountingTransport extends TTransport {
+        private long bytes;
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void open() {}
+
+        @Override
+        public void close() {}
+
+        @Override
+        public int read(byte[] buf, int off, int len) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void write(byte[] buf, int off, int len) {
+            bytes += len;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package moonset.metastore.sync.util;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hive.metastore.api.Partition;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import moonset.metastore.sync.exception.MetastoreException;
+import moonset.metastore.sync.trace.Tracer;
+
+/**
+ * Verify the partition locations against the file system, instead of guessing whether they are
+ * files or directories by the patterns of {@link PathUtils}. The partition locations of a table
+ * usually share a few parent directories, so each parent is listed only once, the parents are
+ * listed concurrently, and the listings are cached by parent for the later batches.
+ */
+public class LocationVerifier {
+
+    private static final String PATH_SEPARATOR = "/";
+
+    /** The missing locations reported at most. */
+    private static final int MISSING_LOCATIONS_REPORTED = 20;
+
+    private static final int LIST_THREADS = 16;
+
+    private static final ExecutorService LIST_EXECUTOR =
+            Executors.newFixedThreadPool(
+                    LIST_THREADS,
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("location-verifier-%d").build());
+
+    private final Configuration conf;
+
+    /** The children of a parent directory, whether each child is a directory. */
+    private final ConcurrentMap<String, CompletableFuture<Map<String, Boolean>>> listings = Maps.newConcurrentMap();
+
+    public LocationVerifier(final Configuration conf) {
+        this.conf = conf;
+    }
+
+    /**
+     * Rewrite the file locations to their directories as the actual file system says, the other
+     * partitions are returned as they are.
+     *
+     * @throws MetastoreException if any location doesn't exist or can't be listed.
+     */
+    public List<Partition> verify(final List<Partition> partitions) throws MetastoreException {
+        try (Tracer.Span span = Tracer.span("verifyLocations").arg("partitions", partitions.size())) {
+            // Start every listing before waiting for any of them.
+            for (Partition partition : partitions) {
+                String location = getLocation(partition);
+                if (location != null) {
+                    getListing(getParent(location));
+                }
+            }
+            span.arg("parents", listings.size());
+
+            List<Partition> verifiedPartitions = Lists.newArrayListWithCapacity(partitions.size());
+            List<String> missingLocations = Lists.newArrayList();
+            int missingCount = 0;
+            for (Partition partition : partitions) {
+                String location = getLocation(partition);
+                if (location == null) {
+                    verifiedPartitions.add(partition);
+                    continue;
+                }
+                String parent = getParent(location);
+                Boolean isDirectory = getListing(parent).join().get(getName(location));
+                if (isDirectory == null) {
+                    if (missingLocations.size() < MISSING_LOCATIONS_REPORTED) {
+                        missingLocations.add(location);
+                    }
+                    missingCount++;
+                } else if (isDirectory) {
+                    verifiedPartitions.add(partition);
+                } else {
+                    Partition modifiedPartition = partition.deepCopy();
+                    modifiedPartition.getSd().setLocation(parent);
+                    verifiedPartitions.add(modifiedPartition);
+                }
+            }
+            if (missingCount > 0) {
+                throw new MetastoreException(
+                        String.format("%d partition locations don't exist, such as %s", missingCount, missingLocations));
+            }
+            return verifiedPartitions;
+        } catch (CompletionException e) {
+            throw new MetastoreException("failed to verify the partition locations", e.getCause());
+        }
+    }
+
+    private CompletableFuture<Map<String, Boolean>> getListing(final String parent) {
+        return listings.computeIfAbsent(
+                parent,
+                key ->
+                        CompletableFuture.supplyAsync(
+                                () -> {
+                                    Path path = new Path(key);
+                                    Map<String, Boolean> children = Maps.newHashMap();
+                                    try {
+                                        for (FileStatus status : path.getFileSystem(conf).listStatus(path)) {
+                                            children.put(status.getPath().getName(), status.isDirectory());
+                                        }
+                                    } catch (FileNotFoundException e) {
+                                        // None of the children exists.
+                                    } catch (IOException e) {
+                                        throw new CompletionException(e);
+                                    }
+                                    return children;
+                                },
+                                LIST_EXECUTOR));
+    }
+
+    private static String getLocation(final Partition partition) {
+        if (partition.getSd() == null || partition.getSd().getLocation() == null) {
+            return null;
+        }
+        String location = partition.getSd().getLocation();
+        if (!location.contains(PATH_SEPARATOR)) {
+            return null;
+        }
+        while (location.length() > 1 && location.endsWith(PATH_SEPARATOR)) {
+            location = location.substring(0, location.length() - 1);
+        }
+        return location;
+    }
+
+    private static String getParent(final String location) {
+        return location.substring(0, location.lastIndexOf(PATH_SEPARATOR));
+    }
+
+    private static String getName(final String location) {
+        return location.substring(location.lastIndexOf(PATH_SEPARATOR) + 1);
+    }
+}
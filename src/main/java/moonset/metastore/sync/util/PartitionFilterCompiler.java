@@ -0,0 +1,241 @@
+package moonset.metastore.sync.util;
+
+import static moonset.metastore.sync.util.CLIArgsTokenizer.PARTITION_VALUE_SEPARATOR;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.collections.MapUtils;
+import org.apache.hadoop.hive.metastore.IMetaStoreClient;
+import org.apache.hadoop.hive.metastore.api.Partition;
+import org.apache.thrift.TException;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import moonset.metastore.sync.MetastoreClientFactory;
+import moonset.metastore.sync.exception.MetastoreException;
+
+/**
+ * Compile the partition patterns, such as "foo1=1;foo2=2,3,4;foo3=5,6", into the fewest filter
+ * expressions which fit the max expression length of the metastore, e.g. 2048 characters of
+ * glue. The duplicated values are removed. When the whole composite expression is too long, the
+ * values of the widest key are split into chunks, and the other keys are split further only if a
+ * single value of the widest key doesn't fit, so the expressions select disjoint partitions.
+ *
+ * <p>The cartesian product of the values is never materialized, see {@link #expand}.
+ */
+public final class PartitionFilterCompiler {
+
+    /** The max expression length of glue GetPartitions. */
+    public static final int DEFAULT_MAX_LENGTH = 2048;
+
+    private static final String AND = " AND ";
+    private static final String OR = " OR ";
+
+    /** Run the compiled expressions of one pattern concurrently. */
+    private static final ExecutorService FILTER_EXECUTOR =
+            Executors.newCachedThreadPool(
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("partition-filter-%d").build());
+
+    /** A key and its distinct values. */
+    private static final class Condition {
+        private final String key;
+        private final List<String> values;
+
+        private Condition(String key, List<String> values) {
+            this.key = key;
+            this.values = values;
+        }
+    }
+
+    private final int maxLength;
+
+    public PartitionFilterCompiler() {
+        this(DEFAULT_MAX_LENGTH);
+    }
+
+    public PartitionFilterCompiler(int maxLength) {
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Compile the partition patterns into filter expressions.
+     *
+     * @param partVals the partition patterns, the values of a key are separated by comma.
+     * @return the expressions, each of them is no longer than the max length.
+     * @throws IllegalArgumentException if the patterns are empty, or a single combination of the
+     *     values is longer than the max length.
+     */
+    public List<String> compile(final Map<String, String> partVals) {
+        List<String> expressions = Lists.newArrayList();
+        pack(parse(partVals), expressions);
+        return expressions;
+    }
+
+    /**
+     * The keys of the patterns in the order used by {@link #expand}, which is case insensitive
+     * alphabetical.
+     */
+    public List<String> getKeys(final Map<String, String> partVals) {
+        List<String> keys = Lists.newArrayList();
+        for (Condition condition : parse(partVals)) {
+            keys.add(condition.key);
+        }
+        return keys;
+    }
+
+    /**
+     * Every combination of the values, one value per key in the order of {@link #getKeys}. The
+     * combinations are produced lazily while iterating.
+     */
+    public Set<List<String>> expand(final Map<String, String> partVals) {
+        List<Set<String>> values = Lists.newArrayList();
+        for (Condition condition : parse(partVals)) {
+            values.add(ImmutableSet.copyOf(condition.values));
+        }
+        return Sets.cartesianProduct(values);
+    }
+
+    /**
+     * List the partitions matching the patterns. The compiled expressions are listed concurrently
+     * if the client is thread safe, such as the data catalog client, and the results are merged
+     * without duplicates.
+     */
+    public List<Partition> listPartitionsByFilter(
+            final IMetaStoreClient client,
+            final String database,
+            final String table,
+            final Map<String, String> partVals)
+            throws MetastoreException {
+        List<String> expressions = compile(partVals);
+        Map<List<String>, Partition> partitions = Maps.newLinkedHashMap();
+        try {
+            if (expressions.size() == 1 || MetastoreClientFactory.isHiveMetastoreClient(client)) {
+                for (String expression : expressions) {
+                    merge(partitions, client.listPartitionsByFilter(database, table, expression, (short) -1));
+                }
+            } else {
+                List<CompletableFuture<List<Partition>>> futures = Lists.newArrayList();
+                for (String expression : expressions) {
+                    futures.add(
+                            CompletableFuture.supplyAsync(
+                                    () -> {
+                                        try {
+                                            return client.listPartitionsByFilter(database, table, expression, (short) -1);
+                                        } catch (TException e) {
+                                            throw new CompletionException(e);
+                                        }
+                                    },
+                                    FILTER_EXECUTOR));
+                }
+                for (CompletableFuture<List<Partition>> future : futures) {
+                    merge(partitions, future.join());
+                }
+            }
+        } catch (TException e) {
+            throw new MetastoreException("fail to get table partitions.", e);
+        } catch (CompletionException e) {
+            throw new MetastoreException("fail to get table partitions.", e.getCause());
+        }
+        return Lists.newArrayList(partitions.values());
+    }
+
+    private static void merge(Map<List<String>, Partition> partitions, List<Partition> page) {
+        for (Partition partition : page) {
+            partitions.putIfAbsent(partition.getValues(), partition);
+        }
+    }
+
+    private static List<Condition> parse(final Map<String, String> partVals) {
+        if (MapUtils.isEmpty(partVals)) {
+            throw new IllegalArgumentException("Empty partition parameters input");
+        }
+        Map<String, String> sorted = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        sorted.putAll(partVals);
+        List<Condition> conditions = Lists.newArrayList();
+        for (Map.Entry<String, String> entry : sorted.entrySet()) {
+            Set<String> values = Sets.newLinkedHashSet();
+            for (String value : entry.getValue().split(PARTITION_VALUE_SEPARATOR)) {
+                values.add(value);
+            }
+            conditions.add(new Condition(entry.getKey(), Lists.newArrayList(values)));
+        }
+        return conditions;
+    }
+
+    private void pack(final List<Condition> conditions, final List<String> expressions) {
+        String expression = render(conditions);
+        if (expression.length() <= maxLength) {
+            expressions.add(expression);
+            return;
+        }
+        int widest = 0;
+        for (int i = 1; i < conditions.size(); i++) {
+            if (conditions.get(i).values.size() > conditions.get(widest).values.size()) {
+                widest = i;
+            }
+        }
+        Condition condition = conditions.get(widest);
+        if (condition.values.size() == 1) {
+            throw new IllegalArgumentException(
+                    "The partition filter " + expression + " is longer than " + maxLength + " characters.");
+        }
+
+        // Fill each chunk of the widest key greedily, as long as the whole expression fits.
+        int othersLength = expression.length() - render(condition).length();
+        List<String> chunk = Lists.newArrayList();
+        int chunkLength = 0;
+        for (String value : condition.values) {
+            int termLength = renderTerm(condition.key, value).length();
+            if (!chunk.isEmpty() && othersLength + chunkLength + OR.length() + termLength + 2 > maxLength) {
+                pack(replace(conditions, widest, chunk), expressions);
+                chunk = Lists.newArrayList();
+            }
+            chunkLength = chunk.isEmpty() ? termLength : chunkLength + OR.length() + termLength;
+            chunk.add(value);
+        }
+        pack(replace(conditions, widest, chunk), expressions);
+    }
+
+    private static List<Condition> replace(List<Condition> conditions, int index, List<String> values) {
+        List<Condition> result = Lists.newArrayList(conditions);
+        result.set(index, new Condition(conditions.get(index).key, values));
+        return result;
+    }
+
+    private static String render(List<Condition> conditions) {
+        StringBuilder expression = new StringBuilder();
+        for (Condition condition : conditions) {
+            if (expression.length() > 0) {
+                expression.append(AND);
+            }
+            expression.append(render(condition));
+        }
+        return expression.toString();
+    }
+
+    private static String render(Condition condition) {
+        if (condition.values.size() == 1) {
+            return renderTerm(condition.key, condition.values.get(0));
+        }
+        StringBuilder expression = new StringBuilder("(");
+        for (int i = 0; i < condition.values.size(); i++) {
+            expression.append(i == 0 ? "" : OR).append(renderTerm(condition.key, condition.values.get(i)));
+        }
+        return expression.append(")").toString();
+    }
+
+    private static String renderTerm(String key, String value) {
+        return key + "=\"" + value + "\"";
+    }
+}
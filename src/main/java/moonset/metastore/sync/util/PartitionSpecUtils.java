@@ -0,0 +1,85 @@
+package moonset.metastore.sync.util;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.hive.metastore.api.Partition;
+import org.apache.hadoop.hive.metastore.api.PartitionSpec;
+import org.apache.hadoop.hive.metastore.api.PartitionSpecWithSharedSD;
+import org.apache.hadoop.hive.metastore.api.PartitionWithoutSD;
+import org.apache.hadoop.hive.metastore.api.StorageDescriptor;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/** The utility class to build the compact partition specs of hive metastore. */
+public final class PartitionSpecUtils {
+
+    private static final String PATH_SEPARATOR = "/";
+
+    /** Prevent the class to be instanced. */
+    private PartitionSpecUtils() {}
+
+    /**
+     * Group the partitions by their storage descriptor regardless of the location. Each group is
+     * a {@link PartitionSpecWithSharedSD}, whose storage descriptor is sent only once and whose
+     * location is the common directory of the group, each partition only carries the path relative
+     * to it. The metastore rebuilds the location by concatenating both.
+     *
+     * @param partitions the partitions of one table, all of them should have a location.
+     */
+    public static List<PartitionSpec> toSharedSDPartitionSpecs(final List<Partition> partitions) {
+        Map<StorageDescriptor, List<Partition>> groups = Maps.newLinkedHashMap();
+        for (Partition partition : partitions) {
+            StorageDescriptor sd = partition.getSd().deepCopy();
+            sd.setLocation(null);
+            groups.computeIfAbsent(sd, key -> Lists.newArrayList()).add(partition);
+        }
+
+        List<PartitionSpec> specs = Lists.newArrayList();
+        for (Map.Entry<StorageDescriptor, List<Partition>> group : groups.entrySet()) {
+            String rootPath = getCommonDirectory(group.getValue());
+            List<PartitionWithoutSD> partitionsWithoutSD = Lists.newArrayList();
+            for (Partition partition : group.getValue()) {
+                PartitionWithoutSD partitionWithoutSD =
+                        new PartitionWithoutSD(
+                                partition.getValues(),
+                                partition.getCreateTime(),
+                                partition.getLastAccessTime(),
+                                partition.getSd().getLocation().substring(rootPath.length()),
+                                partition.getParameters() == null
+                                        ? Maps.<String, String>newHashMap()
+                                        : partition.getParameters());
+                if (partition.isSetPrivileges()) {
+                    partitionWithoutSD.setPrivileges(partition.getPrivileges());
+                }
+                partitionsWithoutSD.add(partitionWithoutSD);
+            }
+            StorageDescriptor sharedSD = group.getKey();
+            sharedSD.setLocation(rootPath);
+
+            Partition first = group.getValue().get(0);
+            PartitionSpec spec = new PartitionSpec();
+            spec.setDbName(first.getDbName());
+            spec.setTableName(first.getTableName());
+            spec.setRootPath(rootPath);
+            spec.setSharedSDPartitionSpec(new PartitionSpecWithSharedSD(partitionsWithoutSD, sharedSD));
+            specs.add(spec);
+        }
+        return specs;
+    }
+
+    /** The longest directory, ending with the separator, containing all partition locations. */
+    private static String getCommonDirectory(final List<Partition> partitions) {
+        String prefix = partitions.get(0).getSd().getLocation();
+        for (Partition partition : partitions) {
+            String location = partition.getSd().getLocation();
+            int i = 0;
+            while (i < prefix.length() && i < location.length() && prefix.charAt(i) == location.charAt(i)) {
+                i++;
+            }
+            prefix = prefix.substring(0, i);
+        }
+        return prefix.substring(0, prefix.lastIndexOf(PATH_SEPARATOR) + 1);
+    }
+}
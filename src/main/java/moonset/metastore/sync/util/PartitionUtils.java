@@ -1,11 +1,51 @@
 package moonset.metastore.sync.util;
 
 import moonset.metastore.sync.exception.MetastoreException;
+import moonset.metastore.sync.trace.Tracer;
 import java.util.List;
+import java.util.Set;
 import java.util.stream.Collectors;
+import org.apache.hadoop.hive.conf.HiveConf;
 import org.apache.hadoop.hive.metastore.api.Partition;
+import org.apache.hadoop.hive.serde.serdeConstants;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.primitives.Longs;
 
 public final class PartitionUtils {
+
+    /** The name of the partition which hive writes the null values of a partition key to. */
+    public static final String DEFAULT_PARTITION_NAME = HiveConf.ConfVars.DEFAULTPARTITIONNAME.defaultStrVal;
+
+    private static final Set<String> INTEGRAL_TYPES =
+            ImmutableSet.of(
+                    serdeConstants.TINYINT_TYPE_NAME,
+                    serdeConstants.SMALLINT_TYPE_NAME,
+                    serdeConstants.INT_TYPE_NAME,
+                    serdeConstants.BIGINT_TYPE_NAME);
+
+    /** Whether the values of a partition key of the type are compared as numbers. */
+    public static boolean isIntegralType(final String type) {
+        return INTEGRAL_TYPES.contains(type.toLowerCase());
+    }
+
+    /**
+     * Compare two values of a time-like partition key, the older first. The values of an integral
+     * key are compared as numbers, the others as strings, which suits the dates and timestamps in
+     * the ISO format. A value which can't be ordered, such as {@link #DEFAULT_PARTITION_NAME} or
+     * a non-numeric value of an integral key, is older than any other, so it never becomes a
+     * watermark, and it goes last in the newest first order.
+     */
+    public static int compareTimeValues(final String left, final String right, final boolean integral) {
+        Long leftNumber = integral ? Longs.tryParse(left) : null;
+        Long rightNumber = integral ? Longs.tryParse(right) : null;
+        boolean leftOrdered = integral ? leftNumber != null : !DEFAULT_PARTITION_NAME.equals(left);
+        boolean rightOrdered = integral ? rightNumber != null : !DEFAULT_PARTITION_NAME.equals(right);
+        if (!leftOrdered || !rightOrdered) {
+            return leftOrdered == rightOrdered ? left.compareTo(right) : Boolean.compare(leftOrdered, rightOrdered);
+        }
+        return integral ? Long.compare(leftNumber, rightNumber) : left.compareTo(right);
+    }
     /**
      * AWS DataCatalog allow partition location to be a file, but Hive Metastore only allows a
      * directory. Thus we need to trim any file to its parent directory. The function would not be
@@ -16,41 +56,45 @@ public final class PartitionUtils {
      */
     public static List<Partition> rewritePartitionLocation(List<Partition> partitions)
             throws MetastoreException {
-        for (Partition partition : partitions) {
-            String location = partition.getSd().getLocation();
-            if (!PathUtils.isKnownPattern(location)) {
-                throw new MetastoreException(
-                        "The location " + location + " has an unknown pattern.");
+        try (Tracer.Span span = Tracer.span("rewritePartitionLocation").arg("partitions", partitions.size())) {
+            for (Partition partition : partitions) {
+                String location = partition.getSd().getLocation();
+                if (!PathUtils.isKnownPattern(location)) {
+                    throw new MetastoreException(
+                            "The location " + location + " has an unknown pattern.");
+                }
             }
+            return partitions
+                    .stream()
+                    .map(
+                            partition -> {
+                                Partition modifiedPartition = partition.deepCopy();
+                                String location = modifiedPartition.getSd().getLocation();
+                                if (PathUtils.isFile(location)) {
+                                    modifiedPartition
+                                            .getSd()
+                                            .setLocation(PathUtils.toDirectory(location));
+                                }
+                                return modifiedPartition;
+                            })
+                    .collect(Collectors.toList());
         }
-        return partitions
-                .stream()
-                .map(
-                        partition -> {
-                            Partition modifiedPartition = partition.deepCopy();
-                            String location = modifiedPartition.getSd().getLocation();
-                            if (PathUtils.isFile(location)) {
-                                modifiedPartition
-                                        .getSd()
-                                        .setLocation(PathUtils.toDirectory(location));
-                            }
-                            return modifiedPartition;
-                        })
-                .collect(Collectors.toList());
     }
     public static List<Partition> addOriginalCreateTime(List<Partition> partitions)
             throws MetastoreException {
-        return partitions
-                .stream()
-                .map(
-                        partition -> {
-                            Partition modifiedPartition = partition.deepCopy();
-                            if(!modifiedPartition.getParameters().containsKey(TableUtils.ORIGINAL_CREATE_TIME)) {
-                                modifiedPartition.getParameters().put(TableUtils.ORIGINAL_CREATE_TIME, String.valueOf(modifiedPartition.getCreateTime()));
-                            }
-                            return modifiedPartition;
-                        })
-                .collect(Collectors.toList());
+        try (Tracer.Span span = Tracer.span("addOriginalCreateTime").arg("partitions", partitions.size())) {
+            return partitions
+                    .stream()
+                    .map(
+                            partition -> {
+                                Partition modifiedPartition = partition.deepCopy();
+                                if(!modifiedPartition.getParameters().containsKey(TableUtils.ORIGINAL_CREATE_TIME)) {
+                                    modifiedPartition.getParameters().put(TableUtils.ORIGINAL_CREATE_TIME, String.valueOf(modifiedPartition.getCreateTime()));
+                                }
+                                return modifiedPartition;
+                            })
+                    .collect(Collectors.toList());
+        }
     }
 
     public static List<Partition> updateDatabaseAndTableName(List<Partition> rewritedPartitions, String destDatabaseName, String destTableName) {
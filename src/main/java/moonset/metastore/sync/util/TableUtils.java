@@ -9,7 +9,8 @@ public final class TableUtils {
     /** Store the create time in table parameter, sice this field will be overriden when createTable(). */
     public static final String ORIGINAL_CREATE_TIME = "original_create_time";
 
-    private static final String EXTERNAL_TABLE_TYPE = "EXTERNAL_TABLE";
+    /** The table type of an external table. */
+    public static final String EXTERNAL_TABLE_TYPE = "EXTERNAL_TABLE";
 
 
     /**
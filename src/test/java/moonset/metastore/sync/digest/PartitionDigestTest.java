@@ -0,0 +1,122 @@
+package moonset.metastore.sync.digest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.hive.metastore.api.Partition;
+import org.apache.hadoop.hive.metastore.api.StorageDescriptor;
+import org.apache.hadoop.hive.metastore.api.hive_metastoreConstants;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Build the digests of partitions made in memory, and check they change with the partitions the
+ * sync cares about only, in the bucket of the changed partition only.
+ */
+public class PartitionDigestTest {
+
+    private static final int PARTITIONS = 1000;
+
+    @Test
+    public void testIndependentOfPartitionOrder() {
+        List<String> names = partitionNames();
+        PartitionDigest digest = digestOf(names, null);
+        Collections.shuffle(names);
+        PartitionDigest shuffledDigest = digestOf(names, null);
+
+        assertEquals(digest.getRoot(), shuffledDigest.getRoot());
+        assertEquals(digest.encode(), shuffledDigest.encode());
+        assertTrue(digest.diff(shuffledDigest).isEmpty());
+    }
+
+    @Test
+    public void testDdlTimeExcluded() {
+        Partition partition = partition("dt=2020-01-01");
+        long hash = PartitionDigest.hash("dt=2020-01-01", partition);
+
+        partition.putToParameters(hive_metastoreConstants.DDL_TIME, "1600000000");
+        assertEquals(hash, PartitionDigest.hash("dt=2020-01-01", partition));
+
+        partition.putToParameters("numRows", "10");
+        assertNotEquals(hash, PartitionDigest.hash("dt=2020-01-01", partition));
+    }
+
+    @Test
+    public void testDiffFindsChangedBucket() {
+        List<String> names = partitionNames();
+        PartitionDigest digest = digestOf(names, null);
+        String changedName = names.get(PARTITIONS / 2);
+
+        PartitionDigest changedDigest = digestOf(names, changedName);
+        assertNotEquals(digest.getRoot(), changedDigest.getRoot());
+        assertEquals(Sets.newHashSet(PartitionDigest.bucketOf(changedName)), digest.diff(changedDigest));
+        assertEquals(Sets.newHashSet(PartitionDigest.bucketOf(changedName)), changedDigest.diff(digest));
+
+        // A missing partition differs in its bucket as well.
+        PartitionDigest missingDigest = digestOf(names.subList(1, PARTITIONS), null);
+        assertEquals(Sets.newHashSet(PartitionDigest.bucketOf(names.get(0))), digest.diff(missingDigest));
+    }
+
+    @Test
+    public void testEncodeDecodeRoundTrip() {
+        PartitionDigest digest = digestOf(partitionNames(), null);
+        PartitionDigest decoded = PartitionDigest.decode(digest.encode());
+        assertNotNull(decoded);
+        assertEquals(digest.getRoot(), decoded.getRoot());
+        assertEquals(digest.encode(), decoded.encode());
+        assertTrue(digest.diff(decoded).isEmpty());
+    }
+
+    @Test
+    public void testDecodeMalformed() {
+        assertNull(PartitionDigest.decode(null));
+        assertNull(PartitionDigest.decode("not a digest!"));
+        // Valid base64, but not the size of the buckets.
+        assertNull(PartitionDigest.decode(Base64.getEncoder().encodeToString(new byte[Long.BYTES])));
+        String encoded = new PartitionDigest().encode();
+        assertNull(PartitionDigest.decode(encoded.substring(0, encoded.length() - 4)));
+    }
+
+    private static List<String> partitionNames() {
+        List<String> names = Lists.newArrayList();
+        for (int i = 0; i < PARTITIONS; i++) {
+            names.add("dt=2020-01-01/hour=" + i);
+        }
+        return names;
+    }
+
+    /** The digest of the partitions, the location of the changed one is moved if given. */
+    private static PartitionDigest digestOf(List<String> names, String changedName) {
+        PartitionDigest digest = new PartitionDigest();
+        for (String name : names) {
+            Partition partition = partition(name);
+            if (name.equals(changedName)) {
+                partition.getSd().setLocation(partition.getSd().getLocation() + "_moved");
+            }
+            digest.add(name, partition);
+        }
+        return digest;
+    }
+
+    private static Partition partition(String name) {
+        StorageDescriptor sd = new StorageDescriptor();
+        sd.setLocation("s3://bucket/table/" + name);
+        Partition partition = new Partition();
+        partition.setValues(Arrays.asList(name.split("/")));
+        partition.setSd(sd);
+        partition.setParameters(Maps.<String, String>newHashMap());
+        partition.putToParameters(hive_metastoreConstants.DDL_TIME, "1500000000");
+        return partition;
+    }
+}
@@ -0,0 +1,259 @@
+package moonset.metastore.sync.jdbc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.hive.conf.HiveConf;
+import org.apache.hadoop.hive.metastore.HiveMetaStoreClient;
+import org.apache.hadoop.hive.metastore.api.Database;
+import org.apache.hadoop.hive.metastore.api.FieldSchema;
+import org.apache.hadoop.hive.metastore.api.Partition;
+import org.apache.hadoop.hive.metastore.api.SerDeInfo;
+import org.apache.hadoop.hive.metastore.api.StorageDescriptor;
+import org.apache.hadoop.hive.metastore.api.Table;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runners.MethodSorters;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import moonset.metastore.sync.exception.MetastoreException;
+
+/**
+ * Bulk load partitions into an embedded hive metastore backed by an in-memory derby database,
+ * whose hive 2.1 schema is created by the metastore itself, and read them back via thrift.
+ *
+ * <p>The tests share the database and run by name, so {@link #testAllocateIdsBeforeSequence}
+ * loads the first partitions before the metastore creates the partition sequence.
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class JdbcPartitionBulkLoaderTest {
+
+    private static final String DATABASE_URL = "jdbc:derby:memory:bulk_loader_test";
+
+    private static final String DATABASE = "bulk_loader_db";
+
+    private static final String PARTITION_SEQUENCE = "org.apache.hadoop.hive.metastore.model.MPartition";
+
+    @ClassRule
+    public static final TemporaryFolder WAREHOUSE = new TemporaryFolder();
+
+    private static HiveMetaStoreClient client;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        HiveConf conf = new HiveConf();
+        conf.setVar(HiveConf.ConfVars.METASTOREURIS, "");
+        conf.setVar(HiveConf.ConfVars.METASTORECONNECTURLKEY, DATABASE_URL + ";create=true");
+        conf.setVar(HiveConf.ConfVars.METASTORE_CONNECTION_DRIVER, "org.apache.derby.jdbc.EmbeddedDriver");
+        conf.setVar(HiveConf.ConfVars.METASTOREWAREHOUSE, "file:" + WAREHOUSE.getRoot().getAbsolutePath());
+        conf.setBoolVar(HiveConf.ConfVars.METASTORE_AUTO_CREATE_ALL, true);
+        conf.setBoolVar(HiveConf.ConfVars.METASTORE_SCHEMA_VERIFICATION, false);
+        client = new HiveMetaStoreClient(conf);
+        client.createDatabase(new Database(DATABASE, null, "file:" + WAREHOUSE.newFolder(DATABASE).getAbsolutePath(), null));
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        if (client != null) {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testAllocateIdsWithSequence() throws Exception {
+        Table table = createTable("existing_sequence");
+        // The metastore creates the partition sequence on its first partition.
+        client.add_partition(newPartition(table, "1"));
+        long nextVal = getNextVal(PARTITION_SEQUENCE);
+
+        List<Partition> unsupported = load(table, Arrays.asList(newPartition(table, "2"), newPartition(table, "3")));
+
+        assertTrue(unsupported.isEmpty());
+        assertEquals(nextVal + 2, getNextVal(PARTITION_SEQUENCE));
+        assertEquals(Arrays.asList(nextVal, nextVal + 1), getPartitionIds(table, "ds=2", "ds=3"));
+        assertPartitions(table, "1", "2", "3");
+    }
+
+    @Test
+    public void testAllocateIdsBeforeSequence() throws Exception {
+        Table table = createTable("missing_sequence");
+        assertEquals(
+                0,
+                count("SELECT COUNT(*) FROM \"SEQUENCE_TABLE\" WHERE \"SEQUENCE_NAME\" = '" + PARTITION_SEQUENCE + "'"));
+        long maxId = count("SELECT COALESCE(MAX(\"PART_ID\"), 0) FROM \"PARTITIONS\"");
+
+        List<Partition> unsupported = load(table, Arrays.asList(newPartition(table, "1"), newPartition(table, "2")));
+
+        assertTrue(unsupported.isEmpty());
+        assertEquals(maxId + 3, getNextVal(PARTITION_SEQUENCE));
+        assertEquals(Arrays.asList(maxId + 1, maxId + 2), getPartitionIds(table, "ds=1", "ds=2"));
+        // The metastore picks up the sequence for the partitions added later.
+        client.add_partition(newPartition(table, "3"));
+        assertPartitions(table, "1", "2", "3");
+    }
+
+    @Test
+    public void testSkipExistingPartitions() throws Exception {
+        Table table = createTable("existing_partitions");
+        Partition existing = newPartition(table, "1");
+        client.add_partition(existing);
+        Partition replacement = newPartition(table, "1");
+        replacement.getSd().setLocation(existing.getSd().getLocation() + "_replacement");
+
+        List<Partition> unsupported = load(table, Arrays.asList(replacement, newPartition(table, "2")));
+
+        assertTrue(unsupported.isEmpty());
+        assertPartitions(table, "1", "2");
+        assertEquals(
+                existing.getSd().getLocation(),
+                client.getPartition(DATABASE, table.getTableName(), "ds=1").getSd().getLocation());
+    }
+
+    @Test
+    public void testHandBackUnsupportedPartitions() throws Exception {
+        Table table = createTable("unsupported_partitions");
+        Partition bucketed = newPartition(table, "1");
+        bucketed.getSd().setBucketCols(Collections.singletonList("id"));
+        bucketed.getSd().setNumBuckets(4);
+        Partition ownColumns = newPartition(table, "2");
+        ownColumns.getSd().addToCols(new FieldSchema("extra", "string", null));
+
+        List<Partition> unsupported = load(table, Arrays.asList(bucketed, ownColumns, newPartition(table, "3")));
+
+        assertEquals(Arrays.asList(bucketed, ownColumns), unsupported);
+        assertPartitions(table, "3");
+    }
+
+    @Test
+    public void testRollbackFailedChunk() throws Exception {
+        Table table = createTable("failed_chunk");
+        long serdes = count("SELECT COUNT(*) FROM \"SERDES\"");
+        long sds = count("SELECT COUNT(*) FROM \"SDS\"");
+        Partition tooLong = newPartition(table, "2");
+        // LOCATION is a VARCHAR(4000).
+        tooLong.getSd().setLocation(tooLong.getSd().getLocation() + "/" + Strings.repeat("x", 4000));
+
+        try {
+            load(table, Arrays.asList(newPartition(table, "1"), tooLong));
+            fail("The chunk with a too long location should fail.");
+        } catch (MetastoreException e) {
+            // expected
+        }
+
+        assertPartitions(table);
+        assertEquals(serdes, count("SELECT COUNT(*) FROM \"SERDES\""));
+        assertEquals(sds, count("SELECT COUNT(*) FROM \"SDS\""));
+    }
+
+    private static Table createTable(String name) throws Exception {
+        StorageDescriptor sd = new StorageDescriptor();
+        sd.setCols(Lists.newArrayList(new FieldSchema("id", "bigint", null), new FieldSchema("name", "string", null)));
+        sd.setLocation("file:" + WAREHOUSE.newFolder(name).getAbsolutePath());
+        sd.setInputFormat("org.apache.hadoop.mapred.TextInputFormat");
+        sd.setOutputFormat("org.apache.hadoop.hive.ql.io.HiveIgnoreKeyTextOutputFormat");
+        Map<String, String> serdeParameters = Maps.newHashMap();
+        serdeParameters.put("serialization.format", "1");
+        sd.setSerdeInfo(new SerDeInfo(null, "org.apache.hadoop.hive.serde2.lazy.LazySimpleSerDe", serdeParameters));
+        sd.setBucketCols(Lists.newArrayList());
+        sd.setSortCols(Lists.newArrayList());
+        sd.setParameters(Maps.newHashMap());
+
+        Table table = new Table();
+        table.setDbName(DATABASE);
+        table.setTableName(name);
+        table.setSd(sd);
+        table.setPartitionKeys(Lists.newArrayList(new FieldSchema("ds", "string", null)));
+        table.setTableType("EXTERNAL_TABLE");
+        table.putToParameters("EXTERNAL", "TRUE");
+        client.createTable(table);
+        return client.getTable(DATABASE, name);
+    }
+
+    private static Partition newPartition(Table table, String value) {
+        StorageDescriptor sd = new StorageDescriptor(table.getSd());
+        sd.setLocation(table.getSd().getLocation() + "/ds=" + value);
+        Partition partition = new Partition();
+        partition.setDbName(table.getDbName());
+        partition.setTableName(table.getTableName());
+        partition.setValues(Lists.newArrayList(value));
+        partition.setSd(sd);
+        partition.setParameters(Maps.newHashMap());
+        return partition;
+    }
+
+    private static List<Partition> load(Table table, List<Partition> partitions) throws Exception {
+        try (JdbcPartitionBulkLoader loader = new JdbcPartitionBulkLoader(DriverManager.getConnection(DATABASE_URL))) {
+            return loader.loadPartitions(table, partitions);
+        }
+    }
+
+    /** Assert the partitions read back via thrift, with their values and locations. */
+    private static void assertPartitions(Table table, String... values) throws Exception {
+        List<Partition> partitions = client.listPartitions(DATABASE, table.getTableName(), (short) -1);
+        List<String> actualValues = Lists.newArrayList();
+        for (Partition partition : partitions) {
+            actualValues.add(partition.getValues().get(0));
+            assertEquals(table.getSd().getCols(), partition.getSd().getCols());
+            assertEquals(
+                    table.getSd().getSerdeInfo().getSerializationLib(),
+                    partition.getSd().getSerdeInfo().getSerializationLib());
+        }
+        Collections.sort(actualValues);
+        assertEquals(Arrays.asList(values), actualValues);
+        for (String value : values) {
+            Partition partition = client.getPartition(DATABASE, table.getTableName(), "ds=" + value);
+            assertTrue(partition.getSd().getLocation().endsWith("/ds=" + value));
+        }
+    }
+
+    private static long getNextVal(String sequenceName) throws SQLException {
+        return count("SELECT \"NEXT_VAL\" FROM \"SEQUENCE_TABLE\" WHERE \"SEQUENCE_NAME\" = '" + sequenceName + "'");
+    }
+
+    private static List<Long> getPartitionIds(Table table, String... partitionNames) throws SQLException {
+        List<Long> ids = Lists.newArrayList();
+        String sql =
+                "SELECT p.\"PART_ID\" FROM \"PARTITIONS\" p JOIN \"TBLS\" t ON p.\"TBL_ID\" = t.\"TBL_ID\""
+                        + " WHERE t.\"TBL_NAME\" = ? AND p.\"PART_NAME\" = ?";
+        try (Connection connection = DriverManager.getConnection(DATABASE_URL);
+                PreparedStatement statement = connection.prepareStatement(sql)) {
+            for (String partitionName : partitionNames) {
+                statement.setString(1, table.getTableName());
+                statement.setString(2, partitionName);
+                try (ResultSet result = statement.executeQuery()) {
+                    assertTrue(result.next());
+                    ids.add(result.getLong(1));
+                }
+            }
+        }
+        return ids;
+    }
+
+    private static long count(String sql) throws SQLException {
+        try (Connection connection = DriverManager.getConnection(DATABASE_URL);
+                Statement statement = connection.createStatement();
+                ResultSet result = statement.executeQuery(sql)) {
+            assertTrue(result.next());
+            return result.getLong(1);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package moonset.metastore.sync.ratelimit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+import moonset.metastore.sync.ratelimit.GlueRateGovernor.Priority;
+
+/**
+ * Take the tokens of a bucket refilled by a fake clock, so the refills and the delays don't depend
+ * on the speed of the test. The buckets refill 10 tokens per second, a token every 100ms.
+ */
+public class TokenBucketTest {
+
+    private static final long TOKEN_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final AtomicLong clock = new AtomicLong();
+
+    @Test
+    public void testRefillRespectsCapacity() {
+        TokenBucket bucket = new TokenBucket(10, 0.2, clock::get);
+        assertEquals(0, bucket.tryAcquire(Priority.NORMAL));
+        assertEquals(0, bucket.tryAcquire(Priority.NORMAL));
+        assertTrue(bucket.tryAcquire(Priority.NORMAL) > 0);
+
+        // A long idle time refills the bucket up to its capacity only.
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        assertEquals(0, bucket.tryAcquire(Priority.NORMAL));
+        assertEquals(0, bucket.tryAcquire(Priority.NORMAL));
+        assertEquals(TOKEN_NANOS, bucket.tryAcquire(Priority.NORMAL), 1);
+    }
+
+    @Test
+    public void testTryAcquireReturnsDelayUntilNextToken() {
+        TokenBucket bucket = new TokenBucket(10, 0.1, clock::get);
+        assertEquals(0, bucket.tryAcquire(Priority.NORMAL));
+        assertEquals(TOKEN_NANOS, bucket.tryAcquire(Priority.NORMAL), 1);
+
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(30));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(70), bucket.tryAcquire(Priority.NORMAL), 1);
+
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(70));
+        assertEquals(0, bucket.tryAcquire(Priority.NORMAL));
+    }
+
+    @Test
+    public void testHighWaiterPreemptsLow() {
+        TokenBucket bucket = new TokenBucket(10, 0.1, clock::get);
+        List<String> sent = Lists.newArrayList();
+        assertEquals(0, bucket.tryAcquire(Priority.LOW));
+
+        assertTrue(bucket.submit(Priority.HIGH, () -> sent.add("high")) > 0);
+        clock.addAndGet(TOKEN_NANOS);
+        // The token is due, but the high priority request waits for it.
+        assertEquals(TOKEN_NANOS, bucket.tryAcquire(Priority.LOW), 1);
+        assertTrue(sent.isEmpty());
+
+        assertEquals(-1, bucket.drain());
+        assertEquals(Arrays.asList("high"), sent);
+        assertEquals(TOKEN_NANOS, bucket.tryAcquire(Priority.LOW), 1);
+        clock.addAndGet(TOKEN_NANOS);
+        assertEquals(0, bucket.tryAcquire(Priority.LOW));
+    }
+
+    @Test
+    public void testDrainHighestPriorityFirst() {
+        TokenBucket bucket = new TokenBucket(10, 0.1, clock::get);
+        List<String> sent = Lists.newArrayList();
+        assertEquals(0, bucket.tryAcquire(Priority.NORMAL));
+
+        assertTrue(bucket.submit(Priority.LOW, () -> sent.add("low")) > 0);
+        // A drain is scheduled already.
+        assertEquals(-1, bucket.submit(Priority.HIGH, () -> sent.add("high")));
+
+        clock.addAndGet(TOKEN_NANOS);
+        assertTrue(bucket.drain() > 0);
+        assertEquals(Arrays.asList("high"), sent);
+
+        clock.addAndGet(TOKEN_NANOS);
+        assertEquals(-1, bucket.drain());
+        assertEquals(Arrays.asList("high", "low"), sent);
+    }
+}
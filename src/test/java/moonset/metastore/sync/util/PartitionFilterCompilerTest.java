@@ -0,0 +1,135 @@
+package moonset.metastore.sync.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * Compile the partition patterns into filter expressions, and check the expressions of a long
+ * pattern fit the max length of glue and select disjoint partitions.
+ */
+public class PartitionFilterCompilerTest {
+
+    private final PartitionFilterCompiler compiler = new PartitionFilterCompiler();
+
+    @Test
+    public void testKeysOrderedIgnoringCase() {
+        Map<String, String> partVals = ImmutableMap.of("region", "us", "Dt", "1,2", "HOUR", "0");
+        assertEquals(Arrays.asList("Dt", "HOUR", "region"), compiler.getKeys(partVals));
+        assertEquals(
+                Arrays.asList("(Dt=\"1\" OR Dt=\"2\") AND HOUR=\"0\" AND region=\"us\""),
+                compiler.compile(partVals));
+    }
+
+    @Test
+    public void testDuplicateValuesRemoved() {
+        Map<String, String> partVals = ImmutableMap.of("dt", "1,2,1,2", "region", "us,us");
+        assertEquals(Arrays.asList("(dt=\"1\" OR dt=\"2\") AND region=\"us\""), compiler.compile(partVals));
+        assertEquals(2, compiler.expand(partVals).size());
+    }
+
+    @Test
+    public void testSplitLongExpression() {
+        List<String> dates = Lists.newArrayList();
+        for (int i = 0; i < 400; i++) {
+            dates.add(String.format("2020-01-01-%04d", i));
+        }
+        Map<String, String> partVals = ImmutableMap.of("region", "us,eu", "snapshot_date", Joiner.on(',').join(dates));
+
+        List<String> expressions = compiler.compile(partVals);
+        assertTrue(expressions.size() > 1);
+        List<String> selectedDates = Lists.newArrayList();
+        for (String expression : expressions) {
+            assertTrue(expression.length() <= PartitionFilterCompiler.DEFAULT_MAX_LENGTH);
+            // The narrow key isn't split, it's in every expression.
+            assertEquals(Sets.newHashSet("us", "eu"), Sets.newHashSet(valuesOf("region", expression)));
+            selectedDates.addAll(valuesOf("snapshot_date", expression));
+        }
+        // Each date is selected by exactly one expression.
+        assertEquals(dates, selectedDates);
+    }
+
+    @Test
+    public void testSplitOtherKeysWhenWidestValueDoesNotFit() {
+        Map<String, String> partVals = ImmutableMap.of("a", "1,2", "b", "x,y,z");
+        List<String> expressions = new PartitionFilterCompiler(24).compile(partVals);
+        Set<List<String>> selected = Sets.newHashSet();
+        for (String expression : expressions) {
+            assertTrue(expression.length() <= 24);
+            for (String a : valuesOf("a", expression)) {
+                for (String b : valuesOf("b", expression)) {
+                    assertTrue(selected.add(Arrays.asList(a, b)));
+                }
+            }
+        }
+        assertEquals(compiler.expand(partVals), selected);
+    }
+
+    @Test
+    public void testSingleCombinationTooLong() {
+        try {
+            new PartitionFilterCompiler(10).compile(ImmutableMap.of("snapshot_date", "2020-01-01"));
+            fail("The expression longer than the max length should be rejected.");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("longer than 10 characters"));
+        }
+    }
+
+    @Test
+    public void testExpandCartesianProduct() {
+        Map<String, String> partVals = ImmutableMap.of("b", "x,y,z", "a", "1,2", "c", "k");
+        assertEquals(Arrays.asList("a", "b", "c"), compiler.getKeys(partVals));
+        Set<List<String>> combinations = compiler.expand(partVals);
+        assertEquals(6, combinations.size());
+        for (String a : Arrays.asList("1", "2")) {
+            for (String b : Arrays.asList("x", "y", "z")) {
+                assertTrue(combinations.contains(Arrays.asList(a, b, "k")));
+            }
+        }
+    }
+
+    @Test
+    public void testExpandIsLazy() {
+        List<String> values = Lists.newArrayList();
+        for (int i = 0; i < 1000; i++) {
+            values.add(String.valueOf(i));
+        }
+        String pattern = Joiner.on(',').join(values);
+        Set<List<String>> combinations = compiler.expand(ImmutableMap.of("a", pattern, "b", pattern, "c", pattern));
+        assertEquals(1000L * 1000 * 1000, combinations.size());
+        assertEquals(Arrays.asList("0", "0", "0"), combinations.iterator().next());
+    }
+
+    @Test
+    public void testEmptyPatterns() {
+        try {
+            compiler.compile(ImmutableMap.<String, String>of());
+            fail("The empty patterns should be rejected.");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("Empty partition parameters"));
+        }
+    }
+
+    private static List<String> valuesOf(String key, String expression) {
+        List<String> values = Lists.newArrayList();
+        Matcher matcher = Pattern.compile("\\b" + key + "=\"([^\"]*)\"").matcher(expression);
+        while (matcher.find()) {
+            values.add(matcher.group(1));
+        }
+        return values;
+    }
+}